@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+
+# Moves past appointments older than a year (or --before MM/dd/yyyy) to the archive
+# Example: ./archive.sh --keep-days 180 --batch 5000
+java $JAVA_OPTS -cp lib/*:bin/ Archiver $DBNAME $PORT $USER "$@"
@@ -0,0 +1,9 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+
+# Runs the data-access benchmarks; operations 1-4 write, use a scratch database
+# Example: ./bench.sh --scale 10 --threads 4 --csv bench.csv
+#          ./bench.sh --baseline bench.csv
+java $JAVA_OPTS -cp lib/*:bin/ Benchmark $DBNAME $PORT $USER "$@"
@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+
+# Books a file of doctor_ID,appnt_ID,name,gender,age,address requests
+# Example: ./book.sh --out outcomes.csv referrals.csv
+java $JAVA_OPTS -cp lib/*:bin/ BatchBooking $DBNAME $PORT $USER "$@"
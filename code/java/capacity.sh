@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+
+# Prints requested capacity against booked appointments
+# Example: ./capacity.sh --from 01/01/2019 --to 12/31/2019 --level hospital
+java $JAVA_OPTS -cp lib/*:bin/ CapacityReport $DBNAME $PORT $USER "$@"
@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+
+# Loads the CSV files over the connection with COPY FROM STDIN
+# Example: ./load.sh --create ../data
+java $JAVA_OPTS -cp lib/*:bin/ BulkLoader $DBNAME $PORT $USER "$@"
@@ -4,4 +4,23 @@ PORT=$PGPORT
 USER=$USER
 
 # Example: source ./run.sh
-java -cp lib/*:bin/ DBproject $DBNAME $PORT $USER
+# Connection pool settings can be passed through JAVA_OPTS, e.g.
+# JAVA_OPTS="-Ddbproject.pool.min=2 -Ddbproject.pool.max=16" ./run.sh
+# Each connection keeps up to -Ddbproject.statements.max prepared statements (256)
+# Connections held over -Ddbproject.pool.leakThreshold ms (60000) are reported;
+# add -Ddbproject.pool.leakTrace=true to also print where they were borrowed
+# Query metrics are shown by menu option 10 and over JMX; to also append them
+# to a file every minute add -Ddbproject.metrics.log=metrics.log
+# Options 5 and 6 (their first page) are cached (-Ddbproject.cache.size=1024 entries, 0 disables)
+# once sql/notify.sql is installed; hospitals, departments and doctors are
+# cached and reloaded on change or every -Ddbproject.reference.ttl ms (60000)
+# Reports run on a read-only replica when -Ddbproject.replica.port is set
+# (also .host, .db, .maxLag in ms, default 5000), on the primary otherwise
+# Options 7 and 8 also count archived appointments (./archive.sh) with
+# -Ddbproject.includeArchive=true
+# Earliest-available searches keep -Ddbproject.availability.days days (366)
+# of available time slots in memory
+# Bookings go through a journal file and are written in batches with
+# -Ddbproject.journal=<file> (also .size, .batch, .delay in ms, and .id,
+# the journal's key in the database, by default host:canonical path)
+java $JAVA_OPTS -cp lib/*:bin/ DBproject $DBNAME $PORT $USER
@@ -0,0 +1,9 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+HTTP_PORT=${HTTP_PORT:-8080}
+
+# Serves the menu operations over HTTP on localhost instead of the menu
+# Example: HTTP_PORT=8080 ./serve.sh
+java $JAVA_OPTS -cp lib/*:bin/ DBproject $DBNAME $PORT $USER --serve $HTTP_PORT
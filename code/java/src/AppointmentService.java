@@ -0,0 +1,323 @@
+/*
+ * Appointment service
+ * ===================
+ *
+ * The menu operations as an asynchronous API: every method takes a typed
+ * request and returns a CompletableFuture, so other code can embed the
+ * operations, compose them and keep many of them in flight.  Operations run
+ * on the service's executor (one virtual thread per operation on Java 21+,
+ * otherwise a cached thread pool, see RequestServer.newRequestExecutor());
+ * how many reach the database at once is bounded by the connection pool.
+ *
+ * Independent lookups of one operation run concurrently: a booking looks up
+ * the doctor's hospital on its own pooled connection while its transaction
+ * matches the patient and moves the appointment along (see
+ * Operations.makeAppointment).
+ *
+ * Futures fail with the SQLException of the operation, wrapped in a
+ * CompletionException; join(...) unwraps it.  The interactive menu of
+ * DBproject is a client of this class.
+ *
+ */
+
+import java.io.Writer;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * This class runs the menu operations asynchronously.
+ *
+ */
+
+public class AppointmentService{
+	/** option 1 */
+	public static final class NewDoctor{
+		public final String name;
+		public final String specialty;
+		public final int department;
+
+		public NewDoctor(String name, String specialty, int department) {
+			this.name = name;
+			this.specialty = specialty;
+			this.department = department;
+		}
+	}//end NewDoctor
+
+	/** option 2 */
+	public static final class NewPatient{
+		public final String name;
+		public final String gender;
+		public final int age;
+		public final String address;
+		public final int appointments;
+
+		public NewPatient(String name, String gender, int age, String address, int appointments) {
+			this.name = name;
+			this.gender = gender;
+			this.age = age;
+			this.address = address;
+			this.appointments = appointments;
+		}
+	}//end NewPatient
+
+	/** option 3 */
+	public static final class NewAppointment{
+		public final LocalDate date;
+		public final String timeSlot;
+		public final String status;
+
+		public NewAppointment(LocalDate date, String timeSlot, String status) {
+			this.date = date;
+			this.timeSlot = timeSlot;
+			this.status = status;
+		}
+	}//end NewAppointment
+
+	/** option 4 */
+	public static final class Booking{
+		public final String name;
+		public final String gender;
+		public final int age;
+		public final String address;
+		public final int doctor;
+		public final int appointment;
+
+		public Booking(String name, String gender, int age, String address, int doctor, int appointment) {
+			this.name = name;
+			this.gender = gender;
+			this.age = age;
+			this.address = address;
+			this.doctor = doctor;
+			this.appointment = appointment;
+		}
+	}//end Booking
+
+	/** option 5, one page after a previous one (null for the first) */
+	public static final class DoctorAppointments{
+		public final int doctor;
+		public final LocalDate start;
+		public final LocalDate end;
+		public final Operations.Page after;
+		public final int pageSize;
+
+		public DoctorAppointments(int doctor, LocalDate start, LocalDate end, Operations.Page after, int pageSize) {
+			this.doctor = doctor;
+			this.start = start;
+			this.end = end;
+			this.after = after;
+			this.pageSize = pageSize;
+		}
+	}//end DoctorAppointments
+
+	/** option 6, one page after a previous one (null for the first) */
+	public static final class AvailableAppointments{
+		public final String department;
+		public final LocalDate date;
+		public final Operations.Page after;
+		public final int pageSize;
+
+		public AvailableAppointments(String department, LocalDate date, Operations.Page after, int pageSize) {
+			this.department = department;
+			this.date = date;
+			this.after = after;
+			this.pageSize = pageSize;
+		}
+	}//end AvailableAppointments
+
+	/** options 7 (status null) and 8 */
+	public static final class DoctorCounts{
+		public final String status;
+		public final boolean includeArchive;
+
+		public DoctorCounts(String status, boolean includeArchive) {
+			this.status = status;
+			this.includeArchive = includeArchive;
+		}
+	}//end DoctorCounts
+
+	private final DBproject _esql;
+	private final ExecutorService _executor;
+
+	public AppointmentService(DBproject esql) {
+		this(esql, RequestServer.newRequestExecutor());
+	}
+
+	public AppointmentService(DBproject esql, ExecutorService executor) {
+		this._esql = esql;
+		this._executor = executor;
+	}
+
+	/*
+	 * runs an operation on the executor; its SQLException fails the future.
+	 */
+	private <T> CompletableFuture<T> submit(final Callable<T> operation) {
+		return CompletableFuture.supplyAsync(new Supplier<T>() {
+			public T get() {
+				try {
+					return operation.call();
+				} catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			}
+		}, _executor);
+	}
+
+	/**
+	 * Method to add a doctor (option 1).
+	 *
+	 * @return the ID of the new doctor
+	 */
+	public CompletableFuture<Integer> addDoctor(final NewDoctor request) {
+		return submit(new Callable<Integer>() {
+			public Integer call() throws SQLException {
+				return Operations.addDoctor(_esql, request.name, request.specialty, request.department);
+			}
+		});
+	}
+
+	/**
+	 * Method to add a patient (option 2).
+	 *
+	 * @return the ID of the new patient
+	 */
+	public CompletableFuture<Integer> addPatient(final NewPatient request) {
+		return submit(new Callable<Integer>() {
+			public Integer call() throws SQLException {
+				return Operations.addPatient(_esql, request.name, request.gender, request.age, request.address, request.appointments);
+			}
+		});
+	}
+
+	/**
+	 * Method to add an appointment slot (option 3).
+	 *
+	 * @return the ID of the new appointment
+	 */
+	public CompletableFuture<Integer> addAppointment(final NewAppointment request) {
+		return submit(new Callable<Integer>() {
+			public Integer call() throws SQLException {
+				return Operations.addAppointment(_esql, request.date, request.timeSlot, request.status);
+			}
+		});
+	}
+
+	/**
+	 * Method to book an appointment (option 4).  The doctor is looked up
+	 * concurrently with the booking transaction, unless the reference cache
+	 * knows their hospital.  With a booking journal the booking goes through
+	 * BookingPipeline instead.
+	 *
+	 * @return the status transition, e.g. "AV -> AC"
+	 */
+	public CompletableFuture<String> book(final Booking request) {
+		final BookingPipeline pipeline = _esql.getBookingPipeline();
+		if (pipeline != null) {
+			//journaled, then written with other bookings in one transaction
+			return submit(new Callable<BookingPipeline.Receipt>() {
+				public BookingPipeline.Receipt call() throws SQLException {
+					return pipeline.submit(request.doctor, request.appointment, request.name, request.gender, request.age, request.address);
+				}
+			}).thenCompose(new Function<BookingPipeline.Receipt, CompletableFuture<String>>() {
+				public CompletableFuture<String> apply(BookingPipeline.Receipt receipt) {
+					return receipt.outcome;
+				}
+			});
+		}
+		//a cached doctor is checked by makeAppointment itself
+		boolean cached = _esql.getReferenceCache().hospitalOfDoctor(request.doctor) >= 0;
+		final Future<Integer> hospital = cached ? null : submit(new Callable<Integer>() {
+			public Integer call() throws SQLException {
+				return Operations.hospitalOfDoctor(_esql, request.doctor);
+			}
+		});
+		return submit(new Callable<String>() {
+			public String call() throws SQLException {
+				return Operations.makeAppointment(_esql, request.name, request.gender, request.age, request.address,
+					request.doctor, request.appointment, hospital);
+			}
+		});
+	}
+
+	/**
+	 * Method to print one page of a doctor's active and available
+	 * appointments (option 5).
+	 *
+	 * @param out where the rows go; not written to after the future completes
+	 * @return the page, to ask for the next one
+	 */
+	public CompletableFuture<Operations.Page> listAppointmentsOfDoctor(final DoctorAppointments request, final Writer out) {
+		return submit(new Callable<Operations.Page>() {
+			public Operations.Page call() throws SQLException {
+				return Operations.listAppointmentsOfDoctorPage(_esql, out, request.doctor, request.start, request.end, request.after, request.pageSize);
+			}
+		});
+	}
+
+	/**
+	 * Method to print one page of a department's available appointments on
+	 * a day (option 6).
+	 *
+	 * @param out where the rows go; not written to after the future completes
+	 * @return the page, to ask for the next one
+	 */
+	public CompletableFuture<Operations.Page> listAvailableAppointmentsOfDepartment(final AvailableAppointments request, final Writer out) {
+		return submit(new Callable<Operations.Page>() {
+			public Operations.Page call() throws SQLException {
+				return Operations.listAvailableAppointmentsOfDepartmentPage(_esql, out, request.department, request.date, request.after, request.pageSize);
+			}
+		});
+	}
+
+	/**
+	 * Method to print the appointments of every status per doctor
+	 * (option 7) or, with a status, the patients per doctor (option 8).
+	 *
+	 * @param out where the rows go; not written to after the future completes
+	 * @return the number of rows printed
+	 */
+	public CompletableFuture<Integer> countPerDoctor(final DoctorCounts request, final Writer out) {
+		return submit(new Callable<Integer>() {
+			public Integer call() throws SQLException {
+				if (request.status == null) {
+					return Operations.listStatusNumberOfAppointmentsPerDoctor(_esql, out, request.includeArchive);
+				}
+				return Operations.findPatientsCountWithStatus(_esql, out, request.status, request.includeArchive);
+			}
+		});
+	}
+
+	/**
+	 * Method to wait for an operation, for callers that block anyway such as
+	 * the menu.
+	 *
+	 * @return the result of the operation
+	 * @throws java.sql.SQLException the failure of the operation
+	 */
+	public static <T> T join(Future<T> result) throws SQLException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the operation");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null ? e.getCause().getCause() : e.getCause();
+			if (cause instanceof SQLException) throw (SQLException) cause;
+			throw new SQLException(cause);
+		}
+	}//end join
+
+	/**
+	 * Method to stop taking operations; those in flight still complete.
+	 */
+	public void shutdown() {
+		_executor.shutdown();
+	}
+}//end AppointmentService
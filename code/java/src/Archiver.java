@@ -0,0 +1,128 @@
+/*
+ * Archiver
+ * ========
+ *
+ * Moves past (PA) appointments dated before a cutoff, with their
+ * has_appointment, searches and schedules rows, from the live tables into
+ * the archive tables of sql/archive.sql, where appointment_archive is
+ * partitioned by year.  The live tables and their indexes then only hold the
+ * recent history that options 5-8 read by default; options 7 and 8 add the
+ * archive back when -Ddbproject.includeArchive=true (or archive=1 on the
+ * server's reports).
+ *
+ * Rows move in batches of --batch appointments (default 1000), one
+ * transaction and one call of archive_appointments() each, so bookings only
+ * ever wait for one batch and an interrupted run loses nothing.  The cutoff
+ * is --before MM/dd/yyyy, or --keep-days days before today (default 365).
+ *
+ *   java -cp lib/*:bin/ Archiver <dbname> <port> <user> [--before <date> | --keep-days <n>] [--batch <n>]
+ *
+ */
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * This class moves past appointments into the archive in batches.
+ *
+ */
+
+public class Archiver{
+	public static final int DEFAULT_BATCH = 1000;
+	public static final int DEFAULT_KEEP_DAYS = 365;
+
+	static final String ARCHIVE = "SELECT archive_appointments(?, ?);";
+
+	private final DBproject _esql;
+	private final int _batch;
+	private long _archived = 0, _batches = 0;
+
+	public Archiver(DBproject esql, int batch) {
+		this._esql = esql;
+		this._batch = Math.max(1, batch);
+	}
+
+	/**
+	 * Method to archive one batch of past appointments dated before cutoff.
+	 *
+	 * @return the number of appointments archived, 0 when none are left
+	 * @throws java.sql.SQLException when the batch failed; it is rolled back
+	 */
+	public int archiveBatch(final LocalDate cutoff) throws SQLException {
+		QueryMetrics.Scope scope = _esql.getMetrics().begin("Archive");
+		try {
+			int moved = _esql.executeTransaction(new DBproject.Transaction<Integer>() {
+				public Integer run(ConnectionPool.PooledConnection pc) throws SQLException {
+					PreparedStatement stmt = pc.statements().prepare(ARCHIVE);
+					StatementCache.bind(stmt, Date.valueOf(cutoff), _batch);
+					ResultSet rs = stmt.executeQuery();
+					int n = rs.next() ? rs.getInt(1) : 0;
+					rs.close();
+					return n;
+				}
+			});
+			synchronized (this) {
+				_archived += moved;
+				if (moved > 0) ++_batches;
+			}
+			return moved;
+		} catch (SQLException e) {
+			scope.fail();
+			throw e;
+		} finally {
+			scope.close();
+		}
+	}//end archiveBatch
+
+	/**
+	 * Method to archive every past appointment dated before cutoff, batch
+	 * by batch.
+	 *
+	 * @return the number of appointments archived
+	 * @throws java.sql.SQLException when a batch failed; earlier batches stay archived
+	 */
+	public long archive(LocalDate cutoff) throws SQLException {
+		long total = 0;
+		for (int moved; (moved = archiveBatch(cutoff)) > 0; ) {
+			total += moved;
+			System.err.println(total + " appointments archived");
+		}
+		return total;
+	}
+
+	public synchronized String toString() {
+		return _archived + " appointments archived in " + _batches + " transactions";
+	}
+
+	public static void main (String[] args) throws Exception {
+		int batch = DEFAULT_BATCH;
+		LocalDate cutoff = LocalDate.now().minusDays(DEFAULT_KEEP_DAYS);
+		for (int i = 3; i < args.length; ++i) {
+			if (args[i].equals("--batch") && i + 1 < args.length) batch = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--before") && i + 1 < args.length) cutoff = LocalDate.parse(args[++i], DateTimeFormatter.ofPattern("MM/dd/yyyy"));
+			else if (args[i].equals("--keep-days") && i + 1 < args.length) cutoff = LocalDate.now().minusDays(Integer.parseInt(args[++i]));
+			else cutoff = null;
+		}
+		if (args.length < 3 || cutoff == null) {
+			System.err.println ("Usage: java [-classpath <classpath>] Archiver <dbname> <port> <user> [--before <MM/dd/yyyy> | --keep-days <n>] [--batch <n>]");
+			return;
+		}
+
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try {
+			Archiver archiver = new Archiver(esql, batch);
+			long start = System.nanoTime();
+			archiver.archive(cutoff);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.err.printf("Archived appointments before %s in %.2f s%n", cutoff, seconds);
+			System.err.println(archiver);
+		} finally {
+			esql.cleanup();
+		}
+	}//end main
+}//end Archiver
@@ -0,0 +1,480 @@
+/*
+ * Availability index
+ * ==================
+ *
+ * Answers "earliest available appointment of department X (or specialty Y)
+ * in the next N days" from memory.  Time slots such as 8:00-10:00 are
+ * mapped to the half hour they start in (slot 16 of 48), and every doctor
+ * has one 64-bit word per day of a window of -Ddbproject.availability.days
+ * days from today (default 366) with a bit set for every slot that has an
+ * available (AV) appointment of the doctor.  A search scans the words of
+ * the doctors in the group, in parallel for large groups, and stops every
+ * doctor's scan at the best day found so far.
+ *
+ * The index is loaded on first use and then kept current by the
+ * dbproject_appointments notifications of sql/notify.sql (the doctor and
+ * day of a change are read again, on a worker thread of its own) and by
+ * bookings made in this process.
+ * Doctors and departments added since the last load, and a new day, make
+ * it load again.  Appointments whose time slot cannot be parsed are left
+ * out.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * This class keeps per-doctor, per-day bitsets of available slots.
+ *
+ */
+
+public class AvailabilityIndex implements NotificationListener.Subscriber{
+	public static final int SLOT_MINUTES = 30;
+	public static final int SLOTS = 24 * 60 / SLOT_MINUTES;
+	//groups of at least this many doctors are scanned in parallel
+	private static final int PARALLEL_DOCTORS = 256;
+
+	static final String DOCTORS =
+		"SELECT D.doctor_ID, D.specialty, DE.name FROM Doctor D, Department DE WHERE D.did = DE.dept_ID;";
+	static final String AVAILABLE =
+		"SELECT HA.doctor_id, A.appnt_ID, A.adate, A.time_slot FROM Appointment A, has_appointment HA " +
+		"WHERE HA.appt_id = A.appnt_ID AND A.status = 'AV' AND A.adate >= ? AND A.adate < ?;";
+	static final String AVAILABLE_OF_DOCTOR_DAY =
+		"SELECT A.appnt_ID, A.time_slot FROM Appointment A, has_appointment HA " +
+		"WHERE HA.appt_id = A.appnt_ID AND HA.doctor_id = ? AND A.adate = ? AND A.status = 'AV';";
+
+	/**
+	 * An available appointment found by a search.
+	 */
+	public static final class Slot{
+		public final int doctor;
+		public final int appointment;
+		public final LocalDate date;
+		//start of the half hour the time slot starts in, as H:mm
+		public final String start;
+
+		Slot(int doctor, int appointment, LocalDate date, String start) {
+			this.doctor = doctor;
+			this.appointment = appointment;
+			this.date = date;
+			this.start = start;
+		}
+
+		public String toString() {
+			return doctor + "\t" + appointment + "\t" + date + "\t" + start;
+		}
+	}//end Slot
+
+	/*
+	 * one load: the doctors, their groups and their words.  The words and
+	 * the appointments behind them change in place.
+	 */
+	private static final class Snapshot{
+		final long baseDay;
+		final int days;
+		final int[] doctors;
+		final ReferenceCache.IntIntMap rows;
+		final Map<String, int[]> departments;
+		final Map<String, int[]> specialties;
+		final AtomicLongArray words;
+		//appointments per (row, day, slot) and the place of every appointment, guarded by the snapshot
+		final Map<Long, int[]> appointments = new HashMap<Long, int[]>();
+		final Map<Integer, Long> places = new HashMap<Integer, Long>();
+
+		Snapshot(long baseDay, int days, int[] doctors, Map<String, int[]> departments, Map<String, int[]> specialties) {
+			this.baseDay = baseDay;
+			this.days = days;
+			this.doctors = doctors;
+			this.rows = new ReferenceCache.IntIntMap(doctors.length);
+			for (int r = 0; r < doctors.length; ++r) rows.put(doctors[r], r);
+			this.departments = departments;
+			this.specialties = specialties;
+			this.words = new AtomicLongArray(doctors.length * days);
+		}
+
+		void add(int row, int day, int slot, int appointment) {
+			long place = ((long) row * days + day) * SLOTS + slot;
+			int[] ids = appointments.get(place);
+			if (ids == null) ids = new int[] { appointment };
+			else {
+				ids = Arrays.copyOf(ids, ids.length + 1);
+				ids[ids.length - 1] = appointment;
+			}
+			appointments.put(place, ids);
+			places.put(appointment, place);
+			setBit(row * days + day, slot, true);
+		}
+
+		void remove(int appointment) {
+			Long place = places.remove(appointment);
+			if (place == null) return;
+			int[] ids = appointments.get(place);
+			int n = 0;
+			for (int id : ids) if (id != appointment) ids[n++] = id;
+			if (n > 0) appointments.put(place, Arrays.copyOf(ids, n));
+			else {
+				appointments.remove(place);
+				setBit((int) (place / SLOTS), (int) (place % SLOTS), false);
+			}
+		}
+
+		void clearDay(int row, int day) {
+			for (int slot = 0; slot < SLOTS; ++slot) {
+				int[] ids = appointments.remove(((long) row * days + day) * SLOTS + slot);
+				if (ids != null) for (int id : ids) places.remove(id);
+			}
+			words.set(row * days + day, 0L);
+		}
+
+		private void setBit(int word, int slot, boolean on) {
+			long bit = 1L << slot, old;
+			do {
+				old = words.get(word);
+			} while (!words.compareAndSet(word, old, on ? old | bit : old & ~bit));
+		}
+	}//end Snapshot
+
+	private final DBproject _esql;
+	private final int _days;
+	private volatile Snapshot _snapshot = null;
+	private final Object _loadLock = new Object();
+	//notified changes, read back on the worker: "<date>|<doctor_ID>", or all when _pendingAll
+	private final ExecutorService _worker = NotificationListener.worker("availability-index-worker");
+	private final Set<String> _pending = new LinkedHashSet<String>();
+	private boolean _pendingAll = false, _queued = false;
+	private long _loads = 0, _searches = 0, _refreshes = 0, _unparsed = 0;
+
+	public AvailabilityIndex(DBproject esql, int days) {
+		this._esql = esql;
+		this._days = Math.max(1, days);
+	}
+
+	/**
+	 * Method to map a time slot such as 8:00-10:00 to the half hour it
+	 * starts in.
+	 *
+	 * @return the slot, or -1 when the time slot cannot be parsed
+	 */
+	public static int slotOf(String timeSlot) {
+		if (timeSlot == null) return -1;
+		int colon = timeSlot.indexOf(':');
+		if (colon < 1 || colon + 3 > timeSlot.length()) return -1;
+		try {
+			int hours = Integer.parseInt(timeSlot.substring(0, colon).trim());
+			int minutes = Integer.parseInt(timeSlot.substring(colon + 1, colon + 3));
+			if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59) return -1;
+			return (hours * 60 + minutes) / SLOT_MINUTES;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Method to load the doctors and their available appointments of the
+	 * window starting today.
+	 *
+	 * @throws java.sql.SQLException when the tables could not be read
+	 */
+	public void load() throws SQLException {
+		ConnectionPool.PooledConnection pc = _esql.getPool().borrow();
+		try {
+			load(pc);
+		} finally {
+			_esql.getPool().release(pc);
+		}
+	}
+
+	private void load(ConnectionPool.PooledConnection pc) throws SQLException {
+		synchronized (_loadLock) {
+			Connection conn = pc.connection();
+			long baseDay = LocalDate.now().toEpochDay();
+			List<Integer> doctors = new ArrayList<Integer>();
+			Map<String, List<Integer>> departments = new HashMap<String, List<Integer>>();
+			Map<String, List<Integer>> specialties = new HashMap<String, List<Integer>>();
+			Statement stmt = conn.createStatement();
+			try {
+				ResultSet rs = stmt.executeQuery(DOCTORS);
+				while (rs.next()) {
+					int row = doctors.size();
+					doctors.add(rs.getInt(1));
+					group(specialties, rs.getString(2), row);
+					group(departments, rs.getString(3), row);
+				}
+				rs.close();
+			} finally {
+				stmt.close();
+			}
+			int[] ids = new int[doctors.size()];
+			for (int i = 0; i < ids.length; ++i) ids[i] = doctors.get(i);
+			Snapshot s = new Snapshot(baseDay, _days, ids, rows(departments), rows(specialties));
+
+			PreparedStatement query = pc.statements().prepare(AVAILABLE);
+			StatementCache.bind(query, java.sql.Date.valueOf(LocalDate.ofEpochDay(baseDay)), java.sql.Date.valueOf(LocalDate.ofEpochDay(baseDay + _days)));
+			query.setFetchSize(Integer.getInteger("dbproject.fetchSize", 1000));
+			ResultSet rs = query.executeQuery();
+			long unparsed = 0;
+			synchronized (s) {
+				while (rs.next()) {
+					int row = s.rows.get(rs.getInt(1));
+					int slot = slotOf(rs.getString(4));
+					if (slot < 0) ++unparsed;
+					if (row < 0 || slot < 0) continue;
+					s.add(row, (int) (rs.getDate(3).toLocalDate().toEpochDay() - baseDay), slot, rs.getInt(2));
+				}
+			}
+			rs.close();
+			_snapshot = s;
+			synchronized (this) {
+				++_loads;
+				_unparsed = unparsed;
+			}
+		}
+	}//end load
+
+	private static void group(Map<String, List<Integer>> groups, String name, int row) {
+		if (name == null) return;
+		String key = name.trim();
+		List<Integer> rows = groups.get(key);
+		if (rows == null) groups.put(key, rows = new ArrayList<Integer>());
+		rows.add(row);
+	}
+
+	private static Map<String, int[]> rows(Map<String, List<Integer>> groups) {
+		Map<String, int[]> result = new HashMap<String, int[]>();
+		for (Map.Entry<String, List<Integer>> e : groups.entrySet()) {
+			int[] rows = new int[e.getValue().size()];
+			for (int i = 0; i < rows.length; ++i) rows[i] = e.getValue().get(i);
+			result.put(e.getKey(), rows);
+		}
+		return result;
+	}
+
+	//the current snapshot, loaded on first use and again once today has left its window start
+	private Snapshot snapshot() throws SQLException {
+		Snapshot s = _snapshot;
+		if (s == null || s.baseDay != LocalDate.now().toEpochDay()) {
+			synchronized (_loadLock) {
+				s = _snapshot;
+				if (s == null || s.baseDay != LocalDate.now().toEpochDay()) {
+					load();
+					s = _snapshot;
+				}
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Method to find the earliest available appointment of a department in
+	 * the days [from, from + days), as far as they are in the window.
+	 *
+	 * @return the appointment, or null when there is none
+	 * @throws java.sql.SQLException when the index could not be loaded
+	 */
+	public Slot earliestInDepartment(String department, LocalDate from, int days) throws SQLException {
+		Snapshot s = snapshot();
+		return earliest(s, department == null ? null : s.departments.get(department.trim()), from, days);
+	}
+
+	/**
+	 * Method to find the earliest available appointment with a doctor of a
+	 * specialty in the days [from, from + days).
+	 *
+	 * @return the appointment, or null when there is none
+	 * @throws java.sql.SQLException when the index could not be loaded
+	 */
+	public Slot earliestForSpecialty(String specialty, LocalDate from, int days) throws SQLException {
+		Snapshot s = snapshot();
+		return earliest(s, specialty == null ? null : s.specialties.get(specialty.trim()), from, days);
+	}
+
+	private Slot earliest(final Snapshot s, final int[] group, LocalDate from, int days) {
+		synchronized (this) {
+			++_searches;
+		}
+		if (group == null) return null;
+		final int lo = (int) Math.max(0, from.toEpochDay() - s.baseDay);
+		final int hi = (int) Math.min(s.days, from.toEpochDay() - s.baseDay + Math.max(0, days));
+		//retried when the appointment behind a bit was taken in the meantime
+		while (lo < hi) {
+			//best as day, slot, group index; Long.MAX_VALUE while none
+			final AtomicLong best = new AtomicLong(Long.MAX_VALUE);
+			IntStream doctors = IntStream.range(0, group.length);
+			if (group.length >= PARALLEL_DOCTORS) doctors = doctors.parallel();
+			doctors.forEach(new IntConsumer() {
+				public void accept(int i) {
+					int base = group[i] * s.days;
+					for (int day = lo; day < hi && day <= best.get() >>> 40; ++day) {
+						long word = s.words.get(base + day);
+						if (word == 0) continue;
+						long found = (long) day << 40 | (long) Long.numberOfTrailingZeros(word) << 32 | i;
+						for (long old = best.get(); found < old && !best.compareAndSet(old, found); old = best.get());
+						return;
+					}
+				}
+			});
+			long b = best.get();
+			if (b == Long.MAX_VALUE) return null;
+			int day = (int) (b >>> 40), slot = (int) (b >>> 32 & 0xFF), row = group[(int) b];
+			synchronized (s) {
+				int[] ids = s.appointments.get(((long) row * s.days + day) * SLOTS + slot);
+				if (ids != null) {
+					int minutes = slot * SLOT_MINUTES;
+					return new Slot(s.doctors[row], ids[0], LocalDate.ofEpochDay(s.baseDay + day), minutes / 60 + ":" + (minutes % 60 < 10 ? "0" : "") + minutes % 60);
+				}
+			}
+		}//end while
+		return null;
+	}//end earliest
+
+	/**
+	 * Method to take a booked appointment out of the index at once, before
+	 * its notification arrives.
+	 */
+	public void booked(int appointment) {
+		Snapshot s = _snapshot;
+		if (s == null) return;
+		synchronized (s) {
+			s.remove(appointment);
+		}
+	}
+
+	/*
+	 * reads the available appointments of one doctor on one day again.
+	 */
+	private void refresh(Snapshot s, int doctor, LocalDate date) throws SQLException {
+		int row = s.rows.get(doctor);
+		long day = date.toEpochDay() - s.baseDay;
+		if (day < 0 || day >= s.days) return;
+		if (row < 0) {
+			//a doctor added since the load
+			load();
+			return;
+		}
+		List<int[]> available = new ArrayList<int[]>();
+		ConnectionPool.PooledConnection pc = _esql.getPool().borrow();
+		try {
+			PreparedStatement stmt = pc.statements().prepare(AVAILABLE_OF_DOCTOR_DAY);
+			StatementCache.bind(stmt, doctor, java.sql.Date.valueOf(date));
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				int slot = slotOf(rs.getString(2));
+				if (slot >= 0) available.add(new int[] { rs.getInt(1), slot });
+			}
+			rs.close();
+		} finally {
+			_esql.getPool().release(pc);
+		}
+		synchronized (s) {
+			s.clearDay(row, (int) day);
+			for (int[] a : available) s.add(row, (int) day, a[1], a[0]);
+		}
+		synchronized (this) {
+			++_refreshes;
+		}
+	}//end refresh
+
+	/**
+	 * Reloads on connect when loaded, as changes may have been missed.
+	 */
+	public void connected(Connection conn) throws SQLException {
+		if (_snapshot != null) refreshLater(null);
+	}
+
+	public void disconnected() {
+		// reloaded on the next connected().
+	}
+
+	//'<date>|<doctor_ID>|<department name>', or '*' for any change
+	public void received(String payload) {
+		if (_snapshot == null) return;
+		String[] fields = payload.split("\\|", 3);
+		if (fields.length < 3) {
+			refreshLater(null);
+			return;
+		}
+		try {
+			Integer.parseInt(fields[1]);
+			LocalDate.parse(fields[0]);
+		} catch (RuntimeException e) {
+			System.err.println("WARNING: unexpected availability notification " + payload);
+			return;
+		}
+		refreshLater(fields[0] + "|" + fields[1]);
+	}
+
+	/*
+	 * queues a change, null for a full load, and the worker unless it is
+	 * queued already: a burst of changes is read back in one go, and the
+	 * same doctor and day only once.
+	 */
+	private void refreshLater(String change) {
+		synchronized (_pending) {
+			if (change == null) _pendingAll = true;
+			else _pending.add(change);
+			if (_queued) return;
+			_queued = true;
+		}
+		_worker.execute(new Runnable() {
+			public void run() {
+				refreshPending();
+			}
+		});
+	}
+
+	private void refreshPending() {
+		while (true) {
+			List<String> changes;
+			boolean all;
+			synchronized (_pending) {
+				if (!_pendingAll && _pending.isEmpty()) {
+					_queued = false;
+					return;
+				}
+				all = _pendingAll;
+				changes = new ArrayList<String>(_pending);
+				_pendingAll = false;
+				_pending.clear();
+			}
+			try {
+				//after any load in progress, on the snapshot it stores
+				synchronized (_loadLock) {
+					if (all) load();
+					else for (String change : changes) {
+						String[] fields = change.split("\\|");
+						refresh(_snapshot, Integer.parseInt(fields[1]), LocalDate.parse(fields[0]));
+					}
+				}
+			} catch (SQLException e) {
+				System.err.println("WARNING: availability index refresh failed: " + e.getMessage());
+			} catch (RuntimeException e) {
+				//the worker must go on, or nothing queued later would be read
+				System.err.println("WARNING: availability index refresh failed: " + e);
+			}
+		}//end while
+	}//end refreshPending
+
+	public synchronized String toString() {
+		Snapshot s = _snapshot;
+		if (s == null) return "Availability index: not loaded";
+		return "Availability index: " + s.doctors.length + " doctors x " + s.days + " days, loaded " + _loads + " times, "
+			+ _searches + " searches, " + _refreshes + " refreshes, " + _unparsed + " time slots not understood";
+	}
+}//end AvailabilityIndex
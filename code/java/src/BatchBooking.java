@@ -0,0 +1,453 @@
+/*
+ * Batch booking
+ * =============
+ *
+ * Books a file of appointment requests, e.g. a day's referrals from a
+ * clinic, without anyone at the menu.  Every line is one option 4 booking:
+ *
+ *   doctor_ID,appnt_ID,name,gender,age,address
+ *
+ * (the address is the rest of the line and may contain commas; blank lines,
+ * lines starting with # and a doctor_ID header are skipped).  Requests are
+ * booked in chunks of --chunk lines (default 500), one transaction each:
+ * patients, doctors and appointments of the whole chunk are looked up with
+ * one query apiece (doctors and known patients come from the client caches), the status transitions are applied in file order, and
+ * the new patients, status updates and searches/has_appointment rows are
+ * sent as JDBC batches.  The outcome of every line is written as
+ *
+ *   line,booked|past|failed,detail
+ *
+ * to stdout or --out, followed by the throughput on stderr.
+ *
+ *   java -cp lib/*:bin/ BatchBooking <dbname> <port> <user> [--chunk <n>] [--out <file>] <requests file>
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * This class books many appointment requests per round trip, with the
+ * same rules as Operations.makeAppointment.
+ *
+ */
+
+public class BatchBooking{
+	public static final int DEFAULT_CHUNK = 500;
+
+	//the identity key of each input row and its patient, NULL when there is none (see PatientIdentity)
+	private static final String FIND_PATIENTS =
+		"SELECT R.i, K.key, P.patient_ID FROM unnest(?::int[], ?::text[], ?::text[], ?::int[], ?::text[]) AS R(i, name, gtype, age, address) " +
+		"CROSS JOIN LATERAL patient_identity_key(R.name, R.gtype, R.age, R.address) AS K(key) " +
+		"LEFT JOIN Patient P ON P.identity_key = K.key;";
+	private static final String FIND_DOCTORS =
+		"SELECT D.doctor_ID, DE.hid FROM Doctor D, Department DE WHERE D.did = DE.dept_ID AND D.doctor_ID = ANY(?);";
+	//locked in key order so concurrent chunks cannot deadlock on them
+	private static final String LOCK_APPOINTMENTS =
+		"SELECT appnt_ID, status FROM Appointment WHERE appnt_ID = ANY(?) ORDER BY appnt_ID FOR UPDATE;";
+
+	/**
+	 * One line of the requests file.
+	 */
+	public static class Request{
+		public final long line;
+		int doctor;
+		int appointment;
+		String name;
+		String gender;
+		int age;
+		String address;
+		//why the line cannot be booked at all, null when it is well-formed
+		String error;
+
+		Request(long line) {
+			this.line = line;
+		}
+
+		String patientKey() {
+			return PatientIdentity.key(name, gender, age, address);
+		}
+	}//end Request
+
+	/**
+	 * Method to parse one line of the requests file.  Malformed lines are
+	 * returned with their error set.
+	 *
+	 * @param line the line number, for the outcome
+	 * @param text the line: doctor_ID,appnt_ID,name,gender,age,address
+	 * @return the request
+	 */
+	public static Request parse(int line, String text) {
+		String[] fields = text.split(",", 6);
+		try {
+			if (fields.length < 6) throw new SQLException("Expected doctor_ID,appnt_ID,name,gender,age,address");
+			try {
+				return request(line, Integer.parseInt(fields[0].trim()), Integer.parseInt(fields[1].trim()), fields[2].trim(),
+					fields[3].trim(), Integer.parseInt(fields[4].trim()), fields[5].trim());
+			} catch (NumberFormatException e) {
+				throw new SQLException("Invalid number: " + e.getMessage());
+			}
+		} catch (SQLException e) {
+			Request r = new Request(line);
+			r.error = e.getMessage();
+			return r;
+		}
+	}//end parse
+
+	/**
+	 * Method to make a request from its fields, e.g. as read back from
+	 * BookingJournal.  Invalid fields are returned with the error set.
+	 */
+	public static Request request(long line, int doctor, int appointment, String name, String gender, int age, String address) {
+		Request r = new Request(line);
+		r.doctor = doctor;
+		r.appointment = appointment;
+		r.name = name;
+		r.gender = gender;
+		r.age = age;
+		r.address = address;
+		try {
+			Operations.checkLength(r.name, 128, "Name");
+			Operations.checkGender(r.gender);
+			Operations.checkLength(r.address, 256, "Address");
+		} catch (SQLException e) {
+			r.error = e.getMessage();
+		}
+		return r;
+	}//end request
+
+	private final DBproject _esql;
+	private final int _chunkSize;
+	private int _booked = 0, _past = 0, _failed = 0, _chunks = 0;
+
+	public BatchBooking(DBproject esql, int chunkSize) {
+		this._esql = esql;
+		this._chunkSize = Math.max(1, chunkSize);
+	}
+
+	/**
+	 * Method to book every request of a file and write the outcome of each.
+	 *
+	 * @param in the requests
+	 * @param out receives one outcome line per request, in file order
+	 * @return the number of requests read
+	 * @throws java.io.IOException when reading or writing failed
+	 */
+	public int run(BufferedReader in, Writer out) throws IOException {
+		List<Request> chunk = new ArrayList<Request>(_chunkSize);
+		int count = 0, lineNumber = 0;
+		String line;
+		while ((line = in.readLine()) != null) {
+			++lineNumber;
+			String text = line.trim();
+			if (text.isEmpty() || text.startsWith("#") || text.regionMatches(true, 0, "doctor_ID", 0, 9)) continue;
+			chunk.add(parse(lineNumber, text));
+			++count;
+			if (chunk.size() == _chunkSize) {
+				write(chunk, book(chunk), out);
+				chunk.clear();
+			}
+		}//end while
+		if (!chunk.isEmpty()) write(chunk, book(chunk), out);
+		out.flush();
+		return count;
+	}//end run
+
+	private void write(List<Request> chunk, String[] outcomes, Writer out) throws IOException {
+		for (int i = 0; i < chunk.size(); ++i) {
+			String outcome = outcomes[i];
+			out.write(chunk.get(i).line + "," + outcome.replace('\n', ' ') + "\n");
+			if (outcome.startsWith("booked")) ++_booked;
+			else if (outcome.startsWith("past")) ++_past;
+			else ++_failed;
+		}
+	}
+
+	/**
+	 * Method to book one chunk of requests in one transaction.  A request
+	 * naming an unknown doctor or appointment fails on its own; an error
+	 * of the transaction itself fails the whole chunk.
+	 *
+	 * @param chunk the requests, booked in this order
+	 * @return the outcome of every request: "booked,AV -> AC", "past,PA" or "failed,<reason>"
+	 */
+	public String[] book(final List<Request> chunk) {
+		++_chunks;
+		QueryMetrics.Scope scope = _esql.getMetrics().begin("BatchBooking");
+		final PatientIdentity.Lookups lookups = _esql.getPatientIdentity().lookups();
+		try {
+			String[] outcomes = _esql.executeTransaction(new DBproject.Transaction<String[]>() {
+				public String[] run(ConnectionPool.PooledConnection pc) throws SQLException {
+					lookups.clear();
+					return book(pc, chunk, lookups);
+				}
+			});
+			_esql.getPatientIdentity().remember(lookups);
+			booked(chunk, outcomes);
+			return outcomes;
+		} catch (SQLException e) {
+			scope.fail();
+			String[] outcomes = new String[chunk.size()];
+			for (int i = 0; i < outcomes.length; ++i)
+				outcomes[i] = "failed," + (chunk.get(i).error != null ? chunk.get(i).error : e.getMessage());
+			return outcomes;
+		} finally {
+			scope.close();
+		}
+	}//end book
+
+	//books a chunk inside the caller's transaction, also used by BookingPipeline;
+	//the patient IDs go to lookups, to be remembered once committed
+	String[] book(ConnectionPool.PooledConnection pc, List<Request> chunk, PatientIdentity.Lookups lookups) throws SQLException {
+		Connection conn = pc.connection();
+		String[] outcomes = new String[chunk.size()];
+		//doctors with their hospital, from the reference cache where possible
+		Map<Integer, Integer> hospitals = new HashMap<Integer, Integer>();
+		TreeSet<Integer> doctorIDs = new TreeSet<Integer>();
+		TreeSet<Integer> appointmentIDs = new TreeSet<Integer>();
+		for (Request r : chunk) {
+			if (r.error != null) continue;
+			appointmentIDs.add(r.appointment);
+			if (hospitals.containsKey(r.doctor)) continue;
+			int hid = _esql.getReferenceCache().hospitalOfDoctor(r.doctor);
+			if (hid >= 0) hospitals.put(r.doctor, hid);
+			else doctorIDs.add(r.doctor);
+		}
+		PreparedStatement stmt;
+		ResultSet rs;
+		if (!doctorIDs.isEmpty()) {
+			stmt = pc.statements().prepare(FIND_DOCTORS);
+			StatementCache.bind(stmt, conn.createArrayOf("int4", doctorIDs.toArray()));
+			rs = stmt.executeQuery();
+			while (rs.next()) hospitals.put(rs.getInt(1), rs.getInt(2));
+			rs.close();
+		}
+
+		//then the appointments under lock
+		Map<Integer, String> statuses = new HashMap<Integer, String>();
+		stmt = pc.statements().prepare(LOCK_APPOINTMENTS);
+		StatementCache.bind(stmt, conn.createArrayOf("int4", appointmentIDs.toArray()));
+		rs = stmt.executeQuery();
+		while (rs.next()) statuses.put(rs.getInt(1), rs.getString(2));
+		rs.close();
+
+		for (int i = 0; i < outcomes.length; ++i) {
+			Request r = chunk.get(i);
+			if (r.error != null) outcomes[i] = "failed," + r.error;
+			else if (!hospitals.containsKey(r.doctor)) outcomes[i] = "failed,Invalid doctor";
+			else if (!statuses.containsKey(r.appointment)) outcomes[i] = "failed,Invalid appointment";
+		}
+		Map<String, Integer> patients = resolvePatients(pc, chunk, outcomes, lookups);
+
+		//transitions in file order: AV -> AC -> WL, as makeAppointment
+		Map<Integer, String> changed = new TreeMap<Integer, String>();
+		List<Integer> booked = new ArrayList<Integer>();
+		PreparedStatement searches = pc.statements().prepare("INSERT INTO searches VALUES (?,?,?) ON CONFLICT DO NOTHING;");
+		PreparedStatement links = pc.statements().prepare("INSERT INTO has_appointment VALUES (?,?) ON CONFLICT DO NOTHING;");
+		for (int i = 0; i < outcomes.length; ++i) {
+			if (outcomes[i] != null) continue;
+			Request r = chunk.get(i);
+			Integer pid = patients.get(r.patientKey());
+			if (pid == null) {
+				outcomes[i] = "failed,Patient could neither be found nor added";
+				continue;
+			}
+			String oldStatus = statuses.get(r.appointment);
+			String newStatus = Operations.AVAILABLE.equals(oldStatus) ? Operations.ACTIVE
+				: Operations.ACTIVE.equals(oldStatus) ? Operations.WAITLISTED : null;
+			if (newStatus != null) {
+				statuses.put(r.appointment, newStatus);
+				changed.put(r.appointment, newStatus);
+			}
+			if (Operations.PAST.equals(oldStatus)) {
+				outcomes[i] = "past," + oldStatus;
+				continue;
+			}
+			StatementCache.bind(searches, hospitals.get(r.doctor), pid, r.appointment);
+			searches.addBatch();
+			StatementCache.bind(links, r.appointment, r.doctor);
+			links.addBatch();
+			booked.add(pid);
+			outcomes[i] = "booked," + (newStatus == null ? oldStatus : oldStatus + " -> " + newStatus);
+		}//end for
+
+		if (!changed.isEmpty()) {
+			stmt = pc.statements().prepare("UPDATE Appointment SET status = ? WHERE appnt_ID = ?;");
+			for (Map.Entry<Integer, String> e : changed.entrySet()) {
+				StatementCache.bind(stmt, e.getValue(), e.getKey());
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		}
+		if (!booked.isEmpty()) {
+			int[] searched = searches.executeBatch();
+			int[] linked = links.executeBatch();
+			//a booking already recorded in both tables is not counted again;
+			//SUCCESS_NO_INFO counts as a new row
+			TreeMap<Integer, Integer> bookings = new TreeMap<Integer, Integer>();
+			for (int i = 0; i < booked.size(); ++i) {
+				if (searched[i] == 0 && linked[i] == 0) continue;
+				Integer n = bookings.get(booked.get(i));
+				bookings.put(booked.get(i), n == null ? 1 : n + 1);
+			}
+			//patients in key order, like the appointments
+			stmt = pc.statements().prepare("UPDATE Patient SET number_of_appts = COALESCE(number_of_appts, 0) + ? WHERE patient_ID = ?;");
+			for (Map.Entry<Integer, Integer> e : bookings.entrySet()) {
+				StatementCache.bind(stmt, e.getValue(), e.getKey());
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		}
+		else {
+			searches.clearBatch();
+			links.clearBatch();
+		}
+		return outcomes;
+	}//end book
+
+	//takes the appointments that stopped being available out of the availability index, once committed
+	void booked(List<Request> chunk, String[] outcomes) {
+		for (int i = 0; i < outcomes.length; ++i)
+			if (outcomes[i].startsWith("booked," + Operations.AVAILABLE)) _esql.getAvailability().booked(chunk.get(i).appointment);
+	}
+
+	/*
+	 * finds the patient of every request still to be booked, in the
+	 * identity cache or else with one query, and inserts the missing ones as
+	 * one batch, once per identity key: details spelled differently may be
+	 * the same new patient.  Returns the patient ID per patient key.
+	 */
+	private Map<String, Integer> resolvePatients(ConnectionPool.PooledConnection pc, List<Request> chunk, String[] outcomes,
+			PatientIdentity.Lookups lookups) throws SQLException {
+		PatientIdentity identity = _esql.getPatientIdentity();
+		Map<String, Integer> patients = new HashMap<String, Integer>();
+		LinkedHashMap<String, Request> wanted = new LinkedHashMap<String, Request>();
+		for (int i = 0; i < outcomes.length; ++i) {
+			if (outcomes[i] != null) continue;
+			String key = chunk.get(i).patientKey();
+			if (patients.containsKey(key) || wanted.containsKey(key)) continue;
+			Integer pid = identity.cached(key);
+			if (pid != null) patients.put(key, pid);
+			else wanted.put(key, chunk.get(i));
+		}
+		if (wanted.isEmpty()) return patients;
+
+		List<Request> keys = new ArrayList<Request>(wanted.values());
+		Object[] index = new Object[keys.size()], names = new Object[keys.size()], genders = new Object[keys.size()],
+			ages = new Object[keys.size()], addresses = new Object[keys.size()];
+		for (int i = 0; i < keys.size(); ++i) {
+			Request r = keys.get(i);
+			index[i] = i;
+			names[i] = r.name;
+			genders[i] = r.gender;
+			ages[i] = r.age;
+			addresses[i] = r.address;
+		}
+		Connection conn = pc.connection();
+		PreparedStatement stmt = pc.statements().prepare(FIND_PATIENTS);
+		StatementCache.bind(stmt, conn.createArrayOf("int4", index), conn.createArrayOf("text", names), conn.createArrayOf("text", genders),
+			conn.createArrayOf("int4", ages), conn.createArrayOf("text", addresses));
+		ResultSet rs = stmt.executeQuery();
+		//the first request of every missing identity key, and the identity key of every missing patient key
+		LinkedHashMap<String, Request> missing = new LinkedHashMap<String, Request>();
+		Map<String, String> identities = new HashMap<String, String>();
+		while (rs.next()) {
+			Request r = keys.get(rs.getInt(1));
+			int pid = rs.getInt(3);
+			if (!rs.wasNull()) {
+				patients.put(r.patientKey(), pid);
+				lookups.found(r.patientKey(), pid);
+				continue;
+			}
+			identities.put(r.patientKey(), rs.getString(2));
+			if (!missing.containsKey(rs.getString(2))) missing.put(rs.getString(2), r);
+		}
+		rs.close();
+		if (missing.isEmpty()) return patients;
+
+		stmt = pc.statements().prepare(PatientIdentity.INSERT);
+		int[] ids = new int[missing.size()];
+		int n = 0;
+		for (Request r : missing.values()) {
+			ids[n] = _esql.patientIDs().next(pc);
+			StatementCache.bind(stmt, ids[n++], r.name, r.gender, r.age, r.address);
+			stmt.addBatch();
+		}
+		int[] inserted = stmt.executeBatch();
+		Map<String, Integer> added = new HashMap<String, Integer>();
+		int created = 0;
+		n = 0;
+		for (Map.Entry<String, Request> e : missing.entrySet()) {
+			Request r = e.getValue();
+			//added by a concurrent booking in the meantime: look it up again
+			if (inserted[n] == 0) added.put(e.getKey(), identity.resolve(pc, lookups, r.name, r.gender, r.age, r.address));
+			else {
+				added.put(e.getKey(), ids[n]);
+				++created;
+			}
+			++n;
+		}
+		for (Map.Entry<String, String> e : identities.entrySet()) {
+			int pid = added.get(e.getValue());
+			patients.put(e.getKey(), pid);
+			lookups.found(e.getKey(), pid);
+		}
+		identity.created(created);
+		return patients;
+	}//end resolvePatients
+
+	public String toString() {
+		return _booked + " booked, " + _past + " past, " + _failed + " failed in " + _chunks + " transactions";
+	}
+
+	public static void main (String[] args) throws Exception {
+		int chunk = DEFAULT_CHUNK;
+		String outFile = null, inFile = null;
+		for (int i = 3; i < args.length; ++i) {
+			if (args[i].equals("--chunk") && i + 1 < args.length) chunk = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--out") && i + 1 < args.length) outFile = args[++i];
+			else inFile = args[i];
+		}
+		if (args.length < 4 || inFile == null) {
+			System.err.println ("Usage: java [-classpath <classpath>] BatchBooking <dbname> <port> <user> [--chunk <n>] [--out <file>] <requests file>");
+			return;
+		}
+
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(inFile), StandardCharsets.UTF_8));
+		Writer out = new BufferedWriter(outFile == null ? new OutputStreamWriter(System.out)
+			: new OutputStreamWriter(new FileOutputStream(outFile), StandardCharsets.UTF_8), 1 << 16);
+		try {
+			BatchBooking batch = new BatchBooking(esql, chunk);
+			long start = System.nanoTime();
+			int requests = batch.run(in, out);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.err.printf("%d requests in %.2f s: %.1f requests/s%n", requests, seconds, requests / Math.max(seconds, 1e-9));
+			System.err.println(batch);
+		} finally {
+			in.close();
+			if (outFile != null) out.close();
+			else out.flush();
+			esql.cleanup();
+		}
+	}//end main
+}//end BatchBooking
@@ -0,0 +1,402 @@
+/*
+ * Data-access benchmarks
+ * ======================
+ *
+ * Measures the throughput and latency of the DBproject data-access paths
+ * (executeQuery, executeQueryAndReturnResult, executeQueryAndPrintResult
+ * into a null sink) and of the eight menu operations called through
+ * Operations, against a running database.  Each benchmark runs warmup
+ * iterations first and then timed measurement iterations, from one or more
+ * threads, and reports ops/s with its deviation across iterations and the
+ * latency percentiles of the measured calls.
+ *
+ * Operations 1-4 write to the database, so point it at a scratch database;
+ * --scale recreates and loads one with DataGenerator first.  Results can be
+ * saved with --csv and compared with a saved run with --baseline, which
+ * flags (and exits 1 on) any benchmark more than --tolerance percent slower.
+ * After the writing operations the per-doctor counters of sql/counters.sql
+ * are checked against a recount, and any drift also makes it exit 1.
+ *
+ *   java -cp lib/*:bin/ Benchmark <dbname> <port> <user> [options]
+ *
+ *   --scale <sf> [--seed <n>] [--sql <dir>]   load generated data first
+ *   --warmup <n> --iterations <n> --time <ms> iteration counts and length
+ *   --threads <n>                             concurrent callers
+ *   --only <name,...>                         subset of the benchmarks
+ *   --csv <file> --baseline <file> --tolerance <percent>
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class is a small JMH-style harness for the data-access paths.
+ *
+ */
+
+public class Benchmark{
+	/**
+	 * One benchmarked call.  The returned value is consumed so the call
+	 * cannot be optimized away.
+	 */
+	public interface Operation{
+		long run(Random random) throws Exception;
+	}
+
+	/**
+	 * Writer discarding everything, to measure printing without a terminal.
+	 */
+	public static class NullWriter extends Writer{
+		public void write(char[] buf, int off, int len) { }
+		public void write(String str, int off, int len) { }
+		public void write(int c) { }
+		public void flush() { }
+		public void close() { }
+	}
+
+	//rows per range query of the raw data-access benchmarks
+	private static final int RANGE = 100;
+	private static final String[] STATUSES = { Operations.PAST, Operations.ACTIVE, Operations.AVAILABLE, Operations.WAITLISTED };
+
+	private final DBproject _esql;
+	private final Writer _null = new NullWriter();
+	private final Map<String, Operation> _operations = new LinkedHashMap<String, Operation>();
+	private volatile long _sink;
+
+	//samples of existing rows the operations draw their parameters from
+	private ColumnarResult _doctors;
+	private ColumnarResult _departments;
+	private ColumnarResult _patients;
+	private ColumnarResult _slots;
+	private int _maxAppointment;
+	private LocalDate _firstDate;
+	private int _days;
+
+	public Benchmark(DBproject esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to sample the parameters and register the benchmarks.
+	 */
+	public void setUp() throws SQLException {
+		_doctors = _esql.executeQueryAndReturnColumns("SELECT doctor_ID FROM Doctor LIMIT 10000;");
+		_departments = _esql.executeQueryAndReturnColumns("SELECT dept_ID, name FROM Department LIMIT 10000;");
+		_patients = _esql.executeQueryAndReturnColumns("SELECT name, gtype, age, address FROM Patient WHERE address IS NOT NULL LIMIT 10000;");
+		_slots = _esql.executeQueryAndReturnColumns("SELECT HA.doctor_id, HA.appt_id FROM has_appointment HA, Appointment A WHERE HA.appt_id = A.appnt_ID AND A.status IN ('AV', 'AC') LIMIT 10000;");
+		ColumnarResult range = _esql.executeQueryAndReturnColumns("SELECT MAX(appnt_ID) AS max_id, MIN(adate) AS first, MAX(adate) AS last FROM Appointment;");
+		if (_doctors.isEmpty() || _departments.isEmpty() || _patients.isEmpty() || _slots.isEmpty() || range.isNull(0, 0))
+			throw new SQLException("Benchmarks need doctors, departments, patients and AV/AC appointments linked to a doctor");
+		_maxAppointment = range.getInt(0, 0);
+		_firstDate = range.getDate(0, 1);
+		_days = Math.max(1, range.getEpochDay(0, 2) - range.getEpochDay(0, 1) + 1);
+
+		final String rangeQuery = "SELECT appnt_ID, adate, time_slot, status FROM Appointment WHERE appnt_ID BETWEEN ? AND ?;";
+		_operations.put("executeQuery", new Operation() {
+			public long run(Random r) throws SQLException {
+				int from = r.nextInt(_maxAppointment + 1);
+				return _esql.executeQuery(rangeQuery, from, from + RANGE - 1);
+			}
+		});
+		_operations.put("executeQueryAndReturnResult", new Operation() {
+			public long run(Random r) throws SQLException {
+				int from = r.nextInt(_maxAppointment + 1);
+				return _esql.executeQueryAndReturnResult(rangeQuery, from, from + RANGE - 1).size();
+			}
+		});
+		_operations.put("executeQueryAndPrintResult", new Operation() {
+			public long run(Random r) throws SQLException {
+				int from = r.nextInt(_maxAppointment + 1);
+				return _esql.executeQueryAndPrintResult(_null, rangeQuery, from, from + RANGE - 1);
+			}
+		});
+		_operations.put("1.AddDoctor", new Operation() {
+			public long run(Random r) throws SQLException {
+				return Operations.addDoctor(_esql, "Bench Doctor", "Benchmarker", _departments.getInt(r.nextInt(_departments.size()), 0));
+			}
+		});
+		_operations.put("2.AddPatient", new Operation() {
+			public long run(Random r) throws SQLException {
+				return Operations.addPatient(_esql, "Bench Patient " + r.nextInt(1000000), r.nextBoolean() ? "F" : "M", 1 + r.nextInt(90), "1 Bench Street", 0);
+			}
+		});
+		_operations.put("3.AddAppointment", new Operation() {
+			public long run(Random r) throws SQLException {
+				return Operations.addAppointment(_esql, randomDate(r), "8:00-10:00", Operations.AVAILABLE);
+			}
+		});
+		_operations.put("4.MakeAppointment", new Operation() {
+			public long run(Random r) throws SQLException {
+				int p = r.nextInt(_patients.size());
+				int slot = r.nextInt(_slots.size());
+				return Operations.makeAppointment(_esql, _patients.getString(p, 0), _patients.getString(p, 1), _patients.getInt(p, 2), _patients.getString(p, 3),
+					_slots.getInt(slot, 0), _slots.getInt(slot, 1)).length();
+			}
+		});
+		_operations.put("5.ListAppointmentsOfDoctor", new Operation() {
+			public long run(Random r) throws SQLException {
+				LocalDate start = randomDate(r);
+				return Operations.listAppointmentsOfDoctor(_esql, _null, _doctors.getInt(r.nextInt(_doctors.size()), 0), start, start.plusDays(30));
+			}
+		});
+		_operations.put("6.ListAvailableAppointmentsOfDepartment", new Operation() {
+			public long run(Random r) throws SQLException {
+				return Operations.listAvailableAppointmentsOfDepartment(_esql, _null, _departments.getString(r.nextInt(_departments.size()), 1), randomDate(r));
+			}
+		});
+		_operations.put("7.ListStatusNumberOfAppointmentsPerDoctor", new Operation() {
+			public long run(Random r) throws SQLException {
+				return Operations.listStatusNumberOfAppointmentsPerDoctor(_esql, _null);
+			}
+		});
+		_operations.put("8.FindPatientsCountWithStatus", new Operation() {
+			public long run(Random r) throws SQLException {
+				return Operations.findPatientsCountWithStatus(_esql, _null, STATUSES[r.nextInt(STATUSES.length)]);
+			}
+		});
+	}//end setUp
+
+	private LocalDate randomDate(Random r) {
+		return _firstDate.plusDays(r.nextInt(_days));
+	}
+
+	public Map<String, Operation> getOperations() {
+		return _operations;
+	}
+
+	/**
+	 * Result of one benchmark: throughput per measurement iteration and the
+	 * latencies of all measured calls.
+	 */
+	public static class Result{
+		public final String name;
+		public final double[] throughput;
+		public final LatencyHistogram latency = new LatencyHistogram();
+		public long errors;
+
+		Result(String name, int iterations) {
+			this.name = name;
+			this.throughput = new double[iterations];
+		}
+
+		public double getMean() {
+			double sum = 0;
+			for (double t : throughput) sum += t;
+			return sum / throughput.length;
+		}
+
+		public double getDeviation() {
+			double mean = getMean(), sum = 0;
+			for (double t : throughput) sum += (t - mean) * (t - mean);
+			return throughput.length < 2 ? 0 : Math.sqrt(sum / (throughput.length - 1));
+		}
+	}//end Result
+
+	/**
+	 * Method to run one benchmark.
+	 *
+	 * @param name benchmark name, for the result
+	 * @param op the call to measure
+	 * @param threads number of concurrent callers
+	 * @param warmups number of unmeasured iterations
+	 * @param iterations number of measured iterations
+	 * @param millis length of each iteration
+	 * @return the measured throughput and latencies
+	 */
+	public Result measure(String name, final Operation op, int threads, int warmups, int iterations, final long millis) throws Exception {
+		final Result result = new Result(name, iterations);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int it = -warmups; it < iterations; ++it) {
+				final boolean measured = it >= 0;
+				final long deadline = System.nanoTime() + millis * 1000000L;
+				List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+				for (int t = 0; t < threads; ++t) {
+					final Random random = new Random(31L * (it + warmups) + t);
+					futures.add(executor.submit(new Callable<long[]>() {
+						public long[] call() {
+							LatencyHistogram latency = new LatencyHistogram();
+							long ops = 0, errors = 0, sink = 0;
+							long now = System.nanoTime();
+							while (now < deadline) {
+								long begin = now;
+								try {
+									sink += op.run(random);
+								} catch (Exception e) {
+									++errors;
+								}
+								now = System.nanoTime();
+								latency.record(now - begin);
+								++ops;
+							}
+							_sink += sink;
+							if (measured) {
+								synchronized (result) {
+									result.latency.add(latency);
+								}
+							}
+							return new long[]{ ops, errors };
+						}
+					}));
+				}//end for
+				long ops = 0;
+				for (Future<long[]> f : futures) {
+					long[] counts = f.get();
+					ops += counts[0];
+					if (measured) result.errors += counts[1];
+				}
+				if (measured) result.throughput[it] = ops * 1000.0 / millis;
+			}//end for
+		} finally {
+			executor.shutdown();
+		}
+		return result;
+	}//end measure
+
+	private static void print(Result r, Map<String, Double> baseline, double tolerance, boolean[] regressed) {
+		String change = "";
+		Double base = baseline.get(r.name);
+		if (base != null && base > 0) {
+			double pct = (r.getMean() - base) * 100 / base;
+			change = String.format("%+7.1f%%", pct);
+			if (pct < -tolerance) {
+				change += " REGRESSION";
+				regressed[0] = true;
+			}
+		}
+		System.out.printf("%-42s %10.1f +- %8.1f ops/s  p50 %8.3f ms  p99 %8.3f ms  max %8.3f ms  errors %d %s%n",
+			r.name, r.getMean(), r.getDeviation(), r.latency.getPercentile(50) / 1e6, r.latency.getPercentile(99) / 1e6,
+			r.latency.getMax() / 1e6, r.errors, change);
+	}
+
+	private static Map<String, Double> readBaseline(File file) throws IOException {
+		Map<String, Double> baseline = new HashMap<String, Double>();
+		if (file == null) return baseline;
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line = in.readLine(); //header
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(",");
+				if (fields.length > 2) baseline.put(fields[0], Double.parseDouble(fields[2]));
+			}
+		} finally {
+			in.close();
+		}
+		return baseline;
+	}
+
+	/**
+	 * Method to check that the counters the triggers of sql/counters.sql
+	 * keep still equal a recount, printing the first rows that differ.
+	 *
+	 * @return true when they are equal
+	 * @throws java.sql.SQLException when the check could not run
+	 */
+	public static boolean checkCounters(DBproject esql) throws SQLException {
+		List<List<String>> drift = esql.executeQueryAndReturnResult("SELECT * FROM doctor_status_counts_drift() LIMIT 20;");
+		for (List<String> row : drift)
+			System.out.printf("COUNTER DRIFT doctor %s status %s%s: kept %s, recounted %s%n", row.get(0), row.get(1),
+				row.get(2) == null ? "" : " patient " + row.get(2), row.get(3), row.get(4));
+		return drift.isEmpty();
+	}
+
+	public static void main (String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println ("Usage: java [-classpath <classpath>] Benchmark <dbname> <port> <user> [--scale <sf>] [--seed <n>] [--sql <dir>]");
+			System.err.println ("       [--warmup <n>] [--iterations <n>] [--time <ms>] [--threads <n>] [--only <name,...>] [--csv <file>] [--baseline <file>] [--tolerance <percent>]");
+			return;
+		}
+		double scale = 0;
+		long seed = 42;
+		File sqlDir = new File("../sql");
+		int warmups = 3, iterations = 5, threads = 1;
+		long millis = 2000;
+		List<String> only = null;
+		File csv = null, baselineFile = null;
+		double tolerance = 10;
+		for (int i = 3; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			if (args[i].equals("--scale")) scale = Double.parseDouble(value);
+			else if (args[i].equals("--seed")) seed = Long.parseLong(value);
+			else if (args[i].equals("--sql")) sqlDir = new File(value);
+			else if (args[i].equals("--warmup")) warmups = Integer.parseInt(value);
+			else if (args[i].equals("--iterations")) iterations = Math.max(1, Integer.parseInt(value));
+			else if (args[i].equals("--time")) millis = Long.parseLong(value);
+			else if (args[i].equals("--threads")) threads = Math.max(1, Integer.parseInt(value));
+			else if (args[i].equals("--only")) only = Arrays.asList(value.split(","));
+			else if (args[i].equals("--csv")) csv = new File(value);
+			else if (args[i].equals("--baseline")) baselineFile = new File(value);
+			else if (args[i].equals("--tolerance")) tolerance = Double.parseDouble(value);
+			else throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		Map<String, Double> baseline = readBaseline(baselineFile);
+
+		Class.forName("org.postgresql.Driver");
+		System.setProperty("dbproject.pool.max", String.valueOf(Math.max(Math.max(threads, BulkLoader.TABLES.length), Integer.getInteger("dbproject.pool.max", 8))));
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		boolean[] regressed = { false };
+		try {
+			if (scale > 0) {
+				DataGenerator generator = new DataGenerator(scale, seed, Runtime.getRuntime().availableProcessors());
+				try {
+					BulkLoader loader = new BulkLoader(esql, sqlDir);
+					SqlScript.run(esql, new File(sqlDir, "create.sql"));
+					loader.loadAll(generator.source());
+					loader.finish();
+					esql.executeUpdate("ANALYZE");
+				} finally {
+					generator.shutdown();
+				}
+			}
+
+			Benchmark bench = new Benchmark(esql);
+			bench.setUp();
+			System.out.printf("%d warmup and %d measurement iterations of %d ms, %d thread(s)%n", warmups, iterations, millis, threads);
+			PrintWriter results = csv == null ? null : new PrintWriter(new FileWriter(csv));
+			boolean wrote = false;
+			try {
+				if (results != null) results.println("benchmark,threads,ops_per_sec,deviation,p50_ms,p99_ms,max_ms,errors");
+				for (Map.Entry<String, Operation> e : bench.getOperations().entrySet()) {
+					if (only != null && !only.contains(e.getKey())) continue;
+					wrote |= e.getKey().matches("[1-4]\\..*");
+					Result r = bench.measure(e.getKey(), e.getValue(), threads, warmups, iterations, millis);
+					print(r, baseline, tolerance, regressed);
+					if (results != null)
+						results.printf(Locale.ROOT, "%s,%d,%.1f,%.1f,%.3f,%.3f,%.3f,%d%n", r.name, threads, r.getMean(), r.getDeviation(),
+							r.latency.getPercentile(50) / 1e6, r.latency.getPercentile(99) / 1e6, r.latency.getMax() / 1e6, r.errors);
+				}
+			} finally {
+				if (results != null) results.close();
+			}
+			if (wrote && !checkCounters(esql)) {
+				System.out.println("The per-doctor counters drifted from the data");
+				regressed[0] = true;
+			}
+		} catch (SQLException e) {
+			System.err.println("ERROR: " + e.getMessage());
+		} finally {
+			esql.cleanup();
+		}
+		if (regressed[0]) System.exit(1);
+	}//end main
+}//end Benchmark
@@ -0,0 +1,211 @@
+/*
+ * Booking journal
+ * ===============
+ *
+ * A write-ahead journal of accepted bookings in a memory-mapped file (see
+ * BookingPipeline).  The file starts with a header
+ *
+ *   magic int, start int (offset of the first record not yet written to
+ *   Postgres), last sequence number long
+ *
+ * followed by the records, each
+ *
+ *   length int, crc32 int, sequence long, payload (length bytes)
+ *
+ * and a zero length after the last one.  A record counts once force()
+ * returned for its sequence number; force() is shared, so one msync makes
+ * every record appended before it durable (group commit on the local disk).
+ * Records are released once Postgres has them, and when every record is
+ * released the journal starts over at the beginning of the file.  Appends
+ * wait while the file is full.  Recovery reads the records from start up to
+ * the first one that is cut short, fails its checksum or goes back in
+ * sequence.
+ *
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * This class appends records to a memory-mapped journal file.
+ *
+ */
+
+public class BookingJournal implements Closeable{
+	private static final int MAGIC = 0x424B4A31;
+	private static final int HEADER = 16;
+	private static final int RECORD_HEADER = 16;
+
+	/**
+	 * One record: its sequence number, payload and where it ends.
+	 */
+	public static final class Entry{
+		public final long seq;
+		public final byte[] payload;
+		final int end;
+
+		Entry(long seq, byte[] payload, int end) {
+			this.seq = seq;
+			this.payload = payload;
+			this.end = end;
+		}
+	}//end Entry
+
+	private final RandomAccessFile _file;
+	private final MappedByteBuffer _map;
+	private final Object _forceLock = new Object();
+	private int _start, _end;
+	private long _lastSeq;
+	private volatile long _forcedSeq;
+	private long _appends = 0, _forces = 0;
+
+	/**
+	 * Method to open or create a journal file of the given size.
+	 *
+	 * @throws java.io.IOException when the file could not be mapped
+	 */
+	public BookingJournal(File file, int size) throws IOException {
+		this._file = new RandomAccessFile(file, "rw");
+		this._map = _file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, HEADER + RECORD_HEADER + 1024));
+		if (_map.getInt(0) != MAGIC) {
+			_map.putInt(4, HEADER);
+			_map.putLong(8, 0L);
+			_map.putInt(HEADER, 0);
+			_map.putInt(0, MAGIC);
+		}
+		this._start = _map.getInt(4);
+		this._lastSeq = _map.getLong(8);
+		this._end = _start;
+	}
+
+	/**
+	 * Method to read back the records not yet released, e.g. after a crash.
+	 * Must be called before the first append.
+	 *
+	 * @return the records in sequence order
+	 */
+	public synchronized List<Entry> recover() {
+		List<Entry> entries = new ArrayList<Entry>();
+		int offset = _start;
+		long seq = -1;
+		while (offset + RECORD_HEADER <= _map.capacity()) {
+			int length = _map.getInt(offset);
+			if (length <= 0 || offset + RECORD_HEADER + length > _map.capacity()) break;
+			long recordSeq = _map.getLong(offset + 8);
+			byte[] payload = new byte[length];
+			for (int i = 0; i < length; ++i)
+				payload[i] = _map.get(offset + RECORD_HEADER + i);
+			if (recordSeq <= seq || (int) crc(recordSeq, payload) != _map.getInt(offset + 4)) break;
+			seq = recordSeq;
+			offset += RECORD_HEADER + length;
+			entries.add(new Entry(seq, payload, offset));
+		}//end while
+		_end = offset;
+		if (_end + 4 <= _map.capacity()) _map.putInt(_end, 0);
+		_lastSeq = Math.max(_lastSeq, seq);
+		_forcedSeq = _lastSeq;
+		return entries;
+	}//end recover
+
+	private static long crc(long seq, byte[] payload) {
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < 8; ++i)
+			crc.update((int) (seq >>> (56 - 8 * i)));
+		crc.update(payload, 0, payload.length);
+		return crc.getValue();
+	}
+
+	/**
+	 * Method to get the highest sequence number the journal has handed
+	 * out, released records included.
+	 */
+	public synchronized long lastSeq() {
+		return _lastSeq;
+	}
+
+	/**
+	 * Method to append a record, waiting while the file is full.  The
+	 * record is durable once force() returned for it.
+	 *
+	 * @return the record
+	 * @throws java.io.IOException when the record can never fit the file
+	 */
+	public synchronized Entry append(byte[] payload) throws IOException {
+		int size = RECORD_HEADER + payload.length;
+		if (HEADER + size + 4 > _map.capacity()) {
+			throw new IOException("Journal record of " + payload.length + " bytes exceeds the journal size");
+		}
+		while (_end + size + 4 > _map.capacity()) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for journal space");
+			}
+		}//end while
+		long seq = ++_lastSeq;
+		int offset = _end;
+		_map.putLong(offset + 8, seq);
+		_map.putInt(offset + 4, (int) crc(seq, payload));
+		for (int i = 0; i < payload.length; ++i)
+			_map.put(offset + RECORD_HEADER + i, payload[i]);
+		_map.putInt(offset + size, 0);
+		//the length last, so a record is only seen once complete
+		_map.putInt(offset, payload.length);
+		_end = offset + size;
+		++_appends;
+		return new Entry(seq, payload, _end);
+	}//end append
+
+	/**
+	 * Method to make every record up to seq durable.  Callers arriving
+	 * while another one forces wait for it and usually find their record
+	 * already covered.
+	 */
+	public void force(long seq) {
+		if (_forcedSeq >= seq) return;
+		synchronized (_forceLock) {
+			if (_forcedSeq >= seq) return;
+			long target;
+			synchronized (this) {
+				target = _lastSeq;
+				++_forces;
+			}
+			_map.force();
+			_forcedSeq = target;
+		}
+	}//end force
+
+	/**
+	 * Method to release the records up to entry once Postgres has them.
+	 */
+	public synchronized void release(Entry entry) {
+		_start = entry.end;
+		if (_start == _end) {
+			//nothing left: start over at the front
+			_start = _end = HEADER;
+			_map.putInt(HEADER, 0);
+		}
+		_map.putLong(8, entry.seq);
+		_map.putInt(4, _start);
+		notifyAll();
+	}
+
+	public void close() throws IOException {
+		synchronized (_forceLock) {
+			_map.force();
+		}
+		_file.close();
+	}
+
+	public synchronized String toString() {
+		return "Booking journal: " + (_end - _start) + " bytes pending, " + _appends + " records, " + _forces + " forces";
+	}
+}//end BookingJournal
@@ -0,0 +1,93 @@
+/*
+ * Concurrent booking load driver
+ * ==============================
+ *
+ * Runs MakeAppointment from many threads at once against a loaded database
+ * and reports bookings per second, latency percentiles and how many
+ * transactions had to be retried.  The bookings are real: appointment
+ * statuses move along AV -> AC -> WL and number_of_appts grows, so run it on
+ * a scratch copy of the data.
+ *
+ *   java -cp lib/*:bin/ BookingLoad <dbname> <port> <user> [threads] [bookings]
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class measures booking throughput under concurrent load.  Every
+ * thread books random (existing patient, doctor, linked appointment)
+ * combinations; the pool is sized to the number of threads.
+ *
+ */
+
+public class BookingLoad{
+	public static void main (String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println ("Usage: java [-classpath <classpath>] BookingLoad <dbname> <port> <user> [threads] [bookings]");
+			return;
+		}
+		final int threads = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+		final int bookings = args.length > 4 ? Math.max(1, Integer.parseInt(args[4])) : 2000;
+
+		Class.forName("org.postgresql.Driver");
+		System.setProperty("dbproject.pool.max", String.valueOf(Math.max(threads, Integer.getInteger("dbproject.pool.max", 8))));
+		final DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try {
+			final ColumnarResult patients = esql.executeQueryAndReturnColumns("SELECT name, gtype, age, address FROM Patient WHERE address IS NOT NULL;");
+			final ColumnarResult slots = esql.executeQueryAndReturnColumns("SELECT HA.doctor_id, HA.appt_id FROM has_appointment HA, Appointment A WHERE HA.appt_id = A.appnt_ID AND A.status IN ('AV', 'AC');");
+			if (patients.isEmpty() || slots.isEmpty()) {
+				System.err.println("Need at least one patient and one AV/AC appointment linked to a doctor");
+				return;
+			}
+
+			final AtomicInteger next = new AtomicInteger();
+			final AtomicInteger failures = new AtomicInteger();
+			final long[] latencies = new long[bookings];
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			long start = System.nanoTime();
+			for (int t = 0; t < threads; ++t) {
+				final Random random = new Random(t);
+				futures.add(executor.submit(new Runnable() {
+					public void run() {
+						int i;
+						while ((i = next.getAndIncrement()) < bookings) {
+							int p = random.nextInt(patients.size());
+							int slot = random.nextInt(slots.size());
+							long begin = System.nanoTime();
+							try {
+								Operations.makeAppointment(esql, patients.getString(p, 0), patients.getString(p, 1), patients.getInt(p, 2), patients.getString(p, 3),
+									slots.getInt(slot, 0), slots.getInt(slot, 1));
+							} catch (SQLException e) {
+								failures.incrementAndGet();
+							}
+							latencies[i] = System.nanoTime() - begin;
+						}//end while
+					}
+				}));
+			}//end for
+			for (Future<?> f : futures)
+				f.get();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			executor.shutdown();
+
+			Arrays.sort(latencies);
+			System.out.printf("%d bookings on %d threads in %.2f s: %.1f bookings/s%n", bookings, threads, seconds, bookings / seconds);
+			System.out.printf("latency ms: p50 %.2f  p99 %.2f  max %.2f%n",
+				latencies[bookings / 2] / 1e6, latencies[Math.min(bookings - 1, (int) (bookings * 0.99))] / 1e6, latencies[bookings - 1] / 1e6);
+			System.out.println("failed: " + failures.get() + ", transaction retries: " + esql.getTransactionRetries());
+			System.out.println(esql.getPool());
+		} finally {
+			esql.cleanup();
+		}
+	}//end main
+}//end BookingLoad
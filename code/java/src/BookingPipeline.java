@@ -0,0 +1,403 @@
+/*
+ * Booking pipeline
+ * ================
+ *
+ * Group commit for bookings.  A booking is accepted once it is appended to
+ * the memory-mapped BookingJournal and the journal is forced, which many
+ * concurrent bookings share.  A background writer then books the accepted
+ * requests in batches of up to -Ddbproject.journal.batch (default 500), one
+ * Postgres transaction each, with the rules and statements of BatchBooking;
+ * it waits up to -Ddbproject.journal.delay ms (default 5) for a batch to
+ * fill.  Every transaction also records the sequence number of its last
+ * request in booking_journal (sql/journal.sql), so on restart the requests
+ * the journal still holds are booked again only when Postgres does not have
+ * them.  The checkpoint is kept under the journal's ID,
+ * -Ddbproject.journal.id, by default the host name and the journal's
+ * canonical path, so no two journals share one; a journal that is behind
+ * its checkpoint, e.g. a replaced file, is not started.  A batch that fails as a whole, e.g. while the database is down, is
+ * retried.  When it keeps failing for a reason other than the database
+ * being unreachable or busy, its requests are booked one at a time, and a
+ * request the database keeps rejecting fails on its own, so one bad request
+ * cannot stop the pipeline.  Accepted requests are otherwise never dropped.
+ * stop() waits a bounded time for the writer, then interrupts it; what it
+ * did not write stays in the journal for the next start.
+ *
+ * Enabled with -Ddbproject.journal=<file> (and .size, default 64 MB).
+ *
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This class accepts bookings into a journal and writes them to the
+ * database in batches.
+ *
+ */
+
+public class BookingPipeline{
+	static final String CHECKPOINT = "SELECT seq FROM booking_journal WHERE journal = ?;";
+	static final String SAVE_CHECKPOINT =
+		"INSERT INTO booking_journal VALUES (?, ?) ON CONFLICT (journal) DO UPDATE SET seq = EXCLUDED.seq;";
+	//failures of a whole batch before its requests are booked one at a time
+	static final int BATCH_ATTEMPTS = 3;
+	//how long stop() waits for the writer before interrupting it, and after
+	static final long STOP_MILLIS = 10000;
+
+	/**
+	 * An accepted booking: its journal sequence number, and its status
+	 * transition once it is in the database.
+	 */
+	public static final class Receipt{
+		public final long seq;
+		public final CompletableFuture<String> outcome;
+
+		Receipt(long seq, CompletableFuture<String> outcome) {
+			this.seq = seq;
+			this.outcome = outcome;
+		}
+	}//end Receipt
+
+	private static final class Pending{
+		final BookingJournal.Entry entry;
+		final BatchBooking.Request request;
+		final CompletableFuture<String> outcome = new CompletableFuture<String>();
+
+		Pending(BookingJournal.Entry entry, BatchBooking.Request request) {
+			this.entry = entry;
+			this.request = request;
+		}
+	}//end Pending
+
+	private final DBproject _esql;
+	private final BookingJournal _journal;
+	//the key of the journal's checkpoint in booking_journal
+	private final String _id;
+	private final BatchBooking _batch;
+	private final int _maxBatch;
+	private final long _delayMillis;
+	private final ArrayDeque<Pending> _queue = new ArrayDeque<Pending>();
+	private final Object _appendLock = new Object();
+	private Thread _writer = null;
+	private boolean _stopping = false;
+	//submits between their check of _stopping and their place in the queue
+	private int _submitting = 0;
+	private long _accepted = 0, _replayed = 0, _written = 0, _transactions = 0, _retries = 0;
+
+	/**
+	 * @param id the key of the journal's checkpoint, unique among all
+	 *        journals writing to the database; null for the host name and
+	 *        the journal's canonical path
+	 */
+	public BookingPipeline(DBproject esql, File journal, String id, int size, int maxBatch, long delayMillis) throws IOException {
+		this._esql = esql;
+		this._journal = new BookingJournal(journal, size);
+		this._id = id != null ? id : InetAddress.getLocalHost().getHostName() + ":" + journal.getCanonicalPath();
+		this._batch = new BatchBooking(esql, maxBatch);
+		this._maxBatch = Math.max(1, maxBatch);
+		this._delayMillis = Math.max(0, delayMillis);
+	}
+
+	/**
+	 * Method to queue the requests the journal still holds that the
+	 * database does not have, and start the writer.
+	 *
+	 * @throws java.sql.SQLException when the checkpoint could not be read
+	 * @throws java.io.IOException when a journal record could not be
+	 *         decoded, or the journal is behind its checkpoint
+	 */
+	public synchronized void start() throws SQLException, IOException {
+		if (_writer != null) return;
+		List<List<String>> result = _esql.executeQueryAndReturnResult(CHECKPOINT, _id);
+		long checkpoint = result.isEmpty() ? 0 : Long.parseLong(result.get(0).get(0));
+		List<BookingJournal.Entry> entries = _journal.recover();
+		//its records up to the checkpoint would be skipped as already booked
+		if (checkpoint > _journal.lastSeq()) {
+			throw new IOException("Journal " + _id + " ends at record " + _journal.lastSeq() + " but the database has it up to "
+				+ checkpoint + "; it was replaced or shares its ID with another journal");
+		}
+		for (BookingJournal.Entry entry : entries) {
+			if (entry.seq <= checkpoint) {
+				_journal.release(entry);
+				continue;
+			}
+			_queue.add(new Pending(entry, decode(entry)));
+			++_replayed;
+		}
+		_writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "booking-journal-writer");
+		_writer.setDaemon(true);
+		_writer.start();
+	}//end start
+
+	private static byte[] encode(int doctor, int appointment, String name, String gender, int age, String address) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + name.length() + address.length());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(doctor);
+		out.writeInt(appointment);
+		out.writeUTF(name);
+		out.writeUTF(gender);
+		out.writeInt(age);
+		out.writeUTF(address);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static BatchBooking.Request decode(BookingJournal.Entry entry) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry.payload));
+		int doctor = in.readInt();
+		int appointment = in.readInt();
+		String name = in.readUTF();
+		String gender = in.readUTF();
+		int age = in.readInt();
+		return BatchBooking.request(entry.seq, doctor, appointment, name, gender, age, in.readUTF());
+	}
+
+	/**
+	 * Method to accept a booking (option 4).  It returns once the request
+	 * is durable in the journal; the receipt's outcome completes with the
+	 * status transition once the request is in the database, or fails with
+	 * the reason it could not be booked.
+	 *
+	 * @return the receipt of the request
+	 * @throws java.sql.SQLException when the input is invalid or the journal failed
+	 */
+	public Receipt submit(int doctor, int appointment, String name, String gender, int age, String address) throws SQLException {
+		BatchBooking.Request request = BatchBooking.request(0, doctor, appointment, name, gender, age, address);
+		if (request.error != null) {
+			throw new SQLException(request.error);
+		}
+		synchronized (this) {
+			if (_stopping) throw new SQLException("Bookings are no longer accepted", "57P03");
+			++_submitting;
+		}
+		Pending pending = null;
+		try {
+			byte[] payload = encode(doctor, appointment, name, gender, age, address);
+			//queued in journal order, so a batch's checkpoint covers every request before it
+			synchronized (_appendLock) {
+				pending = new Pending(_journal.append(payload), request);
+				synchronized (this) {
+					_queue.add(pending);
+					++_accepted;
+				}
+			}
+		} catch (IOException e) {
+			//58030 io_error: not the client's fault
+			throw new SQLException("Failed to journal the booking: " + e.getMessage(), "58030", e);
+		} finally {
+			synchronized (this) {
+				--_submitting;
+				notifyAll();
+			}
+		}
+		_journal.force(pending.entry.seq);
+		return new Receipt(pending.entry.seq, pending.outcome);
+	}//end submit
+
+	/*
+	 * the writer: takes up to a batch of requests in journal order, books
+	 * them with the checkpoint in one transaction, then completes them.
+	 */
+	private void write() {
+		List<Pending> batch = new ArrayList<Pending>(_maxBatch);
+		while (true) {
+			synchronized (this) {
+				try {
+					while (_queue.isEmpty() && (!_stopping || _submitting > 0)) wait();
+					if (_queue.isEmpty()) return;
+					//a short wait lets a batch fill while bookings keep arriving
+					long deadline = System.currentTimeMillis() + _delayMillis;
+					for (long left = _delayMillis; _queue.size() < _maxBatch && !_stopping && left > 0; left = deadline - System.currentTimeMillis())
+						wait(left);
+				} catch (InterruptedException e) {
+					return;
+				}
+				batch.clear();
+				for (Pending p : _queue) {
+					if (batch.size() == _maxBatch) break;
+					batch.add(p);
+				}
+			}
+			//the journal force of the last one covers the whole batch
+			_journal.force(batch.get(batch.size() - 1).entry.seq);
+			String[] outcomes = book(batch);
+			if (outcomes == null) {
+				//interrupted: the batch stays in the journal and is booked on restart
+				for (Pending p : batch) p.outcome.completeExceptionally(new SQLException("Interrupted; the booking is kept in the journal"));
+				return;
+			}
+			List<BatchBooking.Request> requests = new ArrayList<BatchBooking.Request>(batch.size());
+			for (Pending p : batch) requests.add(p.request);
+			_batch.booked(requests, outcomes);
+			synchronized (this) {
+				for (int i = 0; i < batch.size(); ++i) _queue.poll();
+				_written += batch.size();
+				++_transactions;
+			}
+			_journal.release(batch.get(batch.size() - 1).entry);
+			for (int i = 0; i < batch.size(); ++i)
+				complete(batch.get(i).outcome, outcomes[i]);
+		}//end while
+	}//end write
+
+	//the outcome of every request, or null when interrupted before the batch got through
+	private String[] book(List<Pending> batch) {
+		List<BatchBooking.Request> requests = new ArrayList<BatchBooking.Request>(batch.size());
+		for (Pending p : batch) requests.add(p.request);
+		long last = batch.get(batch.size() - 1).entry.seq;
+		for (int attempt = 1; ; ++attempt) {
+			try {
+				return transaction(requests, last);
+			} catch (SQLException e) {
+				//while the database is unreachable or busy, one at a time would not help
+				if (attempt >= BATCH_ATTEMPTS && !retriable(e)) {
+					System.err.println("WARNING: booking journal batch failed " + attempt + " times, booking its requests one at a time: " + e.getMessage());
+					return bookEach(batch);
+				}
+				System.err.println("WARNING: booking journal batch failed, retrying: " + e.getMessage());
+			}
+			if (!backoff(attempt)) return null;
+		}//end for
+	}//end book
+
+	/*
+	 * books the requests of a failing batch one per transaction, in journal
+	 * order.  A request that keeps failing for a reason of its own gets that
+	 * reason as its outcome, and the checkpoint moves past it.
+	 */
+	private String[] bookEach(List<Pending> batch) {
+		String[] outcomes = new String[batch.size()];
+		for (int i = 0; i < outcomes.length; ++i) {
+			Pending p = batch.get(i);
+			for (int attempt = 1; outcomes[i] == null; ++attempt) {
+				try {
+					outcomes[i] = transaction(Collections.singletonList(p.request), p.entry.seq)[0];
+					break;
+				} catch (SQLException e) {
+					if (attempt >= BATCH_ATTEMPTS && !retriable(e)) {
+						System.err.println("WARNING: booking journal record " + p.entry.seq + " failed: " + e.getMessage());
+						try {
+							transaction(Collections.<BatchBooking.Request>emptyList(), p.entry.seq);
+							outcomes[i] = "failed," + e.getMessage();
+							break;
+						} catch (SQLException checkpoint) {
+							// retried below.
+						}
+					}
+				}
+				if (!backoff(attempt)) return null;
+			}//end for
+		}//end for
+		return outcomes;
+	}//end bookEach
+
+	/*
+	 * books the requests and saves the checkpoint in one transaction.
+	 */
+	private String[] transaction(final List<BatchBooking.Request> requests, final long checkpoint) throws SQLException {
+		QueryMetrics.Scope scope = _esql.getMetrics().begin("BookingPipeline");
+		final PatientIdentity.Lookups lookups = _esql.getPatientIdentity().lookups();
+		try {
+			String[] outcomes = _esql.executeTransaction(new DBproject.Transaction<String[]>() {
+				public String[] run(ConnectionPool.PooledConnection pc) throws SQLException {
+					lookups.clear();
+					String[] outcomes = requests.isEmpty() ? new String[0] : _batch.book(pc, requests, lookups);
+					PreparedStatement stmt = pc.statements().prepare(SAVE_CHECKPOINT);
+					StatementCache.bind(stmt, _id, checkpoint);
+					stmt.executeUpdate();
+					return outcomes;
+				}
+			});
+			_esql.getPatientIdentity().remember(lookups);
+			return outcomes;
+		} catch (SQLException e) {
+			scope.fail();
+			throw e;
+		} finally {
+			scope.close();
+		}
+	}//end transaction
+
+	//whether the database may take the same statement later: it was unreachable, busy or shutting down
+	static boolean retriable(SQLException e) {
+		String state = e.getSQLState();
+		return state == null || state.startsWith("08") || state.startsWith("40") || state.startsWith("53")
+			|| state.startsWith("55") || state.startsWith("57") || state.startsWith("58");
+	}
+
+	//waits before the next attempt; false when interrupted
+	private boolean backoff(int attempt) {
+		synchronized (this) {
+			++_retries;
+		}
+		try {
+			Thread.sleep(Math.min(100L << Math.min(attempt - 1, 6), 5000));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	//BatchBooking's "booked,AV -> AC", "past,PA" or "failed,<reason>" as makeAppointment reports them
+	private static void complete(CompletableFuture<String> outcome, String result) {
+		int comma = result.indexOf(',');
+		String kind = result.substring(0, comma), detail = result.substring(comma + 1);
+		if (kind.equals("failed")) outcome.completeExceptionally(new SQLException(detail));
+		else outcome.complete(detail);
+	}
+
+	/**
+	 * Method to stop accepting bookings, write the accepted ones and close
+	 * the journal.
+	 */
+	public void stop() {
+		Thread writer;
+		synchronized (this) {
+			_stopping = true;
+			notifyAll();
+			writer = _writer;
+		}
+		try {
+			if (writer != null) {
+				writer.join(STOP_MILLIS);
+				if (writer.isAlive()) {
+					//e.g. retrying while the database is down: what is left is booked on restart
+					writer.interrupt();
+					writer.join(STOP_MILLIS);
+					if (writer.isAlive()) System.err.println("WARNING: booking journal writer did not stop");
+				}
+			}
+			synchronized (this) {
+				for (Pending p : _queue)
+					p.outcome.completeExceptionally(new SQLException("Stopped; the booking is kept in the journal"));
+			}
+			_journal.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			System.err.println("WARNING: failed to close the booking journal: " + e.getMessage());
+		}
+	}//end stop
+
+	public synchronized String toString() {
+		return "Booking pipeline: " + _accepted + " accepted, " + _replayed + " replayed, " + _written + " written in "
+			+ _transactions + " transactions, " + _retries + " retries, " + _queue.size() + " pending; " + _journal;
+	}
+}//end BookingPipeline
@@ -0,0 +1,230 @@
+/*
+ * Parallel bulk loader
+ * ====================
+ *
+ * Streams the CSV files of a data directory (code/data/ by default) to the
+ * database over the JDBC connection with COPY ... FROM STDIN, so the client
+ * and the server do not have to share a filesystem.  Tables are loaded in
+ * parallel as soon as the tables they reference are loaded, and the
+ * indexes of sql/index.sql are only built once all data is in.
+ *
+ *   java -cp lib/*:bin/ BulkLoader <dbname> <port> <user> [--create] [--sql <dir>] [<data dir>]
+ *
+ *   --create   drop and recreate the tables with sql/create.sql first
+ *   --sql      directory of the SQL scripts (default ../sql)
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.postgresql.PGConnection;
+
+/**
+ * This class loads the ten tables of the hospital schema with the driver's
+ * CopyManager, respecting foreign key order, and reports rows/sec per table.
+ *
+ */
+
+public class BulkLoader{
+	/**
+	 * One table of the schema: its CSV file, COPY column list and the
+	 * tables its foreign keys reference.
+	 */
+	public static class Table{
+		public final String name;
+		public final String file;
+		public final String columns;
+		public final String[] references;
+
+		Table(String name, String file, String columns, String... references) {
+			this.name = name;
+			this.file = file;
+			this.columns = columns;
+			this.references = references;
+		}
+	}//end Table
+
+	//every table of sql/create.sql with the tables it references
+	public static final Table[] TABLES = {
+		new Table("Hospital", "hospital.csv", "hospital_ID, name"),
+		new Table("Patient", "patient.csv", "patient_ID, name, gtype, age, address, number_of_appts"),
+		new Table("Appointment", "appointment.csv", "appnt_ID, adate, time_slot, status"),
+		new Table("Department", "department.csv", "dept_ID, name, hid", "Hospital"),
+		new Table("Staff", "staff.csv", "staff_ID, name, hid", "Hospital"),
+		new Table("Doctor", "doctor.csv", "doctor_ID, name, specialty, did", "Department"),
+		new Table("request_maintenance", "request_maintenance.csv", "patient_per_hour, dept_name, time_slot, did, sid", "Doctor", "Staff"),
+		new Table("searches", "searches.csv", "hid, pid, aid", "Hospital", "Patient", "Appointment"),
+		new Table("schedules", "schedules.csv", "appt_id, staff_id", "Appointment", "Staff"),
+		new Table("has_appointment", "has_appointment.csv", "appt_id, doctor_id", "Appointment", "Doctor")
+	};
+
+	//scripts run once the data is in: deferred indexes, sequence seeding, patient identity keys, change notification triggers, report counters, archive tables, booking journal checkpoints
+	public static final String[] POST_LOAD_SCRIPTS = { "index.sql", "sequences.sql", "identity.sql", "notify.sql", "counters.sql", "archive.sql", "journal.sql" };
+
+	/**
+	 * Source of the rows of one table in the COPY text format
+	 * (comma delimited, as in code/data/).
+	 */
+	public interface Source{
+		Reader open(Table table) throws IOException;
+	}
+
+	private final DBproject _esql;
+	private final File _sqlDir;
+
+	public BulkLoader(DBproject esql, File sqlDir) {
+		this._esql = esql;
+		this._sqlDir = sqlDir;
+	}
+
+	/**
+	 * Method to stream one table into the database with COPY FROM STDIN on
+	 * a pooled connection.
+	 *
+	 * @param table the table to load
+	 * @param data the rows in COPY text format, closed when done
+	 * @return the number of rows copied
+	 * @throws java.sql.SQLException when the COPY failed
+	 */
+	public long copy(Table table, Reader data) throws SQLException, IOException {
+		ConnectionPool.PooledConnection pc = _esql.getPool().borrow();
+		try {
+			String sql = "COPY " + table.name + " (" + table.columns + ") FROM STDIN WITH DELIMITER ','";
+			//row triggers (sql/identity.sql, notify.sql, counters.sql) skip bulk sessions; the post-load scripts catch up once
+			Statement stmt = pc.connection().createStatement();
+			try {
+				stmt.execute("SET dbproject.bulk = on");
+				return pc.connection().unwrap(PGConnection.class).getCopyAPI().copyIn(sql, data, 1 << 16);
+			} finally {
+				stmt.execute("RESET dbproject.bulk");
+				stmt.close();
+			}
+		} finally {
+			data.close();
+			_esql.getPool().release(pc);
+		}
+	}//end copy
+
+	/**
+	 * Method to drop the indexes of sql/index.sql so they are not
+	 * maintained row by row during the load.
+	 */
+	public void dropIndexes() throws SQLException, IOException {
+		for (String index : SqlScript.indexNames(SqlScript.read(new File(_sqlDir, "index.sql"))))
+			_esql.executeUpdate("DROP INDEX IF EXISTS " + index);
+	}
+
+	/**
+	 * Method to run the post-load scripts (index creation, sequence seeding).
+	 */
+	public void finish() throws SQLException, IOException {
+		for (String script : POST_LOAD_SCRIPTS) {
+			long start = System.nanoTime();
+			SqlScript.run(_esql, new File(_sqlDir, script));
+			System.out.printf("%-20s %.2f s%n", script, (System.nanoTime() - start) / 1e9);
+		}
+	}
+
+	/**
+	 * Method to load every table from a source.  Each table starts as soon
+	 * as the tables it references are loaded; independent tables run in
+	 * parallel on their own connections.
+	 *
+	 * @param source where the rows of each table come from
+	 * @throws java.sql.SQLException when a table failed to load
+	 */
+	public void loadAll(final Source source) throws SQLException, IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(TABLES.length);
+		Map<String, CompletableFuture<Void>> done = new HashMap<String, CompletableFuture<Void>>();
+		try {
+			long start = System.nanoTime();
+			for (final Table table : TABLES) {
+				List<CompletableFuture<Void>> deps = new ArrayList<CompletableFuture<Void>>();
+				for (String ref : table.references)
+					deps.add(done.get(ref));
+				CompletableFuture<Void> future = CompletableFuture.allOf(deps.toArray(new CompletableFuture<?>[0]))
+					.thenRunAsync(new Runnable() {
+						public void run() {
+							try {
+								long begin = System.nanoTime();
+								long rows = copy(table, source.open(table));
+								double seconds = (System.nanoTime() - begin) / 1e9;
+								synchronized (System.out) {
+									System.out.printf("%-20s %10d rows %8.2f s %12.0f rows/s%n", table.name, rows, seconds, rows / Math.max(seconds, 1e-9));
+								}
+							} catch (Exception e) {
+								throw new CompletionException(table.name + ": " + e.getMessage(), e);
+							}
+						}
+					}, executor);
+				done.put(table.name, future);
+			}//end for
+			CompletableFuture.allOf(done.values().toArray(new CompletableFuture<?>[0])).join();
+			System.out.printf("%-20s %.2f s%n", "all tables", (System.nanoTime() - start) / 1e9);
+		} catch (CompletionException e) {
+			throw new SQLException("Load failed: " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+	}//end loadAll
+
+	/**
+	 * Source reading the CSV files of a directory.
+	 */
+	public static Source directory(final File dir) {
+		return new Source() {
+			public Reader open(Table table) throws IOException {
+				return new BufferedReader(new InputStreamReader(new FileInputStream(new File(dir, table.file)), StandardCharsets.UTF_8), 1 << 16);
+			}
+		};
+	}
+
+	public static void main (String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println ("Usage: java [-classpath <classpath>] BulkLoader <dbname> <port> <user> [--create] [--sql <dir>] [<data dir>]");
+			return;
+		}
+		boolean create = false;
+		File sqlDir = new File("../sql");
+		File dataDir = new File("../data");
+		for (int i = 3; i < args.length; ++i) {
+			if (args[i].equals("--create")) create = true;
+			else if (args[i].equals("--sql") && i + 1 < args.length) sqlDir = new File(args[++i]);
+			else dataDir = new File(args[i]);
+		}
+
+		Class.forName("org.postgresql.Driver");
+		System.setProperty("dbproject.pool.max", String.valueOf(Math.max(TABLES.length, Integer.getInteger("dbproject.pool.max", 8))));
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try {
+			BulkLoader loader = new BulkLoader(esql, sqlDir);
+			if (create) {
+				SqlScript.run(esql, new File(sqlDir, "create.sql"));
+			}
+			else {
+				loader.dropIndexes();
+			}
+			loader.loadAll(directory(dataDir));
+			loader.finish();
+		} catch (SQLException e) {
+			System.err.println("ERROR: " + e.getMessage());
+		} finally {
+			esql.cleanup();
+		}
+	}//end main
+}//end BulkLoader
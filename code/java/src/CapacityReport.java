@@ -0,0 +1,373 @@
+/*
+ * Capacity report
+ * ===============
+ *
+ * Compares the capacity departments requested in request_maintenance with
+ * the appointments actually booked.  A doctor's capacity per working day is
+ * patient_per_hour times the length of each of their requested time slots
+ * (a slot requested by several staff counts once, at its highest rate); a
+ * doctor works on the days they have active (AC) or waitlisted (WL)
+ * appointments.  Per doctor and day the report counts
+ *
+ *   capacity     the requested capacity of the day
+ *   active       AC appointments, and utilization = active / capacity
+ *   waitlisted   WL appointments, and pressure = waitlisted / capacity
+ *   overbooked   active appointments beyond the capacity
+ *   unstaffed    active appointments without staff in schedules
+ *
+ * and sums them per doctor, department and hospital (--level day, doctor,
+ * department or hospital; default department) for the days in [--from,
+ * --to] (default: all).  Doctors without requests have no capacity, so all
+ * their active appointments count as overbooked.
+ *
+ * The appointments are read in one streamed query (on the replica when one
+ * is configured) into one bucket per hospital, and the hospitals are
+ * aggregated in parallel with fork/join.
+ *
+ *   java -cp lib/*:bin/ CapacityReport <dbname> <port> <user> [--from <MM/dd/yyyy>] [--to <MM/dd/yyyy>]
+ *                                      [--level <level>] [--out <file>]
+ *
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class reports requested capacity against booked appointments.
+ *
+ */
+
+public class CapacityReport{
+	public static final List<String> LEVELS = Arrays.asList("hospital", "department", "doctor", "day");
+
+	static final String DOCTORS =
+		"SELECT D.doctor_ID, D.name, DE.dept_ID, DE.name, H.hospital_ID, H.name FROM Doctor D, Department DE, Hospital H " +
+		"WHERE D.did = DE.dept_ID AND DE.hid = H.hospital_ID ORDER BY H.hospital_ID, DE.dept_ID, D.doctor_ID;";
+	static final String CAPACITY =
+		"SELECT did, time_slot, MAX(patient_per_hour) FROM request_maintenance GROUP BY did, time_slot;";
+	static final String APPOINTMENTS =
+		"SELECT HA.doctor_id, A.adate, A.status, EXISTS (SELECT 1 FROM schedules S WHERE S.appt_id = A.appnt_ID) " +
+		"FROM Appointment A, has_appointment HA WHERE HA.appt_id = A.appnt_ID AND A.status IN ('AC', 'WL') AND A.adate >= ? AND A.adate <= ?;";
+
+	private static final int WAITLISTED = 1, STAFFED = 2;
+
+	/*
+	 * the doctors in hospital, department, doctor order, with their
+	 * capacity per working day.
+	 */
+	private static final class Doctors{
+		final int[] ids;
+		final String[] names;
+		final int[] departments;
+		final String[] departmentNames;
+		final int[] hospitalIndex;
+		final int[] hospitals;
+		final String[] hospitalNames;
+		final int[] capacity;
+		final ReferenceCache.IntIntMap rows;
+
+		Doctors(List<Object[]> doctors, Map<Integer, Integer> capacities) {
+			int n = doctors.size();
+			ids = new int[n];
+			names = new String[n];
+			departments = new int[n];
+			departmentNames = new String[n];
+			hospitalIndex = new int[n];
+			capacity = new int[n];
+			rows = new ReferenceCache.IntIntMap(n);
+			List<Integer> hospitalIDs = new ArrayList<Integer>();
+			List<String> hospitalNameList = new ArrayList<String>();
+			for (int r = 0; r < n; ++r) {
+				Object[] d = doctors.get(r);
+				ids[r] = (Integer) d[0];
+				names[r] = (String) d[1];
+				departments[r] = (Integer) d[2];
+				departmentNames[r] = (String) d[3];
+				if (hospitalIDs.isEmpty() || hospitalIDs.get(hospitalIDs.size() - 1) != (int) (Integer) d[4]) {
+					hospitalIDs.add((Integer) d[4]);
+					hospitalNameList.add((String) d[5]);
+				}
+				hospitalIndex[r] = hospitalIDs.size() - 1;
+				Integer c = capacities.get(ids[r]);
+				capacity[r] = c == null ? 0 : c;
+				rows.put(ids[r], r);
+			}
+			hospitals = new int[hospitalIDs.size()];
+			for (int h = 0; h < hospitals.length; ++h) hospitals[h] = hospitalIDs.get(h);
+			hospitalNames = hospitalNameList.toArray(new String[0]);
+		}
+	}//end Doctors
+
+	/*
+	 * the appointments of one hospital as (doctor row, day, flags).
+	 */
+	private static final class Bucket{
+		int[] rows = new int[256];
+		int[] days = new int[256];
+		byte[] flags = new byte[256];
+		int size = 0;
+
+		void add(int row, int day, int flag) {
+			if (size == rows.length) {
+				rows = Arrays.copyOf(rows, size * 2);
+				days = Arrays.copyOf(days, size * 2);
+				flags = Arrays.copyOf(flags, size * 2);
+			}
+			rows[size] = row;
+			days[size] = day;
+			flags[size++] = (byte) flag;
+		}
+	}//end Bucket
+
+	/*
+	 * the sums of one line of the report.
+	 */
+	private static final class Totals{
+		long doctorDays, capacity, active, waitlisted, overbooked, overbookedDays, unstaffed;
+
+		void add(Totals t) {
+			doctorDays += t.doctorDays;
+			capacity += t.capacity;
+			active += t.active;
+			waitlisted += t.waitlisted;
+			overbooked += t.overbooked;
+			overbookedDays += t.overbookedDays;
+			unstaffed += t.unstaffed;
+		}
+	}//end Totals
+
+	/*
+	 * aggregates the hospitals [from, to), splitting the range until one
+	 * hospital is left; returns their lines in hospital order.
+	 */
+	private static final class Aggregate extends RecursiveTask<String>{
+		private static final long serialVersionUID = 1L;
+
+		private final Doctors _doctors;
+		private final Bucket[] _buckets;
+		private final int _level;
+		private final int _from, _to;
+
+		Aggregate(Doctors doctors, Bucket[] buckets, int level, int from, int to) {
+			this._doctors = doctors;
+			this._buckets = buckets;
+			this._level = level;
+			this._from = from;
+			this._to = to;
+		}
+
+		protected String compute() {
+			if (_to - _from > 1) {
+				int mid = (_from + _to) >>> 1;
+				Aggregate left = new Aggregate(_doctors, _buckets, _level, _from, mid);
+				left.fork();
+				String right = new Aggregate(_doctors, _buckets, _level, mid, _to).compute();
+				return left.join() + right;
+			}
+			return _from < _to ? hospital(_from) : "";
+		}
+
+		private String hospital(int h) {
+			Bucket b = _buckets[h];
+			StringBuilder out = new StringBuilder();
+			if (b == null || b.size == 0) return "";
+			//sorted by doctor row (hospital, department, doctor order), then day
+			long[] keys = new long[b.size];
+			for (int i = 0; i < b.size; ++i)
+				keys[i] = (long) b.rows[i] << 40 | (long) (b.days[i] + (1 << 29)) << 2 | b.flags[i];
+			Arrays.sort(keys);
+			Totals hospital = new Totals(), department = new Totals(), doctor = new Totals();
+			for (int i = 0; i < keys.length; ) {
+				int row = (int) (keys[i] >>> 40);
+				int day = (int) (keys[i] >>> 2 & ((1L << 38) - 1)) - (1 << 29);
+				Totals t = new Totals();
+				for (; i < keys.length && keys[i] >>> 2 == ((long) row << 38 | (long) (day + (1 << 29))); ++i) {
+					int flags = (int) (keys[i] & 3);
+					if ((flags & WAITLISTED) != 0) ++t.waitlisted;
+					else {
+						++t.active;
+						if ((flags & STAFFED) == 0) ++t.unstaffed;
+					}
+				}
+				t.doctorDays = 1;
+				t.capacity = _doctors.capacity[row];
+				t.overbooked = Math.max(0, t.active - t.capacity);
+				t.overbookedDays = t.overbooked > 0 ? 1 : 0;
+				if (_level == 3) line(out, row, LocalDate.ofEpochDay(day), t, 3);
+				doctor.add(t);
+				boolean lastOfDoctor = i == keys.length || (int) (keys[i] >>> 40) != row;
+				if (!lastOfDoctor) continue;
+				if (_level == 2) line(out, row, null, doctor, 2);
+				department.add(doctor);
+				doctor = new Totals();
+				boolean lastOfDepartment = i == keys.length || _doctors.departments[(int) (keys[i] >>> 40)] != _doctors.departments[row];
+				if (!lastOfDepartment) continue;
+				if (_level == 1) line(out, row, null, department, 1);
+				hospital.add(department);
+				department = new Totals();
+			}//end for
+			if (_level == 0) line(out, (int) (keys[0] >>> 40), null, hospital, 0);
+			return out.toString();
+		}//end hospital
+
+		private void line(StringBuilder out, int row, LocalDate day, Totals t, int level) {
+			Doctors d = _doctors;
+			out.append(d.hospitals[d.hospitalIndex[row]]).append('\t').append(d.hospitalNames[d.hospitalIndex[row]]).append('\t');
+			if (level >= 1) out.append(d.departments[row]).append('\t').append(d.departmentNames[row]).append('\t');
+			if (level >= 2) out.append(d.ids[row]).append('\t').append(d.names[row]).append('\t');
+			if (level >= 3) out.append(day).append('\t');
+			out.append(t.doctorDays).append('\t').append(t.capacity).append('\t').append(t.active).append('\t')
+				.append(percent(t.active, t.capacity)).append('\t').append(t.waitlisted).append('\t')
+				.append(percent(t.waitlisted, t.capacity)).append('\t').append(t.overbooked).append('\t')
+				.append(t.overbookedDays).append('\t').append(t.unstaffed).append('\t').append('\n');
+		}
+	}//end Aggregate
+
+	private static String percent(long part, long whole) {
+		return whole == 0 ? "-" : String.format(Locale.ROOT, "%.1f", 100.0 * part / whole);
+	}
+
+	/**
+	 * Method to compute the length of a time slot such as 8:00-10:00.
+	 *
+	 * @return the minutes, or -1 when the time slot cannot be parsed
+	 */
+	public static int minutesOf(String timeSlot) {
+		int dash = timeSlot == null ? -1 : timeSlot.indexOf('-');
+		if (dash < 0) return -1;
+		int from = minuteOfDay(timeSlot.substring(0, dash)), to = minuteOfDay(timeSlot.substring(dash + 1));
+		return from >= 0 && to > from ? to - from : -1;
+	}
+
+	//minutes since midnight of H:MM (up to 24:00), or -1
+	private static int minuteOfDay(String time) {
+		String[] hm = time.trim().split(":");
+		if (hm.length != 2 || hm[1].length() != 2) return -1;
+		try {
+			int hours = Integer.parseInt(hm[0]), minutes = Integer.parseInt(hm[1]);
+			if (hours < 0 || minutes < 0 || minutes > 59 || hours * 60 + minutes > 24 * 60) return -1;
+			return hours * 60 + minutes;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private final DBproject _esql;
+
+	public CapacityReport(DBproject esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to print the report for the days [from, to].
+	 *
+	 * @param level hospital, department, doctor or day
+	 * @return the number of lines printed
+	 * @throws java.sql.SQLException when the level is unknown or a query failed
+	 */
+	public int print(Writer out, LocalDate from, LocalDate to, String level) throws SQLException {
+		final int depth = LEVELS.indexOf(level);
+		if (depth < 0) {
+			throw new SQLException("Level must be one of " + LEVELS);
+		}
+		QueryMetrics.Scope scope = _esql.getMetrics().begin("CapacityReport");
+		try {
+			final Map<Integer, Integer> capacities = new HashMap<Integer, Integer>();
+			_esql.executeQueryStreaming(CAPACITY, new DBproject.RowHandler() {
+				public void handle(ResultSet rs) throws SQLException {
+					int minutes = minutesOf(rs.getString(2));
+					if (minutes <= 0) return;
+					Integer c = capacities.get(rs.getInt(1));
+					capacities.put(rs.getInt(1), (c == null ? 0 : c) + rs.getInt(3) * minutes / 60);
+				}
+			});
+			final List<Object[]> rows = new ArrayList<Object[]>();
+			_esql.executeQueryStreaming(DOCTORS, new DBproject.RowHandler() {
+				public void handle(ResultSet rs) throws SQLException {
+					rows.add(new Object[] { rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getString(4), rs.getInt(5), rs.getString(6) });
+				}
+			});
+			final Doctors doctors = new Doctors(rows, capacities);
+
+			//one pass over the appointments, into the bucket of their hospital
+			final Bucket[] buckets = new Bucket[doctors.hospitals.length];
+			_esql.executeReportStreaming(APPOINTMENTS, new DBproject.RowHandler() {
+				public void handle(ResultSet rs) throws SQLException {
+					int row = doctors.rows.get(rs.getInt(1));
+					if (row < 0) return;
+					int h = doctors.hospitalIndex[row];
+					if (buckets[h] == null) buckets[h] = new Bucket();
+					buckets[h].add(row, (int) rs.getDate(2).toLocalDate().toEpochDay(),
+						(Operations.WAITLISTED.equals(rs.getString(3)) ? WAITLISTED : 0) | (rs.getBoolean(4) ? STAFFED : 0));
+				}
+			}, java.sql.Date.valueOf(from), java.sql.Date.valueOf(to));
+
+			String report = new Aggregate(doctors, buckets, depth, 0, buckets.length).invoke();
+			String[] columns = { "hospital_id\thospital", "dept_id\tdepartment", "doctor_id\tdoctor", "adate" };
+			StringBuilder header = new StringBuilder();
+			for (int i = 0; i <= depth; ++i) header.append(columns[i]).append('\t');
+			header.append("doctor_days\tcapacity\tactive\tutilization\twaitlisted\tpressure\toverbooked\toverbooked_days\tunstaffed\t\n");
+			out.write(header.toString());
+			out.write(report);
+			out.flush();
+			int lines = 0;
+			for (int i = 0; i < report.length(); ++i) if (report.charAt(i) == '\n') ++lines;
+			return lines;
+		} catch (IOException e) {
+			scope.fail();
+			throw new SQLException("Failed to write result: " + e.getMessage(), e);
+		} catch (SQLException e) {
+			scope.fail();
+			throw e;
+		} finally {
+			scope.close();
+		}
+	}//end print
+
+	public static void main (String[] args) throws Exception {
+		DateTimeFormatter format = DateTimeFormatter.ofPattern("MM/dd/yyyy");
+		LocalDate from = LocalDate.of(1, 1, 1), to = LocalDate.of(9999, 12, 31);
+		String level = "department", outFile = null;
+		boolean valid = args.length >= 3;
+		for (int i = 3; i < args.length; ++i) {
+			if (args[i].equals("--from") && i + 1 < args.length) from = LocalDate.parse(args[++i], format);
+			else if (args[i].equals("--to") && i + 1 < args.length) to = LocalDate.parse(args[++i], format);
+			else if (args[i].equals("--level") && i + 1 < args.length) level = args[++i];
+			else if (args[i].equals("--out") && i + 1 < args.length) outFile = args[++i];
+			else valid = false;
+		}
+		if (!valid) {
+			System.err.println ("Usage: java [-classpath <classpath>] CapacityReport <dbname> <port> <user> [--from <MM/dd/yyyy>] [--to <MM/dd/yyyy>] [--level hospital|department|doctor|day] [--out <file>]");
+			return;
+		}
+
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		Writer out = new BufferedWriter(outFile == null ? new OutputStreamWriter(System.out)
+			: new OutputStreamWriter(new FileOutputStream(outFile), StandardCharsets.UTF_8), 1 << 16);
+		try {
+			long start = System.nanoTime();
+			int lines = new CapacityReport(esql).print(out, from, to, level);
+			System.err.printf("%d lines in %.2f s%n", lines, (System.nanoTime() - start) / 1e9);
+		} finally {
+			if (outFile != null) out.close();
+			else out.flush();
+			esql.cleanup();
+		}
+	}//end main
+}//end CapacityReport
@@ -0,0 +1,329 @@
+/*
+ * Typed, columnar query results
+ * =============================
+ *
+ * Stores a result set column by column in primitive arrays instead of as a
+ * List<List<String>>.  Integer columns become int[] / long[], DATE columns
+ * become epoch days, and low-cardinality text columns (status, specialty by
+ * default) are dictionary encoded to int codes, so reading a row allocates
+ * nothing beyond what other text columns need.
+ *
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class defines a growable columnar result.  It is filled straight
+ * from ResultSet getters as rows stream in (it is a DBproject.RowHandler)
+ * and read back with typed getters by row and column index (0-based).
+ *
+ */
+
+public class ColumnarResult implements DBproject.RowHandler{
+	public static final int INT = 0;
+	public static final int LONG = 1;
+	public static final int DATE = 2;
+	public static final int DICT = 3;
+	public static final int STRING = 4;
+
+	//text columns dictionary encoded unless the caller names others
+	public static final Set<String> DEFAULT_DICTIONARY_COLUMNS = new HashSet<String>(Arrays.asList("status", "specialty"));
+
+	//days from 1970-01-01 to 2000-01-01, the epoch of binary DATE values
+	private static final int PG_EPOCH_DAY = 10957;
+
+	private final Set<String> _dictionaryColumns;
+	private String[] _names = null;
+	private int[] _kinds = null;
+	private int[][] _ints = null;
+	private long[][] _longs = null;
+	private String[][] _strings = null;
+	private long[][] _nulls = null;
+	private Dictionary[] _dictionaries = null;
+	private int _rows = 0;
+	private int _capacity = 0;
+
+	public ColumnarResult() {
+		this(DEFAULT_DICTIONARY_COLUMNS);
+	}
+
+	/**
+	 * @param dictionaryColumns lower case labels of the text columns to
+	 *        dictionary encode
+	 */
+	public ColumnarResult(Set<String> dictionaryColumns) {
+		this._dictionaryColumns = dictionaryColumns;
+	}
+
+	/**
+	 * Method to read every remaining row of a result set into a new result.
+	 *
+	 * @param rs the result set, positioned before its first row
+	 * @return the columnar copy of the rows
+	 * @throws java.sql.SQLException when reading the result set failed
+	 */
+	public static ColumnarResult from(ResultSet rs) throws SQLException {
+		ColumnarResult result = new ColumnarResult();
+		while (rs.next())
+			result.handle(rs);
+		return result;
+	}
+
+	/**
+	 * Method to append the row the result set is positioned on.  The column
+	 * layout is taken from the metadata of the first row.
+	 */
+	public void handle(ResultSet rs) throws SQLException {
+		if (_kinds == null) init(rs.getMetaData());
+		if (_rows == _capacity) grow();
+		int row = _rows++;
+		for (int c = 0; c < _kinds.length; ++c) {
+			int col = c + 1;
+			switch (_kinds[c]) {
+				case INT:
+					_ints[c][row] = rs.getInt(col);
+					if (rs.wasNull()) setNull(c, row);
+					break;
+				case LONG:
+					_longs[c][row] = rs.getLong(col);
+					if (rs.wasNull()) setNull(c, row);
+					break;
+				case DATE: {
+					byte[] raw = rs.getBytes(col);
+					if (raw == null) setNull(c, row);
+					else _ints[c][row] = epochDay(raw);
+					break;
+				}
+				case DICT: {
+					byte[] raw = rs.getBytes(col);
+					if (raw == null) setNull(c, row);
+					else _ints[c][row] = _dictionaries[c].code(raw);
+					break;
+				}
+				default:
+					_strings[c][row] = rs.getString(col);
+					break;
+			}//end switch
+		}//end for
+	}//end handle
+
+	private void init(ResultSetMetaData rsmd) throws SQLException {
+		int numCol = rsmd.getColumnCount();
+		_names = new String[numCol];
+		_kinds = new int[numCol];
+		_ints = new int[numCol][];
+		_longs = new long[numCol][];
+		_strings = new String[numCol][];
+		_nulls = new long[numCol][];
+		_dictionaries = new Dictionary[numCol];
+		for (int c = 0; c < numCol; ++c) {
+			_names[c] = rsmd.getColumnLabel(c + 1).toLowerCase();
+			switch (rsmd.getColumnType(c + 1)) {
+				case Types.INTEGER: case Types.SMALLINT: case Types.TINYINT:
+					_kinds[c] = INT;
+					break;
+				case Types.BIGINT:
+					_kinds[c] = LONG;
+					break;
+				case Types.DATE:
+					_kinds[c] = DATE;
+					break;
+				case Types.CHAR: case Types.VARCHAR: case Types.LONGVARCHAR:
+					_kinds[c] = _dictionaryColumns.contains(_names[c]) ? DICT : STRING;
+					break;
+				default:
+					_kinds[c] = STRING;
+					break;
+			}//end switch
+			if (_kinds[c] == DICT) _dictionaries[c] = new Dictionary();
+		}//end for
+	}//end init
+
+	private void grow() {
+		_capacity = Math.max(16, _capacity * 2);
+		for (int c = 0; c < _kinds.length; ++c) {
+			switch (_kinds[c]) {
+				case LONG:
+					_longs[c] = _longs[c] == null ? new long[_capacity] : Arrays.copyOf(_longs[c], _capacity);
+					break;
+				case STRING:
+					_strings[c] = _strings[c] == null ? new String[_capacity] : Arrays.copyOf(_strings[c], _capacity);
+					break;
+				default:
+					_ints[c] = _ints[c] == null ? new int[_capacity] : Arrays.copyOf(_ints[c], _capacity);
+					break;
+			}//end switch
+			if (_nulls[c] != null) _nulls[c] = Arrays.copyOf(_nulls[c], (_capacity + 63) >>> 6);
+		}//end for
+	}//end grow
+
+	private void setNull(int c, int row) {
+		if (_nulls[c] == null) _nulls[c] = new long[(_capacity + 63) >>> 6];
+		_nulls[c][row >>> 6] |= 1L << row;
+	}
+
+	/*
+	 * converts a DATE value to days since 1970-01-01.  Text values arrive as
+	 * ISO yyyy-mm-dd (the driver forces DateStyle ISO), binary ones as a
+	 * big-endian day count since 2000-01-01.
+	 */
+	static int epochDay(byte[] raw) {
+		if (raw.length == 4) {
+			return ((raw[0] & 0xff) << 24 | (raw[1] & 0xff) << 16 | (raw[2] & 0xff) << 8 | (raw[3] & 0xff)) + PG_EPOCH_DAY;
+		}
+		if (raw.length == 10 && raw[4] == '-' && raw[7] == '-') {
+			int y = digits(raw, 0, 4), m = digits(raw, 5, 2), d = digits(raw, 8, 2);
+			return daysFromCivil(y, m, d);
+		}
+		//BC dates, infinity and other rarities
+		return (int) LocalDate.parse(new String(raw, StandardCharsets.US_ASCII)).toEpochDay();
+	}
+
+	private static int digits(byte[] raw, int off, int len) {
+		int v = 0;
+		for (int i = off; i < off + len; ++i)
+			v = v * 10 + (raw[i] - '0');
+		return v;
+	}
+
+	/*
+	 * days since 1970-01-01 of a proleptic Gregorian date (H. Hinnant's
+	 * days_from_civil).
+	 */
+	static int daysFromCivil(int y, int m, int d) {
+		y -= m <= 2 ? 1 : 0;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yoe = y - era * 400;
+		int doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+
+	public int size() {
+		return _rows;
+	}
+
+	public boolean isEmpty() {
+		return _rows == 0;
+	}
+
+	public int columnCount() {
+		return _kinds == null ? 0 : _kinds.length;
+	}
+
+	/**
+	 * Method to find a column by its (case insensitive) label.
+	 *
+	 * @return the 0-based column index, or -1 when there is no such column
+	 */
+	public int column(String label) {
+		if (_names == null) return -1;
+		for (int c = 0; c < _names.length; ++c)
+			if (_names[c].equalsIgnoreCase(label)) return c;
+		return -1;
+	}
+
+	public String getName(int col) {
+		return _names[col];
+	}
+
+	public int getKind(int col) {
+		return _kinds[col];
+	}
+
+	public boolean isNull(int row, int col) {
+		return _nulls[col] != null && (_nulls[col][row >>> 6] & (1L << row)) != 0;
+	}
+
+	/**
+	 * Method to read an INT column (or the raw epoch day / dictionary code
+	 * of a DATE / DICT column).  NULL reads as 0.
+	 */
+	public int getInt(int row, int col) {
+		return _kinds[col] == LONG ? (int) _longs[col][row] : _ints[col][row];
+	}
+
+	public long getLong(int row, int col) {
+		return _kinds[col] == LONG ? _longs[col][row] : _ints[col][row];
+	}
+
+	public int getEpochDay(int row, int col) {
+		return _ints[col][row];
+	}
+
+	public LocalDate getDate(int row, int col) {
+		return isNull(row, col) ? null : LocalDate.ofEpochDay(_ints[col][row]);
+	}
+
+	public int getCode(int row, int col) {
+		return _ints[col][row];
+	}
+
+	/**
+	 * Method to return the dictionary of a DICT column, indexed by code.
+	 */
+	public List<String> getDictionary(int col) {
+		return _dictionaries[col].values;
+	}
+
+	/**
+	 * Method to read any column as text, decoding dates and dictionary codes.
+	 */
+	public String getString(int row, int col) {
+		if (isNull(row, col)) return null;
+		switch (_kinds[col]) {
+			case INT: return String.valueOf(_ints[col][row]);
+			case LONG: return String.valueOf(_longs[col][row]);
+			case DATE: return LocalDate.ofEpochDay(_ints[col][row]).toString();
+			case DICT: return _dictionaries[col].values.get(_ints[col][row]);
+			default: return _strings[col][row];
+		}
+	}
+
+	/*
+	 * maps the raw bytes of a text value to a small int code with an open
+	 * addressing table, without building a String for values seen before.
+	 */
+	private static class Dictionary{
+		final List<String> values = new ArrayList<String>();
+		private final List<byte[]> _keys = new ArrayList<byte[]>();
+		private int[] _table = new int[16];
+
+		int code(byte[] raw) {
+			int mask = _table.length - 1;
+			int h = Arrays.hashCode(raw) & mask;
+			while (_table[h] != 0) {
+				int code = _table[h] - 1;
+				if (Arrays.equals(_keys.get(code), raw)) return code;
+				h = (h + 1) & mask;
+			}
+			int code = values.size();
+			_keys.add(raw.clone());
+			values.add(new String(raw, StandardCharsets.UTF_8));
+			_table[h] = code + 1;
+			if (values.size() * 2 > _table.length) rehash();
+			return code;
+		}
+
+		private void rehash() {
+			_table = new int[_table.length * 2];
+			int mask = _table.length - 1;
+			for (int code = 0; code < _keys.size(); ++code) {
+				int h = Arrays.hashCode(_keys.get(code)) & mask;
+				while (_table[h] != 0)
+					h = (h + 1) & mask;
+				_table[h] = code + 1;
+			}
+		}
+	}//end Dictionary
+}//end ColumnarResult
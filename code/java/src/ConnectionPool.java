@@ -0,0 +1,407 @@
+/*
+ * Connection pool
+ * ===============
+ *
+ * Keeps between minSize and maxSize physical connections to one database.
+ * Callers borrow a connection for the duration of one operation and return
+ * it afterwards, so several sessions can share a process without paying for
+ * connection setup on every operation.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * This class defines a bounded pool of PostgreSQL connections.  Connections
+ * that sat idle longer than the validation interval are checked with
+ * Connection.isValid() before being handed out, connections that broke are
+ * replaced in the background to keep minSize open, borrowers wait at most the
+ * acquisition timeout, and connections held longer than the leak threshold
+ * are reported on stderr.  The stack trace of the borrower is only captured
+ * when leak tracing is enabled, since filling it in on every borrow is costly.
+ *
+ */
+
+public class ConnectionPool{
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	private final int _minSize;
+	private final int _maxSize;
+	private final long _acquireTimeoutMillis;
+	private final long _validateIdleMillis;
+	private final long _leakThresholdMillis;
+	private final boolean _leakTrace;
+
+	//idle connections, most recently used first
+	private final Deque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+	private final Set<PooledConnection> _borrowed = new HashSet<PooledConnection>();
+	//runs the leak detector and the replacement of discarded connections
+	private final Timer _timer = new Timer("connection-pool", true);
+	//connections being opened outside the lock, counted against maxSize
+	private int _opening = 0;
+	private boolean _replenishing = false;
+	private boolean _closed = false;
+
+	//statistics
+	private long _borrowCount = 0;
+	private long _waitCount = 0;
+	private long _waitNanos = 0;
+	private long _retiredHits = 0;
+	private long _retiredMisses = 0;
+
+	/**
+	 * This class wraps one physical connection together with its statement
+	 * cache and the bookkeeping used for validation and leak detection.
+	 */
+	public static class PooledConnection{
+		private final Connection _connection;
+		private final StatementCache _statements;
+		private long _lastUsed = System.currentTimeMillis();
+		private long _borrowedAt = 0;
+		private Throwable _borrower = null;
+		private boolean _leakReported = false;
+
+		PooledConnection(Connection connection) {
+			this._connection = connection;
+			this._statements = new StatementCache(connection);
+		}
+
+		public Connection connection() {
+			return _connection;
+		}
+
+		public StatementCache statements() {
+			return _statements;
+		}
+	}//end PooledConnection
+
+	public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+			long acquireTimeoutMillis, long validateIdleMillis, long leakThresholdMillis, boolean leakTrace) throws SQLException {
+		if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+			throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+		}
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		this._minSize = minSize;
+		this._maxSize = maxSize;
+		this._acquireTimeoutMillis = acquireTimeoutMillis;
+		this._validateIdleMillis = validateIdleMillis;
+		this._leakThresholdMillis = leakThresholdMillis;
+		this._leakTrace = leakTrace;
+
+		for (int i = 0; i < minSize; ++i)
+			_idle.push(open());
+
+		if (leakThresholdMillis > 0) {
+			long period = Math.max(1000, leakThresholdMillis / 2);
+			_timer.schedule(new TimerTask() {
+				public void run() {
+					reportLeaks();
+				}
+			}, period, period);
+		}
+	}
+
+	/**
+	 * Method to borrow a connection.  Waits up to the acquisition timeout
+	 * when all maxSize connections are in use.
+	 *
+	 * @return a connection that must be handed back with release()
+	 * @throws java.sql.SQLException when no connection became available in
+	 *         time or a new connection could not be opened
+	 */
+	public PooledConnection borrow() throws SQLException {
+		long start = System.nanoTime();
+		long deadline = start + _acquireTimeoutMillis * 1000000L;
+		boolean waited = false;
+		while (true) {
+			PooledConnection pc = null;
+			boolean create = false;
+			synchronized (this) {
+				if (_closed) {
+					throw new SQLException("Connection pool is closed");
+				}
+				if (!_idle.isEmpty()) {
+					//counted as borrowed while it is validated outside the lock
+					pc = _idle.pop();
+					_borrowed.add(pc);
+				}
+				else if (_idle.size() + _borrowed.size() + _opening < _maxSize) {
+					//reserve the slot before opening outside the lock
+					create = true;
+					_opening++;
+				}
+				else {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						_waitCount++;
+						_waitNanos += System.nanoTime() - start;
+						throw new SQLException("Timed out after " + _acquireTimeoutMillis + " ms waiting for a database connection");
+					}
+					waited = true;
+					try {
+						wait(Math.max(1, remaining / 1000000L));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a database connection");
+					}
+					continue;
+				}
+			}//end synchronized
+
+			if (create) {
+				try {
+					pc = open();
+				} catch (SQLException e) {
+					synchronized (this) {
+						_opening--;
+						notifyAll();
+					}
+					throw e;
+				}
+			}
+			else if (System.currentTimeMillis() - pc._lastUsed > _validateIdleMillis && !isValid(pc)) {
+				discard(pc);
+				continue;
+			}
+
+			synchronized (this) {
+				if (create) _opening--;
+				pc._borrowedAt = System.currentTimeMillis();
+				pc._borrower = _leakThresholdMillis > 0 && _leakTrace ? new Throwable("Connection borrowed here") : null;
+				pc._leakReported = false;
+				_borrowed.add(pc);
+				_borrowCount++;
+				if (waited) {
+					_waitCount++;
+					_waitNanos += System.nanoTime() - start;
+				}
+			}
+			return pc;
+		}//end while
+	}//end borrow
+
+	/**
+	 * Method to hand a borrowed connection back to the pool.  An open
+	 * transaction is rolled back; a broken connection is closed instead of
+	 * being reused.
+	 *
+	 * @param pc the connection returned by borrow()
+	 */
+	public void release(PooledConnection pc) {
+		if (pc == null) return;
+		boolean reusable;
+		try {
+			if (!pc._connection.getAutoCommit()) {
+				pc._connection.rollback();
+				pc._connection.setAutoCommit(true);
+			}
+			reusable = !pc._connection.isClosed();
+		} catch (SQLException e) {
+			reusable = false;
+		}
+		synchronized (this) {
+			_borrowed.remove(pc);
+			pc._lastUsed = System.currentTimeMillis();
+			pc._borrower = null;
+			if (reusable && !_closed) {
+				_idle.push(pc);
+				notifyAll();
+				return;
+			}
+		}
+		discard(pc);
+	}//end release
+
+	/*
+	 * opens a new physical connection.
+	 */
+	private PooledConnection open() throws SQLException {
+		return new PooledConnection(DriverManager.getConnection(_url, _user, _passwd));
+	}
+
+	/**
+	 * Method to open a connection to the same database outside the pool, for
+	 * long-lived sessions such as LISTEN.  The caller closes it.
+	 */
+	public Connection openUnpooled() throws SQLException {
+		return DriverManager.getConnection(_url, _user, _passwd);
+	}
+
+	private boolean isValid(PooledConnection pc) {
+		try {
+			return pc._connection.isValid(5);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * closes a connection that is no longer usable and keeps its statement
+	 * cache counters in the pool totals.  Replacements are opened on the
+	 * timer thread when fewer than minSize connections are left.
+	 */
+	private void discard(PooledConnection pc) {
+		boolean replenish;
+		synchronized (this) {
+			_borrowed.remove(pc);
+			_retiredHits += pc._statements.getHits();
+			_retiredMisses += pc._statements.getMisses();
+			notifyAll();
+			replenish = !_closed && !_replenishing && _idle.size() + _borrowed.size() + _opening < _minSize;
+			if (replenish) _replenishing = true;
+		}
+		pc._statements.close();
+		try {
+			pc._connection.close();
+		} catch (SQLException e) {
+			// ignored.
+		}
+		if (replenish) {
+			try {
+				_timer.schedule(new TimerTask() {
+					public void run() {
+						replenish();
+					}
+				}, 0);
+			} catch (IllegalStateException e) {
+				//closed in the meantime
+				synchronized (this) {
+					_replenishing = false;
+				}
+			}
+		}
+	}//end discard
+
+	/*
+	 * opens idle connections until minSize are open again.  A failure is
+	 * left to the next discard or to borrowers, which open on demand.
+	 */
+	private void replenish() {
+		try {
+			while (true) {
+				synchronized (this) {
+					if (_closed || _idle.size() + _borrowed.size() + _opening >= _minSize) return;
+					_opening++;
+				}
+				PooledConnection pc = null;
+				try {
+					pc = open();
+				} catch (SQLException e) {
+					System.err.println("WARNING: failed to replace a database connection: " + e.getMessage());
+					return;
+				} finally {
+					synchronized (this) {
+						_opening--;
+						if (pc != null && !_closed) {
+							_idle.addLast(pc);
+							pc = null;
+						}
+						notifyAll();
+					}
+					//the pool closed meanwhile
+					if (pc != null) discard(pc);
+				}
+			}//end while
+		} finally {
+			synchronized (this) {
+				_replenishing = false;
+			}
+		}
+	}//end replenish
+
+	/*
+	 * reports every connection held longer than the leak threshold, once per
+	 * borrow.
+	 */
+	private synchronized void reportLeaks() {
+		long now = System.currentTimeMillis();
+		for (PooledConnection pc : _borrowed) {
+			if (pc._leakReported) continue;
+			if (now - pc._borrowedAt > _leakThresholdMillis) {
+				pc._leakReported = true;
+				System.err.println("WARNING: database connection held for " + (now - pc._borrowedAt) + " ms, possible leak");
+				if (pc._borrower != null) pc._borrower.printStackTrace();
+			}
+		}//end for
+	}//end reportLeaks
+
+	public synchronized int getMinSize() {
+		return _minSize;
+	}
+
+	public synchronized int getMaxSize() {
+		return _maxSize;
+	}
+
+	public synchronized int getIdleCount() {
+		return _idle.size();
+	}
+
+	public synchronized int getBorrowedCount() {
+		return _borrowed.size();
+	}
+
+	public synchronized long getBorrowCount() {
+		return _borrowCount;
+	}
+
+	public synchronized long getWaitCount() {
+		return _waitCount;
+	}
+
+	public synchronized long getWaitNanos() {
+		return _waitNanos;
+	}
+
+	/**
+	 * Method to sum the statement cache hits of all connections, including
+	 * connections that were closed since.
+	 */
+	public synchronized long getStatementHits() {
+		long hits = _retiredHits;
+		for (PooledConnection pc : _idle) hits += pc._statements.getHits();
+		for (PooledConnection pc : _borrowed) hits += pc._statements.getHits();
+		return hits;
+	}
+
+	public synchronized long getStatementMisses() {
+		long misses = _retiredMisses;
+		for (PooledConnection pc : _idle) misses += pc._statements.getMisses();
+		for (PooledConnection pc : _borrowed) misses += pc._statements.getMisses();
+		return misses;
+	}
+
+	/**
+	 * Method to close every idle connection and stop handing out new ones.
+	 * Borrowed connections are closed when they are released.
+	 */
+	public void close() {
+		Deque<PooledConnection> idle;
+		synchronized (this) {
+			_closed = true;
+			idle = new ArrayDeque<PooledConnection>(_idle);
+			_idle.clear();
+			notifyAll();
+		}
+		_timer.cancel();
+		for (PooledConnection pc : idle)
+			discard(pc);
+	}//end close
+
+	public synchronized String toString() {
+		return "Connection pool: " + (_idle.size() + _borrowed.size()) + " open (" + _borrowed.size() + " in use, max " + _maxSize + "), "
+			+ _borrowCount + " borrows, " + _waitCount + " waited\n"
+			+ "Statement cache: " + getStatementHits() + " hits, " + getStatementMisses() + " misses";
+	}
+}//end ConnectionPool
@@ -17,9 +17,8 @@ import java.lang.Object;
 import java.time.format.DateTimeFormatter;
 import java.text.*;
 import java.util.Date;
-import java.sql.DriverManager;
-import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -27,8 +26,14 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -37,9 +42,55 @@ import java.util.ArrayList;
  */
 
 public class DBproject{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//pool of physical database connections, each with its own statement cache
+	private ConnectionPool _pool = null;
+	//block allocators for generated primary keys (see IdAllocator)
+	private IdAllocator _patientIDs = new IdAllocator(this, "patient_id_seq");
+	private IdAllocator _doctorIDs = new IdAllocator(this, "doctor_id_seq");
+	private IdAllocator _appointmentIDs = new IdAllocator(this, "appointment_id_seq");
+	//transactions retried after a serialization failure or deadlock
+	private final AtomicLong _transactionRetries = new AtomicLong();
+	//latency, rows and round trips of every data-access call (see QueryMetrics)
+	private final QueryMetrics _metrics = new QueryMetrics();
+	//output of options 5 and 6, dropped on change notifications (see ReportCache)
+	private final ReportCache _reportCache = new ReportCache(Math.max(0, Integer.getInteger("dbproject.cache.size", 1024)));
+	private NotificationListener _listener = null;
+	//hospital of every department and doctor (see ReferenceCache)
+	private final ReferenceCache _reference = new ReferenceCache(this, Long.getLong("dbproject.reference.ttl", 60000L));
+	//patients by their normalized details (see PatientIdentity)
+	private final PatientIdentity _patients = new PatientIdentity(this, Math.max(0, Integer.getInteger("dbproject.identity.cache.size", 10000)));
+	//read-only database for report queries, when -Ddbproject.replica.port is set (see ReplicaRouter)
+	private ReplicaRouter _replica = null;
+	//available slots per doctor and day, loaded on first use (see AvailabilityIndex)
+	private final AvailabilityIndex _availability = new AvailabilityIndex(this, Integer.getInteger("dbproject.availability.days", 366));
+	//doctor and department names for prefix and typo-tolerant search (see NameIndex)
+	private final NameIndex _names = new NameIndex(this);
+	//bookings accepted into a local journal and written in batches, when -Ddbproject.journal is set (see BookingPipeline)
+	private BookingPipeline _bookings = null;
+	//the operations as an asynchronous API, used by the menu (see AppointmentService)
+	private final AppointmentService _service = new AppointmentService(this);
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//rows per page of the listings of options 5 and 6
+	static final int PAGE_SIZE = Math.max(1, Integer.getInteger("dbproject.pageSize", 20));
+	//matches offered when a typed doctor or department name is ambiguous
+	static final int MATCHES = 10;
+	//query results are written here in large buffered chunks
+	static Writer out = new OutputStreamWriter(System.out);
+
+	/**
+	 * A unit of work run by executeTransaction on one pooled connection.
+	 * Statements should come from pc.statements() so they are prepared once.
+	 */
+	public interface Transaction<T>{
+		T run(ConnectionPool.PooledConnection pc) throws SQLException;
+	}
+
+	/**
+	 * Callback of executeQueryStreaming, called once per row.
+	 */
+	public interface RowHandler{
+		void handle(ResultSet rs) throws SQLException;
+	}
 	
 	public DBproject(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
@@ -48,8 +99,59 @@ public class DBproject{
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			// open the connection pool (sizes and timeouts from -Ddbproject.pool.* properties)
+	        this._pool = new ConnectionPool(url, user, passwd,
+	        	Integer.getInteger("dbproject.pool.min", 1),
+	        	Integer.getInteger("dbproject.pool.max", 8),
+	        	Long.getLong("dbproject.pool.timeout", 30000L),
+	        	Long.getLong("dbproject.pool.validateIdle", 30000L),
+	        	Long.getLong("dbproject.pool.leakThreshold", 60000L),
+	        	Boolean.getBoolean("dbproject.pool.leakTrace"));
+	        this._metrics.start ();
+
+	        // listen for the changes that invalidate cached reports and reference data
+	        this._reference.start ();
+	        this._names.start ();
+	        this._listener = new NotificationListener (this._pool);
+	        if (Integer.getInteger ("dbproject.cache.size", 1024) > 0){
+	        	this._listener.subscribe (ReportCache.CHANNEL, this._reportCache);
+	        }
+	        this._listener.subscribe (ReferenceCache.CHANNEL, this._reference);
+	        this._listener.subscribe (ReportCache.CHANNEL, this._availability);
+	        this._listener.subscribe (ReferenceCache.CHANNEL, this._availability);
+	        this._listener.subscribe (ReferenceCache.CHANNEL, this._names);
+	        this._listener.subscribe (PatientIdentity.CHANNEL, this._patients);
+	        this._listener.start ();
+
+	        // route report queries to a read-only replica when one is configured
+	        String replicaPort = System.getProperty ("dbproject.replica.port");
+	        if (replicaPort != null){
+	        	String replicaUrl = "jdbc:postgresql://" + System.getProperty ("dbproject.replica.host", "localhost") + ":" + replicaPort
+	        		+ "/" + System.getProperty ("dbproject.replica.db", dbname) + "?readOnly=true";
+	        	System.out.println ("Replica URL: " + replicaUrl);
+	        	this._replica = new ReplicaRouter (new ConnectionPool (replicaUrl, user, passwd, 0,
+	        		Integer.getInteger ("dbproject.replica.pool.max", Integer.getInteger ("dbproject.pool.max", 8)),
+	        		Long.getLong ("dbproject.pool.timeout", 30000L),
+	        		Long.getLong ("dbproject.pool.validateIdle", 30000L),
+	        		Long.getLong ("dbproject.pool.leakThreshold", 60000L),
+	        		Boolean.getBoolean ("dbproject.pool.leakTrace")),
+	        		Long.getLong ("dbproject.replica.maxLag", 5000L),
+	        		Long.getLong ("dbproject.replica.checkInterval", 1000L));
+	        }//end if
+	        // group commit of bookings through a journal when one is configured
+	        String journal = System.getProperty ("dbproject.journal");
+	        if (journal != null){
+	        	try{
+	        		this._bookings = new BookingPipeline (this, new File (journal), System.getProperty ("dbproject.journal.id"),
+	        			Integer.getInteger ("dbproject.journal.size", 64 << 20),
+	        			Integer.getInteger ("dbproject.journal.batch", BatchBooking.DEFAULT_CHUNK),
+	        			Long.getLong ("dbproject.journal.delay", 5L));
+	        		this._bookings.start ();
+	        	}catch (Exception e){
+	        		System.err.println ("WARNING: booking journal disabled: " + e.getMessage ());
+	        		this._bookings = null;
+	        	}//end try
+	        }//end if
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -66,85 +168,294 @@ public class DBproject{
 	 * @throws java.sql.SQLException when update failed
 	 * */
 	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		ConnectionPool.PooledConnection pc = borrow ();
+		long start = System.nanoTime ();
+		int rows = 0;
+		SQLException error = null;
+		try{
+			// creates a statement object
+			Statement stmt = pc.connection ().createStatement ();
+
+			// issues the update instruction
+			rows = stmt.executeUpdate (sql);
 
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+			// close the instruction
+			stmt.close ();
+		}catch (SQLException e){
+			error = e;
+			throw e;
+		}finally{
+			this._pool.release (pc);
+			this._metrics.record (sql, System.nanoTime () - start, rows, 1, error);
+		}
+	}//end executeUpdate
+
+	/**
+	 * Method to execute a parameterized update SQL statement.  The statement
+	 * is prepared once per connection and the parameters are bound to its
+	 * ? placeholders in order.
+	 * 
+	 * @param sql the input SQL string with ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when update failed
+	 * */
+	public int executeUpdate (String sql, Object... params) throws SQLException { 
+		ConnectionPool.PooledConnection pc = borrow ();
+		long start = System.nanoTime ();
+		int rows = 0;
+		SQLException error = null;
+		try{
+			// fetches the cached statement and binds the parameters
+			PreparedStatement stmt = pc.statements ().prepare (sql);
+			StatementCache.bind (stmt, params);
 
-		// close the instruction
-	    stmt.close ();
+			// issues the update instruction
+			rows = stmt.executeUpdate ();
+			return rows;
+		}catch (SQLException e){
+			error = e;
+			throw e;
+		}finally{
+			this._pool.release (pc);
+			this._metrics.record (sql, System.nanoTime () - start, rows, 1, error);
+		}
 	}//end executeUpdate
 
 	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
+	 * Method to execute a parameterized query SQL instruction (i.e. SELECT)
+	 * through the statement cache and output the results to standard out.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string with ? placeholders
+	 * @param params the values bound to the placeholders
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		return executeQueryAndPrintResult (out, query, params);
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/**
+	 * Method to execute a parameterized query SQL instruction (i.e. SELECT)
+	 * and output the results to a writer.  Rows are streamed from a server
+	 * side cursor and written through a buffer that is flushed once at the
+	 * end, so the result never has to fit in memory.
+	 * 
+	 * @param out the writer the results are printed to
+	 * @param query the input query string with ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult (Writer out, String query, Object... params) throws SQLException {
+		return printResult (out, false, query, params);
+	}
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	/**
+	 * Method to execute a read-only report query and output the results to
+	 * a writer, like executeQueryAndPrintResult, on the replica when one is
+	 * configured and within the lag tolerance (see executeReportStreaming).
+	 * 
+	 * @param out the writer the results are printed to
+	 * @param query the input query string with ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeReportAndPrintResult (Writer out, String query, Object... params) throws SQLException {
+		return printResult (out, true, query, params);
+	}
+
+	/*
+	 * prints the header and the rows of a query, on the replica for reports.
+	 */
+	private int printResult (Writer out, boolean report, String query, Object... params) throws SQLException {
+		final BufferedWriter writer = out instanceof BufferedWriter ? (BufferedWriter) out : new BufferedWriter (out, 1 << 16);
+		try{
+			RowHandler printer = new RowHandler () {
+				private int numCol = -1;
+
+				public void handle (ResultSet rs) throws SQLException {
+					try{
+						if (numCol < 0){
+							/*
+							 *  obtains the metadata object for the returned result set.  The metadata
+							 *  contains row and column info.
+							 */
+							ResultSetMetaData rsmd = rs.getMetaData ();
+							numCol = rsmd.getColumnCount ();
+							for (int i = 1; i <= numCol; i++){
+								writer.write (rsmd.getColumnName (i));
+								writer.write ('\t');
+							}
+							writer.newLine ();
+						}//end if
+						for (int i = 1; i <= numCol; ++i){
+							writer.write (String.valueOf (rs.getString (i)));
+							writer.write ('\t');
+						}
+						writer.newLine ();
+					}catch (IOException e){
+						throw new SQLException ("Failed to write result: " + e.getMessage (), e);
+					}//end try
+				}
+			};
+			int rowCount = report ? executeReportStreaming (query, printer, params) : executeQueryStreaming (query, printer, params);
+			writer.flush ();
+			return rowCount;
+		}catch (IOException e){
+			throw new SQLException ("Failed to write result: " + e.getMessage (), e);
+		}//end try
+	}
+
+	/**
+	 * Method to execute a parameterized query SQL instruction (i.e. SELECT)
+	 * and hand every row to a callback as it arrives.  The query runs on a
+	 * server side cursor (autocommit off, fetch size -Ddbproject.fetchSize,
+	 * default 1000), so only one batch of rows is held in memory at a time.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param handler called once per row, with the result set positioned on it
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryStreaming (String query, RowHandler handler, Object... params) throws SQLException {
+		return stream (this._pool, query, handler, params);
 	}
+
+	/**
+	 * Method to execute a read-only report query and hand every row to a
+	 * callback, like executeQueryStreaming, on the replica when one is
+	 * configured and within the lag tolerance.  When the replica connection
+	 * fails before the first row, the query runs again on the primary.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param handler called once per row, with the result set positioned on it
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeReportStreaming (String query, final RowHandler handler, Object... params) throws SQLException {
+		ConnectionPool replica = this._replica == null ? null : this._replica.route ();
+		if (replica == null){
+			return stream (this._pool, query, handler, params);
+		}//end if
+		final int[] handled = { 0 };
+		try{
+			return stream (replica, query, new RowHandler () {
+				public void handle (ResultSet rs) throws SQLException {
+					handler.handle (rs);
+					++handled[0];
+				}
+			}, params);
+		}catch (SQLException e){
+			// connection failures (class 08) and shutdowns (57P*) are the replica's, not the query's
+			String state = e.getSQLState ();
+			if (handled[0] > 0 || state == null || !(state.startsWith ("08") || state.startsWith ("57P"))){
+				throw e;
+			}//end if
+			this._replica.failed (e);
+			return stream (this._pool, query, handler, params);
+		}//end try
+	}//end executeReportStreaming
+
+	/*
+	 * runs a query on a server side cursor of a connection from the given pool.
+	 */
+	private int stream (ConnectionPool pool, String query, RowHandler handler, Object... params) throws SQLException {
+		ConnectionPool.PooledConnection pc = borrow (pool);
+		long start = System.nanoTime ();
+		int fetchSize = Integer.getInteger ("dbproject.fetchSize", 1000);
+		int rowCount = 0;
+		SQLException error = null;
+		try{
+			// cursors only exist inside a transaction
+			pc.connection ().setAutoCommit (false);
+			PreparedStatement stmt = pc.statements ().prepare (query);
+			stmt.setFetchSize (fetchSize);
+			StatementCache.bind (stmt, params);
+
+			ResultSet rs = stmt.executeQuery ();
+			while (rs.next ()){
+				handler.handle (rs);
+				++rowCount;
+			}//end while
+			rs.close ();
+			pc.connection ().commit ();
+			return rowCount;
+		}catch (SQLException e){
+			error = e;
+			throw e;
+		}finally{
+			pool.release (pc);
+			// the execute, one fetch per further batch and the commit
+			this._metrics.record (query, System.nanoTime () - start, rowCount, 2 + rowCount / Math.max (1, fetchSize), error);
+		}
+	}//end stream
 	
 	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and returns the results as
-	 * a list of records. Each record in turn is a list of attribute values
+	 * Method to execute a parameterized query SQL instruction (i.e. SELECT)
+	 * through the statement cache and return the results as a list of
+	 * records. Each record in turn is a list of attribute values
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string with ? placeholders
+	 * @param params the values bound to the placeholders
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		ConnectionPool.PooledConnection pc = borrow ();
+		long start = System.nanoTime ();
+		int rowCount = 0;
+		SQLException error = null;
+		try{
+			PreparedStatement stmt = pc.statements ().prepare (query);
+			StatementCache.bind (stmt, params);
+
+			ResultSet rs = stmt.executeQuery ();
+			List<List<String>> result = collectResult (rs);
+			rs.close ();
+			rowCount = result.size ();
+			return result;
+		}catch (SQLException e){
+			error = e;
+			throw e;
+		}finally{
+			this._pool.release (pc);
+			this._metrics.record (query, System.nanoTime () - start, rowCount, 1, error);
+		}
+	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute a parameterized query SQL instruction (i.e. SELECT)
+	 * and return the results in typed columns: integers as int[]/long[],
+	 * dates as epoch days and status/specialty dictionary encoded.  Rows are
+	 * streamed from a server side cursor straight into the columns.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the query result in columnar form
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ColumnarResult executeQueryAndReturnColumns (String query, Object... params) throws SQLException {
+		ColumnarResult result = new ColumnarResult ();
+		executeQueryStreaming (query, result, params);
+		return result;
+	}//end executeQueryAndReturnColumns
+
+	/*
+	 * saves every record of a result set as a list of attribute values.
+	 */
+	private static List<List<String>> collectResult (ResultSet rs) throws SQLException {
 		/*
 		 * obtains the metadata object for the returned result set.  The metadata 
 		 * contains row and column info. 
 		*/ 
 		ResultSetMetaData rsmd = rs.getMetaData (); 
 		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
 	 
 		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
 		List<List<String>> result  = new ArrayList<List<String>>(); 
 		while (rs.next()){
 			List<String> record = new ArrayList<String>(); 
@@ -152,39 +463,32 @@ public class DBproject{
 				record.add(rs.getString (i)); 
 			result.add(record); 
 		}//end while 
-		stmt.close (); 
 		return result; 
-	}//end executeQueryAndReturnResult
+	}//end collectResult
 	
 	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and returns the number of results
+	 * Method to execute a parameterized query SQL instruction (i.e. SELECT)
+	 * and return the number of results.  The rows are counted as they stream
+	 * from a server side cursor.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string with ? placeholders
+	 * @param params the values bound to the placeholders
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		int rowCount = 0;
-
-		//iterates through the result set and count nuber of results.
-		while(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	public int executeQuery (String query, Object... params) throws SQLException {
+		return executeQueryStreaming (query, new RowHandler () {
+			public void handle (ResultSet rs) {
+			}
+		}, params);
 	}
 	
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * value of sequence used for autogenerated keys.  currval() is
+	 * session local, so the value comes from whichever pooled
+	 * connection last advanced the sequence.
 	 * 
 	 * @param sequence name of the DB sequence
 	 * @return current value of a sequence
@@ -192,36 +496,234 @@ public class DBproject{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		ConnectionPool.PooledConnection pc = borrow ();
+		long start = System.nanoTime ();
+		String query = String.format("Select currval('%s')", sequence);
+		SQLException error = null;
+		try{
+			Statement stmt = pc.connection ().createStatement ();
+			
+			ResultSet rs = stmt.executeQuery (query);
+			int value = -1;
+			if (rs.next()) value = rs.getInt(1);
+			stmt.close ();
+			return value;
+		}catch (SQLException e){
+			error = e;
+			throw e;
+		}finally{
+			this._pool.release (pc);
+			this._metrics.record (query, System.nanoTime () - start, 1, 1, error);
+		}
+	}
+
+	/**
+	 * Method to advance a sequence and fetch its new value. This
+	 * method issues the query to the DBMS and returns the next
+	 * value of sequence used for autogenerated keys
+	 * 
+	 * @param sequence name of the DB sequence
+	 * @return next value of a sequence
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int getNextSeqVal(String sequence) throws SQLException {
+		ConnectionPool.PooledConnection pc = borrow ();
+		try{
+			return getNextSeqVal (pc, sequence);
+		}finally{
+			this._pool.release (pc);
+		}
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to advance a sequence on a connection the caller already
+	 * holds, e.g. inside a transaction.
+	 *
+	 * @param pc the caller's pooled connection
+	 * @param sequence name of the DB sequence
+	 * @return next value of a sequence
+	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public void cleanup(){
+	public int getNextSeqVal(ConnectionPool.PooledConnection pc, String sequence) throws SQLException {
+		long start = System.nanoTime ();
+		String query = String.format("Select nextval('%s')", sequence);
+		SQLException error = null;
 		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
+			Statement stmt = pc.connection ().createStatement ();
+			
+			ResultSet rs = stmt.executeQuery (query);
+			int value = -1;
+			if (rs.next()) value = rs.getInt(1);
+			stmt.close ();
+			return value;
 		}catch (SQLException e){
-	         // ignored.
-		}//end try
+			error = e;
+			throw e;
+		}finally{
+			this._metrics.record (query, System.nanoTime () - start, 1, 1, error);
+		}
+	}
+
+	/**
+	 * Method to run a unit of work as one transaction.  The work is rolled
+	 * back and run again, after a short randomized backoff, when it fails
+	 * with a serialization failure (40001) or a deadlock (40P01); any other
+	 * error is rolled back and rethrown.
+	 * 
+	 * @param work the statements to run inside the transaction
+	 * @return the value returned by the work
+	 * @throws java.sql.SQLException when the work failed or kept conflicting
+	 */
+	public <T> T executeTransaction (Transaction<T> work) throws SQLException {
+		int maxAttempts = Integer.getInteger ("dbproject.tx.attempts", 5);
+		String operation = this._metrics.currentOperation ();
+		String shape = "TRANSACTION " + (operation == null ? work.getClass ().getName () : operation);
+		for (int attempt = 1; ; ++attempt){
+			ConnectionPool.PooledConnection pc = borrow ();
+			long start = System.nanoTime ();
+			// every statement of the work is fetched from the cache once
+			long statements = pc.statements ().getHits () + pc.statements ().getMisses ();
+			SQLException error = null;
+			try{
+				pc.connection ().setAutoCommit (false);
+				T result = work.run (pc);
+				pc.connection ().commit ();
+				return result;
+			}catch (SQLException e){
+				error = e;
+				try{
+					pc.connection ().rollback ();
+				}catch (SQLException ignored){
+					// the connection is discarded on release if it is broken.
+				}
+				String state = e.getSQLState ();
+				if (attempt >= maxAttempts || !("40001".equals (state) || "40P01".equals (state))){
+					throw e;
+				}//end if
+				this._transactionRetries.incrementAndGet ();
+			}finally{
+				statements = pc.statements ().getHits () + pc.statements ().getMisses () - statements;
+				this._pool.release (pc);
+				this._metrics.record (shape, System.nanoTime () - start, 0, statements + 1, error);
+			}//end try
+			try{
+				Thread.sleep (ThreadLocalRandom.current ().nextLong (1, 5L << attempt));
+			}catch (InterruptedException e){
+				Thread.currentThread ().interrupt ();
+				throw new SQLException ("Interrupted while retrying a transaction");
+			}//end try
+		}//end for
+	}//end executeTransaction
+
+	public long getTransactionRetries() {
+		return this._transactionRetries.get ();
+	}
+
+	public ConnectionPool getPool() {
+		return this._pool;
+	}
+
+	public QueryMetrics getMetrics() {
+		return this._metrics;
+	}
+
+	public ReplicaRouter getReplica() {
+		return this._replica;
+	}
+
+	public ReferenceCache getReferenceCache() {
+		return this._reference;
+	}
+
+	public PatientIdentity getPatientIdentity() {
+		return this._patients;
+	}
+
+	public ReportCache getReportCache() {
+		return this._reportCache;
+	}
+
+	public AvailabilityIndex getAvailability() {
+		return this._availability;
+	}
+
+	public NameIndex getNameIndex() {
+		return this._names;
+	}
+
+	public BookingPipeline getBookingPipeline() {
+		return this._bookings;
+	}
+
+	public AppointmentService getService() {
+		return this._service;
+	}
+
+	public NotificationListener getListener() {
+		return this._listener;
+	}
+
+	/*
+	 * borrows a pooled connection, recording the time spent waiting for it.
+	 */
+	private ConnectionPool.PooledConnection borrow () throws SQLException {
+		return borrow (this._pool);
+	}
+
+	private ConnectionPool.PooledConnection borrow (ConnectionPool pool) throws SQLException {
+		long start = System.nanoTime ();
+		try{
+			return pool.borrow ();
+		}finally{
+			this._metrics.recordPoolWait (System.nanoTime () - start);
+		}
+	}
+
+	public IdAllocator patientIDs() {
+		return this._patientIDs;
+	}
+
+	public IdAllocator doctorIDs() {
+		return this._doctorIDs;
+	}
+
+	public IdAllocator appointmentIDs() {
+		return this._appointmentIDs;
+	}
+
+	/**
+	 * Method to close the physical connections if they are open.
+	 */
+	public void cleanup(){
+		this._service.shutdown ();
+		if (this._bookings != null){
+			this._bookings.stop ();
+		}//end if
+		this._metrics.stop ();
+		if (this._listener != null){
+			this._listener.stop ();
+		}//end if
+		this._reference.stop ();
+		if (this._replica != null){
+			this._replica.close ();
+		}//end if
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
 	 * The main execution method
 	 * 
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+	 *        and optionally --serve <http port> to serve requests instead of the menu
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		boolean serve = args.length == 5 && args[3].equals("--serve");
+		if (args.length != 3 && !serve) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + DBproject.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [--serve <http port>]");
 			return;
 		}//end if
 		
@@ -245,6 +747,19 @@ public class DBproject{
 			String user = args[2];
 			
 			esql = new DBproject (dbname, dbport, user, "");
+
+			if (serve) {
+				final RequestServer server = new RequestServer (esql, Integer.parseInt (args[4]));
+				final DBproject shared = esql;
+				Runtime.getRuntime ().addShutdownHook (new Thread () {
+					public void run () {
+						server.stop ();
+						shared.cleanup ();
+					}
+				});
+				server.serve ();
+				return;
+			}//end if
 			
 			boolean keepon = true;
 			while(keepon){
@@ -259,6 +774,7 @@ public class DBproject{
 				System.out.println("7. List total number of different types of appointments per doctor in descending order");
 				System.out.println("8. Find total number of patients per doctor with a given status");
 				System.out.println("9. < EXIT");
+				System.out.println("10. Statistics");
 				
 				switch (readChoice()){
 					case 1: AddDoctor(esql); break;
@@ -270,6 +786,7 @@ public class DBproject{
 					case 7: ListStatusNumberOfAppointmentsPerDoctor(esql); break;
 					case 8: FindPatientsCountWithStatus(esql); break;
 					case 9: keepon = false; break;
+					case 10: Statistics(esql); break;
 				}
 			}
 		}catch(Exception e){
@@ -277,6 +794,7 @@ public class DBproject{
 		}finally{
 			try{
 				if(esql != null) {
+					System.out.println(esql.getPool());
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
@@ -305,259 +823,122 @@ public class DBproject{
 
 	public static void AddDoctor(DBproject esql) {//1
 		try {
+			System.out.print("\tEnter name (MAX: 128 CHAR): ");
+			String name = in.readLine();
 
-			int rowCount = esql.executeQuery("SELECT * FROM Doctor");
-			
-         		String query = "INSERT INTO Doctor VALUES (" + rowCount + ",\'";
-			
-         		System.out.print("\tEnter name (MAX: 128 CHAR): ");
-         		String input = in.readLine();
-         		query += input;
-	 		query += "\',\'";
-
-			if (input.length() > 128) {
-				throw new SQLException("Name exceeds CHAR limit");
-			}
+			Operations.checkLength(name, 128, "Name");
 			
 			System.out.print("\tEnter specialty (MAX: 24 CHAR): ");
-         		input = in.readLine();
-         		query += input;
-	 		query += "\',";
-
-			if (input.length() > 24) {
-                                throw new SQLException("Specialty exceeds CHAR limit");
-                        }
+			String specialty = in.readLine();
+			Operations.checkLength(specialty, 24, "Specialty");
 			
-			System.out.print("\tEnter did: ");
-         		input = in.readLine();
-         		query += input;
-	 		query += ");";
-
-			List<List<String>> result = esql.executeQueryAndReturnResult("SELECT * FROM Department WHERE dept_ID = \'" + input + "\';");
-			if (result.isEmpty()) {
-				throw new SQLException("Invalid department");
-			}		
-
-         		esql.executeUpdate(query);
-      		}
+			int did = readDepartment(esql, "\tEnter did (ID or department name): ");
+
+			AppointmentService.join(esql.getService().addDoctor(new AppointmentService.NewDoctor(name, specialty, did)));
+		}
+		catch(NumberFormatException e) {
+			System.out.println("ERROR: Input must be INTEGER");
+		}
 		catch(Exception e) {
-         		System.err.println ("ERROR: " + e.getMessage());
-       		}
+			System.err.println ("ERROR: " + e.getMessage());
+		}
 	}
 
 	public static void AddPatient(DBproject esql) {//2
 		try {
-			int rowCount = esql.executeQuery("SELECT * FROM Patient");
-			
-         		String query = "INSERT INTO Patient VALUES (" + rowCount + ",\'";
-			
-         		System.out.print("\tEnter name (MAX: 128 CHAR): ");
-         		String input = in.readLine();
-         		query += input;
-	 		query += "\',\'";
-		
-			if (input.length() > 128) {
-                                throw new SQLException("Name exceeds CHAR limit");
-                        }
+			System.out.print("\tEnter name (MAX: 128 CHAR): ");
+			String name = in.readLine();
+			Operations.checkLength(name, 128, "Name");
 	
 			System.out.print("\tEnter gender (M/F): ");
-         		input = in.readLine();
-			input = input.toUpperCase();
-         		query += input;
-	 		query += "\',";
-
-			if (!input.equals("M") && !input.equals("F")) {
-				throw new SQLException("Invalid gender");
-			}
+			String gender = in.readLine().toUpperCase();
+			Operations.checkGender(gender);
 			
 			System.out.print("\tEnter age: ");
-         		input = in.readLine();
-         		query += input;
-	 		query += ",\'";
-
-			int i = Integer.parseInt(input);
+			int age = Integer.parseInt(in.readLine());
 			
 			System.out.print("\tEnter address (MAX: 256 CHAR): ");
-         		input = in.readLine();
-         		query += input;
-	 		query += "\',";
-			
-			if (input.length() > 256) {
-                                throw new SQLException("Address exceeds CHAR limit");
-                        }
+			String address = in.readLine();
+			Operations.checkLength(address, 256, "Address");
 
 			System.out.print("\tEnter number of appointments: ");
-         		input = in.readLine();
-         		query += input;
-	 		query += ");";
+			int numAppts = Integer.parseInt(in.readLine());
 
-			i = Integer.parseInt(input);
-
-			esql.executeUpdate(query);
-      		}
+			AppointmentService.join(esql.getService().addPatient(new AppointmentService.NewPatient(name, gender, age, address, numAppts)));
+		}
 		catch(NumberFormatException e) {
 			System.out.println("ERROR: Input must be INTEGER");
 		}
 		catch(Exception e) {
-         		System.err.println ("ERROR: " + e.getMessage());
-       		}
+			System.err.println ("ERROR: " + e.getMessage());
+		}
 	}
 
 	public static void AddAppointment(DBproject esql) {//3
 		try {
 			DateTimeFormatter format = DateTimeFormatter.ofPattern("MM/dd/yyyy");	
 			
-			int rowCount = esql.executeQuery("SELECT * FROM Appointment");
-			
-         		String query = "INSERT INTO Appointment VALUES (" + rowCount + ",\'";
-			
-         		System.out.print("\tEnter date: ");
-         		String input = in.readLine();
-			LocalDate localadd = LocalDate.parse(input, format);
-         		query += input;
-	 		query += "\',\'";
+			System.out.print("\tEnter date: ");
+			LocalDate adate = LocalDate.parse(in.readLine(), format);
 			
 			System.out.print("\tEnter timeslot: ");
-         		input = in.readLine();
-			Date date1 = new SimpleDateFormat("HH:mm-HH:mm").parse(input);
-         		query += input;
-	 		query += "\',\'";
+			String timeSlot = in.readLine();
+			Operations.checkTimeSlot(timeSlot);
 			
 			System.out.print("\tEnter status: ");
-         		input = in.readLine();
-			input = input.toUpperCase();
-         		query += input;
-	 		query += "\');";
-
-			if (!input.equals("WL") && !input.equals("AV") && !input.equals("AC") && !input.equals("PA")) {
-                                throw new SQLException("Invalid status");
-                        }
+			String status = in.readLine().toUpperCase();
+			Operations.checkStatus(status);
 
-         		esql.executeUpdate(query);
-      		}
+			AppointmentService.join(esql.getService().addAppointment(new AppointmentService.NewAppointment(adate, timeSlot, status)));
+		}
 		catch(Exception e) {
-         		System.err.println ("ERROR: " + e.getMessage());
-       		}
+			System.err.println ("ERROR: " + e.getMessage());
+		}
 	}
 
 
 	public static void MakeAppointment(DBproject esql) {//4
 		try {
-			
-         		System.out.print("\tEnter patient name: ");
-         		String pname = in.readLine();
-
-			if (pname.length() > 128) {
-                                throw new SQLException("Name exceeds CHAR limit");
-                        }
+			System.out.print("\tEnter patient name: ");
+			String pname = in.readLine();
+			Operations.checkLength(pname, 128, "Name");
 
 			System.out.print("\tEnter patient gender: ");
-                        String pgender = in.readLine();
-			pgender = pgender.toUpperCase();
-
-			if (!pgender.equals("M") && !pgender.equals("F")) {
-                                throw new SQLException("Invalid gender");
-                        }
+			String pgender = in.readLine().toUpperCase();
+			Operations.checkGender(pgender);
 
 			System.out.print("\tEnter patient age: ");
-                        String page = in.readLine();
-			
-			int i = Integer.parseInt(page);
+			int page = Integer.parseInt(in.readLine());
 	
 			System.out.print("\tEnter patient address: ");
-                        String paddress = in.readLine();
-
-			if (paddress.length() > 256) {
-                                throw new SQLException("Address exceeds CHAR limit");
-                        }
+			String paddress = in.readLine();
+			Operations.checkLength(paddress, 256, "Address");
 
-			List<List<String>> result = esql.executeQueryAndReturnResult("SELECT patient_ID FROM Patient WHERE name=\'" + pname + "\' AND gtype=\'" + pgender + "\' AND age=" + page + " AND address=\'" + paddress + "\';");
-			
-			int p_id = esql.executeQuery("SELECT * FROM Patient");
-			String pid = "" + p_id + "";
-
-			if (result.isEmpty()) {
-				String new_patient = "INSERT INTO Patient VALUES (" + p_id + ",\'" + pname + "\',\'" + pgender + "\'," + page + ",\'" + paddress + "\',0);";
-                       		esql.executeUpdate(new_patient);
-                        }
-			else {
-				pid = result.get(0).get(0);
-			}
-			
-			System.out.print("\tEnter doctor: ");
-         		String doct_id = in.readLine();
-			result = esql.executeQueryAndReturnResult("SELECT * FROM Doctor WHERE doctor_ID = \'" + doct_id + "\';");
-                        if (result.isEmpty()) {
-                                throw new SQLException("Invalid doctor");
-                        }
+			int doct_id = readDoctor(esql, "\tEnter doctor (ID or name): ");
 	
 			System.out.print("\tEnter appointment: ");
-         		String aid = in.readLine();
-			result = esql.executeQueryAndReturnResult("SELECT * FROM Appointment WHERE appnt_ID = \'" + aid + "\';");
-                        if (result.isEmpty()) {
-                                throw new SQLException("Invalid appointment");
-                        }
-
-			result = esql.executeQueryAndReturnResult("SELECT did FROM Doctor WHERE doctor_ID = \'" + doct_id + "\';");
-                        String did = (result.get(0).get(0));
-                        result = esql.executeQueryAndReturnResult("SELECT hid FROM Department WHERE dept_ID = \'" + did + "\';");
-                        String hid = (result.get(0).get(0));
-	
-			result = esql.executeQueryAndReturnResult("SELECT status FROM Appointment WHERE appnt_ID = \'" + aid + "\';");
-			String str = result.get(0).get(0);
-			if (str.equals("AV")) {
-				String query = "UPDATE Appointment SET status = \'AC\' WHERE appnt_ID=" + aid + ";";
-				System.out.println("Appointment status: " + str + " -> AC");
-			}
-			else if (str.equals("AC")) {
-				String query = "UPDATE Appointment SET status = \'WL\' WHERE appnt_ID=" + aid + ";";
-                                System.out.println("Appointment status: " + str + " -> WL");
-			}
-			else {
-				System.out.println("Appointment status: " + str);
-			}
+			int aid = Integer.parseInt(in.readLine());
 
-			if (!str.equals("PA")) {
-				
-				String query = "INSERT INTO searches VALUES (" + hid + "," + pid + "," + aid + ");";
-                        	// query += "INSERT INTO schedules VALUES (" + aid + "," + sid + ");";
-                        	query += "INSERT INTO has_appointment VALUES (" + aid + "," + doct_id + ");";
-
-         			esql.executeUpdate(query);
-
-				query = "SELECT number_of_appts FROM Patient WHERE patient_ID=" + pid + ";";
-				result = esql.executeQueryAndReturnResult(query);
-				str = result.get(0).get(0);
-				int num_appt = Integer.parseInt(str);
-				num_appt++;
-				query = "UPDATE Patient SET number_of_appts=" + num_appt + " WHERE patient_ID=" + pid + ";";
-				
-				esql.executeUpdate(query);
-			}
-      		}
+			String transition = AppointmentService.join(esql.getService().book(new AppointmentService.Booking(pname, pgender, page, paddress, doct_id, aid)));
+			System.out.println("Appointment status: " + transition);
+		}
 		catch(NumberFormatException e) {
-                        System.out.println("ERROR: Input must be INTEGER");
-                }
+			System.out.println("ERROR: Input must be INTEGER");
+		}
 		catch(Exception e) {
-         		System.err.println ("ERROR: " + e.getMessage());
-       		}
+			System.err.println ("ERROR: " + e.getMessage());
+		}
 	}
 
 	public static void ListAppointmentsOfDoctor(DBproject esql) {//5
 		// For a doctor ID and a date range, find the list of active and available appointments of the doctor
-//		try{
-
 		int dID;
-		String startDate;
-		String endDate;
-		Date sDate;
-		Date eDate;
+		LocalDate startDate;
+		LocalDate endDate;
 		DateTimeFormatter format = DateTimeFormatter.ofPattern("MM/dd/yyyy");
-		SimpleDateFormat sdformat = new SimpleDateFormat("MM/dd/yyyy");
 		while(true) {
 			try {	
-				System.out.println("Enter doctor ID:");
-				dID = Integer.parseInt(in.readLine());
+				dID = readDoctor(esql, "Enter doctor (ID or name):\n");
 				if (dID < 0) {
 					throw new RuntimeException("ERROR: Doctor ID can't be less than 0");
 				}
@@ -570,9 +951,7 @@ public class DBproject{
 		while(true) {
 			try {
 				System.out.println("Enter starting date(MM/DD/YYYY):");
-				startDate = in.readLine();
-				sDate = sdformat.parse(startDate);
-				LocalDate localadd = LocalDate.parse(startDate, format);
+				startDate = LocalDate.parse(in.readLine(), format);
 				break;
 			} catch (Exception e) {
 				System.out.println("ERROR: Invalid input for starting date. " + e);
@@ -582,10 +961,8 @@ public class DBproject{
 		while(true) {
 			try {
 				System.out.println("Enter ending date(MM/DD/YYYY):");
-				endDate = in.readLine();
-				eDate = sdformat.parse(endDate);
-				LocalDate localaad = LocalDate.parse(endDate, format);
-				if(eDate.compareTo(sDate) < 0) {
+				endDate = LocalDate.parse(in.readLine(), format);
+				if(endDate.compareTo(startDate) < 0) {
 					throw new RuntimeException("ERROR: Ending date can't be less than starting date");
 				}
 				
@@ -595,78 +972,137 @@ public class DBproject{
 				continue;
 			}
 		}
-			try {
-				String query = "SELECT D.name, D.doctor_ID, A.appnt_ID, A.adate, A.time_slot, A.status FROM Appointment A, Doctor D, has_appointment HA WHERE HA.appt_id = A.appnt_ID AND (A.status = 'AC' OR A.status = 'AV') AND HA.doctor_id = D.doctor_ID AND D.doctor_ID = ";
-	                        query += dID + " AND A.adate >= \'";
-				query += startDate + "\' AND A.adate <= \'";
-				query += endDate + "\';";
-
-				
-				
-				esql.executeQueryAndPrintResult(query);
-			} catch (Exception e) {
-				System.out.println("ERROR: Query failed to execute. " + e);
-			}
-			
-/*		} catch (Exception e) {
-			System.err.println(e.getMessage());
-		}*/
+		try {
+			// one page at a time (-Ddbproject.pageSize rows, default 20)
+			Operations.Page page = null;
+			do {
+				page = AppointmentService.join(esql.getService().listAppointmentsOfDoctor(
+					new AppointmentService.DoctorAppointments(dID, startDate, endDate, page, PAGE_SIZE), out));
+			} while (page.more && nextPage());
+		} catch (Exception e) {
+			System.out.println("ERROR: Query failed to execute. " + e);
+		}
 	}
 
 	public static void ListAvailableAppointmentsOfDepartment(DBproject esql) {//6
 		// For a department name and a specific date, find the list of available appointments of the department
-		
-
 		String deptName;
-		String Date;	
+		LocalDate date;	
 		DateTimeFormatter format = DateTimeFormatter.ofPattern("MM/dd/yyyy");	
 
-
-                        String query = "SELECT A.appnt_ID, A.adate, A.time_slot, A.status FROM Appointment A, Doctor D, has_appointment HA, Department DE  WHERE HA.appt_id = A.appnt_ID AND HA.doctor_id = D.doctor_ID AND D.did = DE.dept_ID AND A.status = 'AV' AND DE.name = '";
 		while(true) {
-                        try {
-                                System.out.println("Enter department name:");
-				deptName = in.readLine();
-                                break;
-                        } catch (Exception e) {
-                                System.out.println("ERROR: Invalid input for department Name. " + e);
-                                continue;
-                        }
-                }
-                while(true) {
-                        try {
-                                System.out.println("Enter date(MM/DD/YYYY):");
-                                Date = in.readLine();
-                                LocalDate localadd = LocalDate.parse(Date, format);
-                                break;
-                        } catch (Exception e) {
-                                System.out.println("ERROR: Invalid input for date. " + e);
-                                continue;
-                        }
-                }
+			try {
+				deptName = readDepartmentName(esql, "Enter department name:\n");
+				break;
+			} catch (Exception e) {
+				System.out.println("ERROR: Invalid input for department Name. " + e);
+				continue;
+			}
+		}
+		while(true) {
+			try {
+				System.out.println("Enter date(MM/DD/YYYY):");
+				date = LocalDate.parse(in.readLine(), format);
+				break;
+			} catch (Exception e) {
+				System.out.println("ERROR: Invalid input for date. " + e);
+				continue;
+			}
+		}
 
 		try {
-			query += deptName + "' AND A.adate = '";
-                        query += Date + "\';";
-                        esql.executeQueryAndPrintResult(query);
+			Operations.Page page = null;
+			do {
+				page = AppointmentService.join(esql.getService().listAvailableAppointmentsOfDepartment(
+					new AppointmentService.AvailableAppointments(deptName, date, page, PAGE_SIZE), out));
+			} while (page.more && nextPage());
 		} catch (Exception e) {
 			System.out.println("ERROR: Query failed to execute. " + e);
 		}
+	}
+
+	/*
+	 * reads a doctor as an ID or as (part of) a name or specialty, looked up
+	 * in the name index.
+	 */
+	private static int readDoctor(DBproject esql, String prompt) throws IOException, SQLException {
+		System.out.print(prompt);
+		String input = in.readLine();
+		if (input == null) throw new SQLException("No doctor given");
+		if (input.trim().matches("\\d+")) return Integer.parseInt(input.trim());
+		return choose(esql.getNameIndex().searchDoctors(input, MATCHES), input, "doctor", false).id;
+	}
+
+	/*
+	 * reads a department as an ID or as (part of) its name or hospital.
+	 */
+	private static int readDepartment(DBproject esql, String prompt) throws IOException, SQLException {
+		System.out.print(prompt);
+		String input = in.readLine();
+		if (input == null) throw new SQLException("No department given");
+		if (input.trim().matches("\\d+")) return Integer.parseInt(input.trim());
+		return choose(esql.getNameIndex().searchDepartments(input, MATCHES), input, "department", false).id;
+	}
+
+	/*
+	 * reads a department name for option 6, which lists every department of
+	 * that name; a name the index does not know is used as typed.
+	 */
+	private static String readDepartmentName(DBproject esql, String prompt) throws IOException, SQLException {
+		System.out.print(prompt);
+		String input = in.readLine();
+		if (input == null) throw new SQLException("No department given");
+		List<NameIndex.Match> names = new ArrayList<NameIndex.Match>();
+		for (NameIndex.Match m : esql.getNameIndex().searchDepartments(input, MATCHES * 4)) {
+			boolean seen = false;
+			for (NameIndex.Match n : names) seen |= n.name.equalsIgnoreCase(m.name);
+			if (!seen && names.size() < MATCHES) names.add(m);
+		}
+		if (names.isEmpty()) return input;
+		return choose(names, input, "department", true).name;
+	}
 
+	/*
+	 * the match the clerk meant: the only one, the one whose name was typed
+	 * out in full, or the one they pick from the list.
+	 */
+	private static NameIndex.Match choose(List<NameIndex.Match> matches, String input, String what, boolean byName) throws IOException, SQLException {
+		if (matches.isEmpty()) throw new SQLException("No " + what + " matches \"" + input.trim() + "\"");
+		NameIndex.Match first = matches.get(0);
+		boolean typedOut = first.distance == 0 && first.name.equalsIgnoreCase(input.trim())
+			&& (matches.size() == 1 || !matches.get(1).name.equalsIgnoreCase(first.name));
+		if (matches.size() == 1 || typedOut) {
+			System.out.println("\t" + (byName ? first.name : first.toString()));
+			return first;
+		}
+		for (int i = 0; i < matches.size(); ++i)
+			System.out.println("\t" + (i + 1) + ". " + (byName ? matches.get(i).name : matches.get(i).toString()));
+		System.out.print("\tChoose the " + what + " (1-" + matches.size() + "): ");
+		try {
+			int choice = Integer.parseInt(in.readLine().trim());
+			if (choice >= 1 && choice <= matches.size()) return matches.get(choice - 1);
+		} catch (NumberFormatException e) {
+			// reported below.
+		}
+		throw new SQLException("Invalid choice");
+	}//end choose
 
+	/*
+	 * asks whether to show the next page of a listing.
+	 */
+	private static boolean nextPage() throws IOException {
+		System.out.println("-- Press Enter for the next page, q to stop --");
+		String answer = in.readLine();
+		return answer != null && !answer.trim().equalsIgnoreCase("q");
 	}
 
 	public static void ListStatusNumberOfAppointmentsPerDoctor(DBproject esql) {//7
 		// Count number of different types of appointments per doctors and list them in descending order
 		try { 
-			String query = "SELECT D.doctor_ID, D.name, A.status, COUNT(*) FROM Appointment A, Doctor D, has_appointment HA WHERE HA.appt_id = A.appnt_ID AND HA.doctor_id = D.doctor_ID GROUP BY D.doctor_ID, D.name, A.status ORDER BY COUNT(*) DESC;";
-
-			esql.executeQueryAndPrintResult(query);
+			AppointmentService.join(esql.getService().countPerDoctor(new AppointmentService.DoctorCounts(null, Operations.INCLUDE_ARCHIVE), out));
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		}
-
-
 	}
 
 	
@@ -679,8 +1115,8 @@ public class DBproject{
 		String WL = "WL";
 		while(true) {			
 			try {
-                	        System.out.println("Enter status(PA, AC, AV, WL):");
-                        	status = in.readLine();
+				System.out.println("Enter status(PA, AC, AV, WL):");
+				status = in.readLine();
 				if(status.equals(PA) || status.equals(AC) || status.equals(AV) || status.equals(WL)) {
 					break;
 				}
@@ -689,12 +1125,28 @@ public class DBproject{
 				System.out.println("ERROR: Invalid input for status. " + e);
 			}
 		}
-			try {
-				String query = "SELECT DISTINCT D.doctor_ID, D.name, COUNT(P.patient_ID) FROM Appointment A, Doctor D, has_appointment HA, Patient P, searches S WHERE HA.appt_id = A.appnt_ID AND HA.doctor_id = D.doctor_ID AND S.pid = P.patient_ID AND S.aid = A.appnt_ID AND A.status = '";			
-                        	query += status + "' GROUP BY D.doctor_ID, D.name;";
-	                        esql.executeQueryAndPrintResult(query);
-			} catch (Exception e) {
-				System.out.println("ERROR: Query failed to execute. " + e);
-			}
+		try {
+			AppointmentService.join(esql.getService().countPerDoctor(new AppointmentService.DoctorCounts(status, Operations.INCLUDE_ARCHIVE), out));
+		} catch (Exception e) {
+			System.out.println("ERROR: Query failed to execute. " + e);
+		}
+	}
+
+	public static void Statistics(DBproject esql) {//10
+		// Latency, rows and round trips per menu operation and per query shape
+		try {
+			esql.getMetrics().report(out);
+			out.write(esql.getPool() + "\n");
+			out.write(esql.getReportCache() + "\n");
+			out.write(esql.getPatientIdentity() + "\n");
+			out.write(esql.getReferenceCache() + "\n");
+			out.write(esql.getAvailability() + "\n");
+			out.write(esql.getNameIndex() + "\n");
+			if (esql.getReplica() != null) out.write(esql.getReplica() + "\n");
+			if (esql.getBookingPipeline() != null) out.write(esql.getBookingPipeline() + "\n");
+			out.flush();
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
 	}
 }
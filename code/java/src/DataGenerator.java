@@ -0,0 +1,530 @@
+/*
+ * Synthetic data generator
+ * ========================
+ *
+ * Generates referentially consistent data for the ten tables of
+ * sql/create.sql at a chosen scale factor.  Scale 1 matches the size of the
+ * shipped data set in code/data/ (550 appointments, 250 patients, 4
+ * hospitals); every other table grows linearly with it.
+ *
+ * Every row is derived from the seed and its own key only, so the output
+ * does not depend on the number of threads and any table can be generated
+ * on its own.  Rows are produced in chunks on a thread pool and emitted in
+ * key order, either as CSV files in the code/data/ format or streamed
+ * straight into the database through BulkLoader.
+ *
+ *   java -cp lib/*:bin/ DataGenerator [--scale <sf>] [--seed <n>] [--threads <n>] <out dir>
+ *   java -cp lib/*:bin/ DataGenerator [--scale <sf>] [--seed <n>] [--threads <n>] --db <dbname> <port> <user> [--create] [--sql <dir>]
+ *
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class generates synthetic hospital data with skewed statuses, dates
+ * and doctor popularity.
+ *
+ */
+
+public class DataGenerator{
+	public static final int CHUNK_ROWS = 8192;
+
+	//row counts of the shipped data set, i.e. scale factor 1
+	private static final int BASE_HOSPITALS = 4;
+	private static final int BASE_STAFF = 250;
+	private static final int BASE_DOCTORS = 250;
+	private static final int BASE_PATIENTS = 250;
+	private static final int BASE_APPOINTMENTS = 550;
+
+	//share of appointments handled by a staff member and of doctors with a maintenance request
+	private static final double SCHEDULED_SHARE = 0.2;
+	private static final double MAINTENANCE_SHARE = 0.4;
+	//Zipf exponent of doctor popularity
+	private static final double DOCTOR_SKEW = 1.0;
+
+	//appointments span 16 months before and 8 months after TODAY, which splits past and upcoming
+	private static final LocalDate TODAY = LocalDate.of(2021, 5, 1);
+	private static final int PAST_DAYS = 485;
+	private static final int FUTURE_DAYS = 245;
+
+	private static final String[] DEPARTMENTS = {
+		"Accident and emergency", "Allergy and Immunology", "Cardiology", "Dermatology",
+		"Endocrinology", "Finance", "Gastroenterology", "General Surgery", "Human Resources",
+		"ICU", "Microbiology", "Neurology", "Nutrition", "Obstetrics/Gynecology", "Oncology",
+		"Ophthalmology", "Otolaryngology", "Pain Management", "Patient Services", "Pediatric",
+		"Pharmacy", "Psychiatry", "Radiology", "Rheumatology", "Urology"
+	};
+	//specialty of the doctors of each department, null for departments without doctors of their own
+	private static final String[] SPECIALTIES = {
+		null, "Allergist", "Cardiologist", "Dermatologist",
+		"Endocrinologist", null, "Gastroenterologist", null, null,
+		null, null, "Neurologist", "Nutritionist", "gynecologist", "Oncologist",
+		"Ophthalmologist", "Otolaryngologist", null, null, "Pediatrician",
+		null, "Psychiatrist", "Radiologist", null, "Urologist"
+	};
+	private static final String[] HOSPITALS = {
+		"UCLA Medical Center", "Cedars-Sinai Medical Center", "Keck Hospital of USC",
+		"Huntington Hospital", "St. Joseph Hospital", "Mercy General Hospital",
+		"Good Samaritan Hospital", "Providence Medical Center"
+	};
+	private static final String[] FIRST_NAMES = {
+		"Armand", "Alberto", "Alvin", "Carrie", "Camille", "Lindsey", "Maria", "James",
+		"Linda", "Robert", "Patricia", "Michael", "Jennifer", "David", "Elizabeth", "Daniel",
+		"Susan", "Thomas", "Jessica", "Joseph", "Sarah", "Charles", "Karen", "Kevin",
+		"Nancy", "Brian", "Lisa", "George", "Betty", "Edward", "Sandra", "Ronald",
+		"Ashley", "Anthony", "Emily", "Mark", "Donna", "Steven", "Michelle", "Paul"
+	};
+	private static final String[] LAST_NAMES = {
+		"Enderle", "Scarlett", "Saunders", "Cortez", "Holmes", "Sullivan", "Garcia", "Smith",
+		"Johnson", "Williams", "Brown", "Jones", "Miller", "Davis", "Rodriguez", "Martinez",
+		"Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson", "Taylor", "Moore", "Jackson",
+		"Martin", "Lee", "Perez", "Thompson", "White", "Harris", "Clark", "Lewis",
+		"Robinson", "Walker", "Young", "Allen", "King", "Wright", "Scott", "Nguyen"
+	};
+	private static final String[] STREETS = {
+		"Chapel Drive", "Bald Hill Street", "Campfire Ave.", "Young Avenue", "East Warren St.",
+		"Spruce Dr.", "Golf Ave.", "Shub Farm St.", "W. Greystone Dr.", "Edgewood Ave.",
+		"Oak Street", "Maple Lane", "Sunset Blvd.", "Ridge Road", "Lake View Dr."
+	};
+	private static final String[] CITIES = {
+		"Melbourne", "Baton Rouge", "Cockeysville", "Oak Forest", "New Brunswick", "Lanham",
+		"Rocky Mount", "Appleton", "Jamaica", "Newtown", "Riverside", "Pasadena", "Fresno"
+	};
+	//time slots and their weights as found in the shipped appointments
+	private static final String[] TIME_SLOTS = {
+		"14:00-16:00", "8:00-10:00", "13:00-15:00", "8:00-10:30", "8:00-17:00",
+		"8:00-10:50", "10:00-17:00", "10:00-15:00"
+	};
+	private static final double[] TIME_SLOT_WEIGHTS = { 185, 89, 70, 51, 47, 44, 36, 30 };
+	//statuses of upcoming appointments; past ones are always PA
+	private static final String[] UPCOMING_STATUSES = { Operations.ACTIVE, Operations.AVAILABLE, Operations.WAITLISTED };
+	private static final double[] UPCOMING_WEIGHTS = { 45, 35, 20 };
+
+	//stream tags, so that the rows of different tables draw independent numbers
+	private static final long STAFF = 1, DOCTOR = 2, DOCTOR_NAME = 3, POPULARITY = 4, PATIENT = 5,
+		APPOINTMENT = 6, HAS_APPOINTMENT = 7, SEARCHES = 8, SEARCH_COUNT = 9, SCHEDULES = 10, MAINTENANCE = 11;
+
+	private final long _seed;
+	private final int _hospitals;
+	private final int _departments;
+	private final int _staff;
+	private final int _doctors;
+	private final int _patients;
+	private final int _appointments;
+	private final int _window;
+	private final ExecutorService _executor;
+
+	//doctors by popularity rank and the cumulative Zipf weights of the ranks
+	private final int[] _doctorByRank;
+	private final double[] _doctorRankCdf;
+	private final double[] _timeSlotCdf = cdf(TIME_SLOT_WEIGHTS);
+	private final double[] _upcomingCdf = cdf(UPCOMING_WEIGHTS);
+
+	/**
+	 * Creates a generator.
+	 *
+	 * @param scale the scale factor, 1 being the size of the shipped data
+	 * @param seed the seed all rows are derived from
+	 * @param threads number of generator threads
+	 */
+	public DataGenerator(double scale, long seed, int threads) {
+		this._seed = seed;
+		this._hospitals = scaled(BASE_HOSPITALS, scale);
+		this._departments = _hospitals * DEPARTMENTS.length;
+		this._staff = Math.max(scaled(BASE_STAFF, scale), _hospitals);
+		this._doctors = scaled(BASE_DOCTORS, scale);
+		this._patients = scaled(BASE_PATIENTS, scale);
+		this._appointments = scaled(BASE_APPOINTMENTS, scale);
+		this._window = 2 * threads;
+		this._executor = Executors.newFixedThreadPool(threads);
+
+		_doctorByRank = new int[_doctors];
+		for (int i = 0; i < _doctors; ++i) _doctorByRank[i] = i;
+		SplittableRandom shuffle = random(POPULARITY, 0);
+		for (int i = _doctors - 1; i > 0; --i) {
+			int j = shuffle.nextInt(i + 1);
+			int t = _doctorByRank[i]; _doctorByRank[i] = _doctorByRank[j]; _doctorByRank[j] = t;
+		}
+		double[] weights = new double[_doctors];
+		for (int r = 0; r < _doctors; ++r) weights[r] = 1.0 / Math.pow(r + 1, DOCTOR_SKEW);
+		_doctorRankCdf = cdf(weights);
+	}
+
+	private static int scaled(int base, double scale) {
+		return (int) Math.max(1, Math.round(base * scale));
+	}
+
+	private static double[] cdf(double[] weights) {
+		double[] cdf = new double[weights.length];
+		double sum = 0;
+		for (int i = 0; i < weights.length; ++i) cdf[i] = sum += weights[i];
+		for (int i = 0; i < cdf.length; ++i) cdf[i] /= sum;
+		return cdf;
+	}
+
+	private static int pick(double[] cdf, double u) {
+		int lo = 0, hi = cdf.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (cdf[mid] < u) lo = mid + 1; else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Returns the random stream of one row, derived from the seed, the
+	 * table tag and the row key only.
+	 */
+	private SplittableRandom random(long tag, long key) {
+		long z = _seed * 0x9E3779B97F4A7C15L + tag * 0xBF58476D1CE4E5B9L + key * 0x94D049BB133111EBL;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return new SplittableRandom(z ^ (z >>> 31));
+	}
+
+	//derived attributes shared between tables
+
+	private int departmentOf(int doctor) {
+		//doctors only work in departments that have a specialty
+		SplittableRandom r = random(DOCTOR, doctor);
+		int hospital = r.nextInt(_hospitals);
+		int dept;
+		do dept = r.nextInt(DEPARTMENTS.length); while (SPECIALTIES[dept] == null);
+		return hospital * DEPARTMENTS.length + dept;
+	}
+
+	private int hospitalOfDepartment(int dept) {
+		return dept / DEPARTMENTS.length;
+	}
+
+	private int hospitalOfStaff(int staff) {
+		return staff % _hospitals;
+	}
+
+	private int staffAt(int hospital, SplittableRandom r) {
+		int count = (_staff - hospital + _hospitals - 1) / _hospitals;
+		return hospital + _hospitals * r.nextInt(count);
+	}
+
+	private int doctorOf(int appointment) {
+		return _doctorByRank[pick(_doctorRankCdf, random(HAS_APPOINTMENT, appointment).nextDouble())];
+	}
+
+	private int hospitalOfAppointment(int appointment) {
+		return hospitalOfDepartment(departmentOf(doctorOf(appointment)));
+	}
+
+	private int searchesOf(int patient) {
+		//geometric, averaging about one appointment per patient as in the shipped data
+		SplittableRandom r = random(SEARCH_COUNT, patient);
+		double mean = (double) _appointments / _patients * 0.45;
+		int n = 0;
+		while (n < 64 && r.nextDouble() < mean / (mean + 1)) ++n;
+		return Math.min(n, _appointments);
+	}
+
+	private String name(SplittableRandom r) {
+		return FIRST_NAMES[r.nextInt(FIRST_NAMES.length)] + ' ' + LAST_NAMES[r.nextInt(LAST_NAMES.length)];
+	}
+
+	private static void date(StringBuilder sb, LocalDate d) {
+		sb.append(d.getMonthValue()).append('/').append(d.getDayOfMonth()).append('/').append(d.getYear());
+	}
+
+	/**
+	 * Method to append the CSV rows [from, to) of a table, in the format of
+	 * the files in code/data/.
+	 */
+	private void rows(String table, int from, int to, StringBuilder sb) {
+		switch (table) {
+		case "Hospital":
+			for (int h = from; h < to; ++h) {
+				sb.append(h).append(',').append(HOSPITALS[h % HOSPITALS.length]);
+				if (h >= HOSPITALS.length) sb.append(' ').append(h / HOSPITALS.length + 1);
+				sb.append("\r\n");
+			}
+			break;
+		case "Department":
+			for (int d = from; d < to; ++d)
+				sb.append(d).append(',').append(DEPARTMENTS[d % DEPARTMENTS.length]).append(',').append(hospitalOfDepartment(d)).append("\r\n");
+			break;
+		case "Staff":
+			for (int s = from; s < to; ++s)
+				sb.append(s).append(',').append(name(random(STAFF, s))).append(',').append(hospitalOfStaff(s)).append("\r\n");
+			break;
+		case "Doctor":
+			for (int d = from; d < to; ++d) {
+				int dept = departmentOf(d);
+				sb.append(d).append(',').append(name(random(DOCTOR_NAME, d))).append(',')
+					.append(SPECIALTIES[dept % DEPARTMENTS.length]).append(',').append(dept).append("\r\n");
+			}
+			break;
+		case "Patient":
+			for (int p = from; p < to; ++p) {
+				SplittableRandom r = random(PATIENT, p);
+				sb.append(p).append(',').append(name(r)).append(',').append(r.nextBoolean() ? 'F' : 'M').append(',')
+					.append(1 + r.nextInt(90)).append(',').append(1 + r.nextInt(9999)).append(' ')
+					.append(STREETS[r.nextInt(STREETS.length)]).append(' ').append(CITIES[r.nextInt(CITIES.length)]).append(',')
+					.append(searchesOf(p)).append("\r\n");
+			}
+			break;
+		case "Appointment":
+			for (int a = from; a < to; ++a) {
+				SplittableRandom r = random(APPOINTMENT, a);
+				//two thirds in the past, dates bunched towards TODAY, fewer on weekends
+				LocalDate d;
+				do {
+					double u = r.nextDouble();
+					d = r.nextDouble() < 0.66
+						? TODAY.minusDays(1 + (long) (PAST_DAYS * u * u))
+						: TODAY.plusDays((long) (FUTURE_DAYS * u * u));
+				} while (d.getDayOfWeek().getValue() > 5 && r.nextDouble() < 0.8);
+				sb.append(a).append(',');
+				date(sb, d);
+				sb.append(',').append(TIME_SLOTS[pick(_timeSlotCdf, r.nextDouble())]).append(',')
+					.append(d.isBefore(TODAY) ? Operations.PAST : UPCOMING_STATUSES[pick(_upcomingCdf, r.nextDouble())]).append("\r\n");
+			}
+			break;
+		case "has_appointment":
+			for (int a = from; a < to; ++a)
+				sb.append(a).append(',').append(doctorOf(a)).append("\r\n");
+			break;
+		case "searches":
+			for (int p = from; p < to; ++p) {
+				int n = searchesOf(p);
+				SplittableRandom r = random(SEARCHES, p);
+				int[] seen = new int[n];
+				for (int i = 0; i < n; ++i) {
+					int a;
+					boolean dup;
+					do {
+						a = r.nextInt(_appointments);
+						dup = false;
+						for (int j = 0; j < i; ++j) dup |= seen[j] == a;
+					} while (dup);
+					seen[i] = a;
+					sb.append(hospitalOfAppointment(a)).append(',').append(p).append(',').append(a).append("\r\n");
+				}
+			}
+			break;
+		case "schedules":
+			for (int a = from; a < to; ++a) {
+				SplittableRandom r = random(SCHEDULES, a);
+				if (r.nextDouble() < SCHEDULED_SHARE)
+					sb.append(a).append(',').append(staffAt(hospitalOfAppointment(a), r)).append("\r\n");
+			}
+			break;
+		case "request_maintenance":
+			for (int d = from; d < to; ++d) {
+				SplittableRandom r = random(MAINTENANCE, d);
+				if (r.nextDouble() < MAINTENANCE_SHARE) {
+					int dept = departmentOf(d);
+					sb.append(1 + r.nextInt(5)).append(',').append(DEPARTMENTS[dept % DEPARTMENTS.length]).append(',')
+						.append(TIME_SLOTS[pick(_timeSlotCdf, r.nextDouble())]).append(',').append(d).append(',')
+						.append(staffAt(hospitalOfDepartment(dept), r)).append("\r\n");
+				}
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown table " + table);
+		}//end switch
+	}//end rows
+
+	/**
+	 * Returns the number of keys a table is generated over: rows for the
+	 * entity tables, patients for searches, appointments for schedules and
+	 * doctors for request_maintenance.
+	 */
+	public int keys(String table) {
+		switch (table) {
+		case "Hospital": return _hospitals;
+		case "Department": return _departments;
+		case "Staff": return _staff;
+		case "Doctor": case "request_maintenance": return _doctors;
+		case "Patient": case "searches": return _patients;
+		case "Appointment": case "has_appointment": case "schedules": return _appointments;
+		default: throw new IllegalArgumentException("Unknown table " + table);
+		}
+	}
+
+	/**
+	 * Method to generate a table as CSV chunks in key order.  Chunks are
+	 * generated ahead on the thread pool, at most a window of them at a time.
+	 */
+	public Iterator<String> chunks(final String table) {
+		final int keys = keys(table);
+		return new Iterator<String>() {
+			private final ArrayDeque<Future<String>> _ahead = new ArrayDeque<Future<String>>();
+			private int _next = 0;
+
+			private void fill() {
+				while (_ahead.size() < _window && _next < keys) {
+					final int from = _next;
+					final int to = (int) Math.min((long) from + CHUNK_ROWS, keys);
+					_ahead.add(_executor.submit(new Callable<String>() {
+						public String call() {
+							StringBuilder sb = new StringBuilder(64 * (to - from));
+							rows(table, from, to, sb);
+							return sb.toString();
+						}
+					}));
+					_next = to;
+				}
+			}
+
+			public boolean hasNext() {
+				fill();
+				return !_ahead.isEmpty();
+			}
+
+			public String next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				try {
+					return _ahead.poll().get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException(e);
+				} catch (ExecutionException e) {
+					throw new IllegalStateException(table + ": " + e.getCause(), e.getCause());
+				}
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}//end chunks
+
+	/**
+	 * Method to write every table as a CSV file named as in code/data/.
+	 *
+	 * @param dir the output directory, created if missing
+	 */
+	public void writeFiles(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+		for (BulkLoader.Table table : BulkLoader.TABLES) {
+			long start = System.nanoTime();
+			long bytes = 0;
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, table.file)), StandardCharsets.UTF_8), 1 << 16);
+			try {
+				for (Iterator<String> it = chunks(table.name); it.hasNext(); ) {
+					String chunk = it.next();
+					out.write(chunk);
+					bytes += chunk.length();
+				}
+			} finally {
+				out.close();
+			}
+			System.out.printf("%-20s %10d keys %8.1f MB %8.2f s%n", table.name, keys(table.name), bytes / 1e6, (System.nanoTime() - start) / 1e9);
+		}
+	}//end writeFiles
+
+	/**
+	 * Returns a BulkLoader source that generates each table on the fly.
+	 */
+	public BulkLoader.Source source() {
+		return new BulkLoader.Source() {
+			public Reader open(BulkLoader.Table table) {
+				return new ChunkReader(chunks(table.name));
+			}
+		};
+	}
+
+	public void shutdown() {
+		_executor.shutdownNow();
+	}
+
+	/**
+	 * Reader over a sequence of string chunks.
+	 */
+	private static class ChunkReader extends Reader{
+		private final Iterator<String> _chunks;
+		private String _chunk = "";
+		private int _pos = 0;
+
+		ChunkReader(Iterator<String> chunks) {
+			this._chunks = chunks;
+		}
+
+		public int read(char[] buf, int off, int len) {
+			while (_pos == _chunk.length()) {
+				if (!_chunks.hasNext()) return -1;
+				_chunk = _chunks.next();
+				_pos = 0;
+			}
+			int n = Math.min(len, _chunk.length() - _pos);
+			_chunk.getChars(_pos, _pos + n, buf, off);
+			_pos += n;
+			return n;
+		}
+
+		public void close() {
+		}
+	}//end ChunkReader
+
+	public static void main (String[] args) throws Exception {
+		double scale = 1;
+		long seed = 42;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String[] db = null;
+		boolean create = false;
+		File sqlDir = new File("../sql");
+		File outDir = null;
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("--scale") && i + 1 < args.length) scale = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--seed") && i + 1 < args.length) seed = Long.parseLong(args[++i]);
+			else if (args[i].equals("--threads") && i + 1 < args.length) threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--db") && i + 3 < args.length) { db = new String[]{ args[i + 1], args[i + 2], args[i + 3] }; i += 3; }
+			else if (args[i].equals("--create")) create = true;
+			else if (args[i].equals("--sql") && i + 1 < args.length) sqlDir = new File(args[++i]);
+			else outDir = new File(args[i]);
+		}
+		if ((db == null) == (outDir == null)) {
+			System.err.println ("Usage: java [-classpath <classpath>] DataGenerator [--scale <sf>] [--seed <n>] [--threads <n>] <out dir>");
+			System.err.println ("       java [-classpath <classpath>] DataGenerator [--scale <sf>] [--seed <n>] [--threads <n>] --db <dbname> <port> <user> [--create] [--sql <dir>]");
+			return;
+		}
+
+		DataGenerator generator = new DataGenerator(scale, seed, threads);
+		try {
+			if (outDir != null) {
+				generator.writeFiles(outDir);
+				return;
+			}
+			Class.forName("org.postgresql.Driver");
+			System.setProperty("dbproject.pool.max", String.valueOf(Math.max(BulkLoader.TABLES.length, Integer.getInteger("dbproject.pool.max", 8))));
+			DBproject esql = new DBproject(db[0], db[1], db[2], "");
+			try {
+				BulkLoader loader = new BulkLoader(esql, sqlDir);
+				if (create) SqlScript.run(esql, new File(sqlDir, "create.sql"));
+				else loader.dropIndexes();
+				loader.loadAll(generator.source());
+				loader.finish();
+			} catch (SQLException e) {
+				System.err.println("ERROR: " + e.getMessage());
+			} finally {
+				esql.cleanup();
+			}
+		} finally {
+			generator.shutdown();
+		}
+	}//end main
+}//end DataGenerator
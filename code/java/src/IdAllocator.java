@@ -0,0 +1,85 @@
+/*
+ * Block-allocating ID generator
+ * =============================
+ *
+ * Primary keys for Patient, Doctor and Appointment are drawn from Postgres
+ * sequences that step by BLOCK_SIZE (see sql/sequences.sql). Each call to
+ * nextval() reserves a whole block of IDs for this process, which are then
+ * handed out locally without another round trip (hi/lo allocation).
+ *
+ */
+
+import java.sql.SQLException;
+
+/**
+ * This class hands out unique primary keys for one table.  Two processes
+ * never receive the same block, so concurrent clerks cannot collide on an ID.
+ * IDs left over in a block when the process exits are simply skipped.
+ *
+ */
+
+public class IdAllocator{
+	//must match the INCREMENT BY of the sequences in sql/sequences.sql
+	public static final int BLOCK_SIZE = 50;
+
+	private final DBproject _esql;
+	private final String _sequence;
+	private final int _blockSize;
+
+	//next ID to hand out and the (exclusive) end of the current block
+	private int _next = 0;
+	private int _limit = 0;
+
+	public IdAllocator(DBproject esql, String sequence) {
+		this(esql, sequence, BLOCK_SIZE);
+	}
+
+	public IdAllocator(DBproject esql, String sequence, int blockSize) {
+		this._esql = esql;
+		this._sequence = sequence;
+		this._blockSize = blockSize;
+	}
+
+	/**
+	 * Method to return the next unused ID.  Only the first call of every
+	 * block issues a query (to reserve the next block from the sequence).
+	 * The connection for it is borrowed before the allocator is locked, so
+	 * no caller waits for the lock while holding a pooled connection.
+	 *
+	 * @return a primary key no other caller has received
+	 * @throws java.sql.SQLException when the next block could not be reserved
+	 */
+	public int next() throws SQLException {
+		synchronized (this) {
+			if (_next < _limit) return _next++;
+		}
+		ConnectionPool.PooledConnection pc = _esql.getPool().borrow();
+		try {
+			return next(pc);
+		} finally {
+			_esql.getPool().release(pc);
+		}
+	}//end next
+
+	/**
+	 * Method to return the next unused ID, reserving the next block on a
+	 * connection the caller already holds, e.g. inside executeTransaction,
+	 * so it never needs a second pooled connection.  nextval() is not
+	 * rolled back with the transaction, so the block stays reserved.
+	 *
+	 * @return a primary key no other caller has received
+	 * @throws java.sql.SQLException when the next block could not be reserved
+	 */
+	public synchronized int next(ConnectionPool.PooledConnection pc) throws SQLException {
+		if (_next >= _limit){
+			int hi = _esql.getNextSeqVal(pc, _sequence);
+			_next = hi;
+			_limit = hi + _blockSize;
+		}//end if
+		return _next++;
+	}//end next
+
+	public String getSequence() {
+		return _sequence;
+	}
+}//end IdAllocator
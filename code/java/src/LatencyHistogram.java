@@ -0,0 +1,120 @@
+/*
+ * Latency histogram
+ * =================
+ *
+ * Fixed-size log-linear histogram of nanosecond latencies: every power of
+ * two is split into 32 buckets, so percentiles are exact to about 3% over
+ * the whole range of a long.  Recording is lock-free and histograms can be
+ * merged, so each thread may keep its own and add them up at the end.
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records latencies and reports count, mean, percentiles and max.
+ *
+ */
+
+public class LatencyHistogram{
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong _count = new AtomicLong();
+	private final AtomicLong _sum = new AtomicLong();
+	private final AtomicLong _max = new AtomicLong();
+
+	private static int bucket(long value) {
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+		return (shift << SUB_BITS) + (int) (value >>> shift);
+	}
+
+	//midpoint of the values falling in a bucket
+	private static long value(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) return bucket;
+		int shift = (bucket >>> SUB_BITS) - 1;
+		long low = (long) (bucket - (shift << SUB_BITS)) << shift;
+		return low + ((1L << shift) >>> 1);
+	}
+
+	/**
+	 * Method to record one latency.
+	 *
+	 * @param nanos the latency in nanoseconds, negative values count as 0
+	 */
+	public void record(long nanos) {
+		nanos = Math.max(0, nanos);
+		_counts.incrementAndGet(bucket(nanos));
+		_count.incrementAndGet();
+		_sum.addAndGet(nanos);
+		long max;
+		while (nanos > (max = _max.get()) && !_max.compareAndSet(max, nanos)) { }
+	}
+
+	/**
+	 * Method to add the recordings of another histogram to this one.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; ++i) {
+			long c = other._counts.get(i);
+			if (c != 0) _counts.addAndGet(i, c);
+		}
+		_count.addAndGet(other._count.get());
+		_sum.addAndGet(other._sum.get());
+		long max, otherMax = other._max.get();
+		while (otherMax > (max = _max.get()) && !_max.compareAndSet(max, otherMax)) { }
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; ++i) _counts.set(i, 0);
+		_count.set(0);
+		_sum.set(0);
+		_max.set(0);
+	}
+
+	public long getCount() {
+		return _count.get();
+	}
+
+	public long getMax() {
+		return _max.get();
+	}
+
+	public long getTotal() {
+		return _sum.get();
+	}
+
+	public double getMean() {
+		long count = _count.get();
+		return count == 0 ? 0 : (double) _sum.get() / count;
+	}
+
+	/**
+	 * Method to estimate a percentile.
+	 *
+	 * @param percentile between 0 and 100, e.g. 99 for p99
+	 * @return the latency in nanoseconds, 0 when nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long count = _count.get();
+		if (count == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += _counts.get(i);
+			if (seen >= rank) return Math.min(value(i), _max.get());
+		}
+		return _max.get();
+	}
+
+	/**
+	 * Returns count, p50, p99 and max, with the latencies in milliseconds.
+	 */
+	public String toString() {
+		return String.format("n=%d p50=%.2fms p99=%.2fms max=%.2fms", getCount(),
+			getPercentile(50) / 1e6, getPercentile(99) / 1e6, getMax() / 1e6);
+	}
+}//end LatencyHistogram
@@ -0,0 +1,478 @@
+/*
+ * Name index
+ * ==========
+ *
+ * Finds doctors by name or specialty and departments by name or hospital
+ * from memory, so the menu can turn what a clerk types into an ID before
+ * any query runs.  Every name is split into lower-case words; a search
+ * matches an entry when each word of the query is a prefix of one of its
+ * words ("alv sau" finds Alvin Saunders) or is within a few typos of one
+ * (one for words of 4 to 6 letters, two for longer ones; "cardiolgy" finds
+ * Cardiology).  The words are kept sorted for prefix lookups, and their
+ * trigrams index them for the typo-tolerant ones, whose candidates are
+ * then checked by edit distance.  Results come best first.
+ *
+ * The index is loaded at startup, reloaded when the triggers of
+ * sql/notify.sql announce a change on the dbproject_reference channel, and
+ * doctors added by option 1 are in it as soon as their insert returns.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class searches doctor and department names.
+ *
+ */
+
+public class NameIndex implements NotificationListener.Subscriber{
+	static final String DOCTORS =
+		"SELECT doctor_ID, name, specialty, did FROM Doctor;";
+	static final String DEPARTMENTS =
+		"SELECT DE.dept_ID, DE.name, H.name FROM Department DE LEFT OUTER JOIN Hospital H ON DE.hid = H.hospital_ID;";
+
+	/**
+	 * A doctor or department found by a search, with the number of typos
+	 * it took to match.
+	 */
+	public static final class Match{
+		public final int id;
+		public final String name;
+		public final String detail;
+		public final int distance;
+
+		Match(int id, String name, String detail, int distance) {
+			this.id = id;
+			this.name = name;
+			this.detail = detail;
+			this.distance = distance;
+		}
+
+		public String toString() {
+			return name + " (" + (detail.isEmpty() ? "" : detail + ", ") + "ID " + id + ")";
+		}
+	}//end Match
+
+	/*
+	 * the entries of one table with their words, in an immutable form.
+	 */
+	private static final class Names{
+		final int[] ids;
+		final String[] names;
+		final String[] details;
+		//the searchable columns, kept to rebuild with an added entry
+		final String[][] fields;
+		final ReferenceCache.IntIntMap rows;
+		//the distinct words, sorted, and the entries that have each
+		final String[] words;
+		final int[][] postings;
+		//the words that have each trigram
+		final Map<Long, int[]> trigrams;
+
+		Names(int[] ids, String[] names, String[] details, String[][] fields) {
+			this.ids = ids;
+			this.names = names;
+			this.details = details;
+			this.fields = fields;
+			this.rows = new ReferenceCache.IntIntMap(ids.length);
+			Map<String, List<Integer>> entriesOfWord = new HashMap<String, List<Integer>>();
+			for (int e = 0; e < ids.length; ++e) {
+				rows.put(ids[e], e);
+				for (String field : fields[e]) {
+					for (String word : words(field)) {
+						List<Integer> entries = entriesOfWord.get(word);
+						if (entries == null) entriesOfWord.put(word, entries = new ArrayList<Integer>());
+						if (entries.isEmpty() || entries.get(entries.size() - 1) != e) entries.add(e);
+					}
+				}
+			}//end for
+			words = entriesOfWord.keySet().toArray(new String[0]);
+			Arrays.sort(words);
+			postings = new int[words.length][];
+			Map<Long, List<Integer>> wordsOfTrigram = new HashMap<Long, List<Integer>>();
+			for (int w = 0; w < words.length; ++w) {
+				List<Integer> entries = entriesOfWord.get(words[w]);
+				postings[w] = new int[entries.size()];
+				for (int i = 0; i < postings[w].length; ++i) postings[w][i] = entries.get(i);
+				for (long trigram : trigrams(words[w])) {
+					List<Integer> list = wordsOfTrigram.get(trigram);
+					if (list == null) wordsOfTrigram.put(trigram, list = new ArrayList<Integer>());
+					if (list.isEmpty() || list.get(list.size() - 1) != w) list.add(w);
+				}
+			}//end for
+			trigrams = new HashMap<Long, int[]>(wordsOfTrigram.size() * 2);
+			for (Map.Entry<Long, List<Integer>> t : wordsOfTrigram.entrySet()) {
+				int[] list = new int[t.getValue().size()];
+				for (int i = 0; i < list.length; ++i) list[i] = t.getValue().get(i);
+				trigrams.put(t.getKey(), list);
+			}
+		}
+
+		//a copy with one more entry, or with the entry replaced when the ID is known
+		Names with(int id, String name, String detail, String[] searchable) {
+			int e = rows.get(id), n = e < 0 ? ids.length + 1 : ids.length;
+			if (e < 0) e = ids.length;
+			int[] i = Arrays.copyOf(ids, n);
+			String[] na = Arrays.copyOf(names, n), de = Arrays.copyOf(details, n);
+			String[][] fi = Arrays.copyOf(fields, n);
+			i[e] = id;
+			na[e] = name;
+			de[e] = detail;
+			fi[e] = searchable;
+			return new Names(i, na, de, fi);
+		}
+	}//end Names
+
+	private static final class Snapshot{
+		final Names doctors;
+		final Names departments;
+
+		Snapshot(Names doctors, Names departments) {
+			this.doctors = doctors;
+			this.departments = departments;
+		}
+	}//end Snapshot
+
+	private static final Names EMPTY = new Names(new int[0], new String[0], new String[0], new String[0][]);
+
+	private final DBproject _esql;
+	private volatile Snapshot _snapshot = new Snapshot(EMPTY, EMPTY);
+	private final Object _loadLock = new Object();
+	//reloads asked for by notifications run here, off the listener thread
+	private final ExecutorService _worker = NotificationListener.worker("name-index-worker");
+	private final AtomicBoolean _reloadQueued = new AtomicBoolean();
+	private long _loads = 0, _searches = 0;
+
+	public NameIndex(DBproject esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to load the index at startup.  When the load fails, searches
+	 * find nothing until a reload succeeds.
+	 */
+	public void start() {
+		reload();
+	}
+
+	/**
+	 * Method to reload the doctors and departments on a pooled connection.
+	 *
+	 * @throws java.sql.SQLException when the tables could not be read
+	 */
+	public void load() throws SQLException {
+		ConnectionPool.PooledConnection pc = _esql.getPool().borrow();
+		try {
+			load(pc.connection());
+		} finally {
+			_esql.getPool().release(pc);
+		}
+	}
+
+	private void load(Connection conn) throws SQLException {
+		synchronized (_loadLock) {
+			Statement stmt = conn.createStatement();
+			try {
+				List<Object[]> rows = read(stmt, DEPARTMENTS, 3);
+				int n = rows.size();
+				int[] ids = new int[n];
+				String[] names = new String[n], details = new String[n];
+				String[][] fields = new String[n][];
+				for (int e = 0; e < n; ++e) {
+					Object[] r = rows.get(e);
+					ids[e] = (Integer) r[0];
+					names[e] = r[1] == null ? "" : (String) r[1];
+					details[e] = r[2] == null ? "" : ((String) r[2]).trim();
+					fields[e] = new String[] { names[e], details[e] };
+				}
+				Names departments = new Names(ids, names, details, fields);
+
+				rows = read(stmt, DOCTORS, 4);
+				n = rows.size();
+				ids = new int[n];
+				names = new String[n];
+				details = new String[n];
+				fields = new String[n][];
+				for (int e = 0; e < n; ++e) {
+					Object[] r = rows.get(e);
+					ids[e] = (Integer) r[0];
+					names[e] = r[1] == null ? "" : (String) r[1];
+					details[e] = doctorDetail((String) r[2], departments, r[3] == null ? -1 : (Integer) r[3]);
+					fields[e] = new String[] { names[e], (String) r[2] };
+				}
+				_snapshot = new Snapshot(new Names(ids, names, details, fields), departments);
+			} finally {
+				stmt.close();
+			}
+			synchronized (this) {
+				++_loads;
+			}
+		}
+	}//end load
+
+	private static List<Object[]> read(Statement stmt, String query, int columns) throws SQLException {
+		ResultSet rs = stmt.executeQuery(query);
+		List<Object[]> rows = new ArrayList<Object[]>();
+		while (rs.next()) {
+			Object[] row = new Object[columns];
+			for (int c = 0; c < columns; ++c)
+				row[c] = rs.getObject(c + 1);
+			rows.add(row);
+		}
+		rs.close();
+		return rows;
+	}
+
+	//specialty, department, hospital
+	private static String doctorDetail(String specialty, Names departments, int department) {
+		int e = departments.rows.get(department);
+		String s = specialty == null ? "" : specialty.trim();
+		if (e < 0) return s;
+		return s + ", " + departments.names[e].trim() + (departments.details[e].isEmpty() ? "" : ", " + departments.details[e]);
+	}
+
+	//a failed reload keeps the previous snapshot
+	private void reload() {
+		try {
+			load();
+		} catch (SQLException e) {
+			System.err.println("WARNING: name index load failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to add a doctor inserted by this process, so searches find
+	 * them before the change notification arrives.
+	 */
+	public void addDoctor(int id, String name, String specialty, int department) {
+		synchronized (_loadLock) {
+			Snapshot s = _snapshot;
+			Names doctors = s.doctors.with(id, name, doctorDetail(specialty, s.departments, department), new String[] { name, specialty });
+			_snapshot = new Snapshot(doctors, s.departments);
+		}
+	}
+
+	/**
+	 * Method to search doctors by name and specialty.
+	 *
+	 * @return at most limit doctors, best first
+	 */
+	public List<Match> searchDoctors(String query, int limit) {
+		return search(_snapshot.doctors, query, limit);
+	}
+
+	/**
+	 * Method to search departments by name and hospital.
+	 *
+	 * @return at most limit departments, best first
+	 */
+	public List<Match> searchDepartments(String query, int limit) {
+		return search(_snapshot.departments, query, limit);
+	}
+
+	private List<Match> search(final Names n, String query, int limit) {
+		synchronized (this) {
+			++_searches;
+		}
+		String[] q = words(query);
+		if (q.length == 0 || n.ids.length == 0) return Collections.emptyList();
+		//typos per entry, and how many query words matched it so far
+		final int[] total = new int[n.ids.length];
+		int[] matched = new int[n.ids.length];
+		int[] stamp = new int[n.ids.length], best = new int[n.ids.length];
+		int[] touched = new int[16];
+		for (int t = 0; t < q.length; ++t) {
+			int touchedSize = 0;
+			int[] distances = match(n, q[t]);
+			for (int w = 0; w < distances.length; ++w) {
+				if (distances[w] < 0) continue;
+				for (int e : n.postings[w]) {
+					if (matched[e] != t) continue;
+					if (stamp[e] != t + 1) {
+						stamp[e] = t + 1;
+						best[e] = distances[w];
+						if (touchedSize == touched.length) touched = Arrays.copyOf(touched, touchedSize * 2);
+						touched[touchedSize++] = e;
+					} else best[e] = Math.min(best[e], distances[w]);
+				}
+			}//end for
+			for (int i = 0; i < touchedSize; ++i) {
+				matched[touched[i]] = t + 1;
+				total[touched[i]] += best[touched[i]];
+			}
+		}//end for
+		List<Integer> found = new ArrayList<Integer>();
+		for (int e = 0; e < n.ids.length; ++e)
+			if (matched[e] == q.length) found.add(e);
+		final String whole = join(q);
+		Collections.sort(found, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				if (total[a] != total[b]) return total[a] - total[b];
+				//the whole name typed out comes before names it is a prefix of
+				boolean exactA = join(words(n.names[a])).equals(whole), exactB = join(words(n.names[b])).equals(whole);
+				if (exactA != exactB) return exactA ? -1 : 1;
+				int c = n.names[a].compareToIgnoreCase(n.names[b]);
+				return c != 0 ? c : n.ids[a] - n.ids[b];
+			}
+		});
+		List<Match> matches = new ArrayList<Match>(Math.min(limit, found.size()));
+		for (int i = 0; i < found.size() && i < limit; ++i) {
+			int e = found.get(i);
+			matches.add(new Match(n.ids[e], n.names[e].trim(), n.details[e], total[e]));
+		}
+		return matches;
+	}//end search
+
+	/*
+	 * the typos it takes each word of the index to match the query word q,
+	 * or -1 when it does not: 0 for the words q is a prefix of, otherwise the
+	 * edit distance to the word or its prefix of q's length, for the words
+	 * that share enough trigrams with q.
+	 */
+	private static int[] match(Names n, String q) {
+		int[] distances = new int[n.words.length];
+		Arrays.fill(distances, -1);
+		int lo = 0, hi = n.words.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (n.words[mid].compareTo(q) < 0) lo = mid + 1; else hi = mid;
+		}
+		for (int w = lo; w < n.words.length && n.words[w].startsWith(q); ++w) distances[w] = 0;
+
+		int maxTypos = maxTypos(q);
+		if (maxTypos == 0) return distances;
+		long[] grams = trigrams(q);
+		int[] shared = new int[n.words.length];
+		for (long gram : grams) {
+			int[] list = n.trigrams.get(gram);
+			if (list == null) continue;
+			for (int w : list) ++shared[w];
+		}
+		//every typo changes at most three trigrams
+		int needed = Math.max(1, grams.length - 3 * maxTypos);
+		for (int w = 0; w < n.words.length; ++w) {
+			if (shared[w] < needed || distances[w] == 0) continue;
+			String word = n.words[w];
+			int d = distance(q, word, maxTypos);
+			if (word.length() > q.length()) d = Math.min(d, distance(q, word.substring(0, q.length()), maxTypos));
+			if (d <= maxTypos) distances[w] = d;
+		}
+		return distances;
+	}//end match
+
+	static int maxTypos(String word) {
+		return word.length() <= 3 ? 0 : word.length() <= 6 ? 1 : 2;
+	}
+
+	/**
+	 * Method to compute the edit distance of two words, counting a swap of
+	 * neighbouring letters as one edit.
+	 *
+	 * @return the distance, or max + 1 when it exceeds max
+	 */
+	static int distance(String a, String b, int max) {
+		if (Math.abs(a.length() - b.length()) > max) return max + 1;
+		int[] previous2 = new int[b.length() + 1], previous = new int[b.length() + 1], current = new int[b.length() + 1];
+		for (int j = 0; j <= b.length(); ++j) previous[j] = j;
+		for (int i = 1; i <= a.length(); ++i) {
+			current[0] = i;
+			int rowMin = i;
+			for (int j = 1; j <= b.length(); ++j) {
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+				int d = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+				if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1))
+					d = Math.min(d, previous2[j - 2] + 1);
+				current[j] = d;
+				rowMin = Math.min(rowMin, d);
+			}
+			if (rowMin > max) return max + 1;
+			int[] rotate = previous2;
+			previous2 = previous;
+			previous = current;
+			current = rotate;
+		}//end for
+		return Math.min(previous[b.length()], max + 1);
+	}//end distance
+
+	/**
+	 * Method to split a name into lower-case words of letters and digits.
+	 */
+	static String[] words(String text) {
+		if (text == null) return new String[0];
+		List<String> words = new ArrayList<String>();
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i <= text.length(); ++i) {
+			char c = i < text.length() ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) word.append(Character.toLowerCase(c));
+			else if (word.length() > 0) {
+				words.add(word.toString());
+				word.setLength(0);
+			}
+		}
+		return words.toArray(new String[0]);
+	}
+
+	private static String join(String[] words) {
+		StringBuilder s = new StringBuilder();
+		for (String w : words) s.append(w).append(' ');
+		return s.toString();
+	}
+
+	//the distinct trigrams of the word padded with a space on both sides
+	private static long[] trigrams(String word) {
+		String padded = " " + word + " ";
+		long[] grams = new long[padded.length() - 2];
+		for (int i = 0; i < grams.length; ++i)
+			grams[i] = (long) padded.charAt(i) << 32 | (long) padded.charAt(i + 1) << 16 | padded.charAt(i + 2);
+		Arrays.sort(grams);
+		int n = 0;
+		for (int i = 0; i < grams.length; ++i)
+			if (n == 0 || grams[n - 1] != grams[i]) grams[n++] = grams[i];
+		return Arrays.copyOf(grams, n);
+	}
+
+	//queues a reload unless one is queued already: a burst of changes needs one
+	private void reloadLater() {
+		if (!_reloadQueued.compareAndSet(false, true)) return;
+		_worker.execute(new Runnable() {
+			public void run() {
+				//changes notified from here on are read by a later reload
+				_reloadQueued.set(false);
+				reload();
+			}
+		});
+	}
+
+	/**
+	 * Reloads on connect, as changes may have been missed.
+	 */
+	public void connected(Connection conn) throws SQLException {
+		reloadLater();
+	}
+
+	public void disconnected() {
+		// reloaded on the next connected().
+	}
+
+	public void received(String payload) {
+		reloadLater();
+	}
+
+	public synchronized String toString() {
+		Snapshot s = _snapshot;
+		return "Name index: " + s.doctors.ids.length + " doctors, " + s.departments.ids.length + " departments, "
+			+ (s.doctors.words.length + s.departments.words.length) + " words, loaded " + _loads + " times, " + _searches + " searches";
+	}
+}//end NameIndex
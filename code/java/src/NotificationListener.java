@@ -0,0 +1,210 @@
+/*
+ * LISTEN/NOTIFY listener
+ * ======================
+ *
+ * Keeps one dedicated connection (outside the pool) listening on a set of
+ * channels and hands every notification to the subscribers of its channel
+ * on a background thread.  When the connection breaks, subscribers are told
+ * so (notifications may be lost from then on) and the listener reconnects
+ * with a backoff.  A subscriber that fails on a notification may have
+ * missed a change, so the listener reconnects then too, and every
+ * subscriber starts over from connected().  Subscribers that read from the
+ * database on a notification do so on a worker() of their own, so the
+ * listener thread only dispatches and one slow reload does not hold up the
+ * other channels.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class dispatches Postgres notifications to in-process subscribers.
+ *
+ */
+
+public class NotificationListener implements Runnable{
+	/**
+	 * Receiver of the notifications of one channel.
+	 */
+	public interface Subscriber{
+		/**
+		 * Called once the channel is listened to.  Changes made before this
+		 * point were not notified.
+		 */
+		void connected(Connection conn) throws SQLException;
+
+		/**
+		 * Called when the connection broke; notifications are lost until
+		 * the next connected().
+		 */
+		void disconnected();
+
+		void received(String payload);
+	}
+
+	private static final int POLL_MILLIS = 500;
+	private static final long MAX_BACKOFF_MILLIS = 30000;
+
+	private final ConnectionPool _pool;
+	private final Map<String, List<Subscriber>> _subscribers = new LinkedHashMap<String, List<Subscriber>>();
+	private volatile boolean _running = false;
+	private volatile Connection _connection = null;
+	private Thread _thread = null;
+
+	public NotificationListener(ConnectionPool pool) {
+		this._pool = pool;
+	}
+
+	/**
+	 * Method to subscribe to a channel.  Subscribe before start().
+	 *
+	 * @param channel the channel name, an SQL identifier
+	 * @param subscriber receives the payloads of the channel
+	 */
+	public synchronized void subscribe(String channel, Subscriber subscriber) {
+		List<Subscriber> list = _subscribers.get(channel);
+		if (list == null) _subscribers.put(channel, list = new ArrayList<Subscriber>());
+		list.add(subscriber);
+	}
+
+	/**
+	 * Method to create the single daemon thread a subscriber hands its
+	 * database work to.
+	 */
+	public static ExecutorService worker(final String name) {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public synchronized void start() {
+		if (_thread != null || _subscribers.isEmpty()) return;
+		_running = true;
+		_thread = new Thread(this, "notification-listener");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	public void stop() {
+		_running = false;
+		Thread thread;
+		synchronized (this) {
+			thread = _thread;
+			_thread = null;
+		}
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join(2 * POLL_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		close();
+	}
+
+	public boolean isConnected() {
+		return _connection != null;
+	}
+
+	private void close() {
+		Connection conn = _connection;
+		_connection = null;
+		if (conn != null) {
+			try {
+				conn.close();
+			} catch (SQLException e) {
+				// already broken.
+			}
+		}
+	}
+
+	public void run() {
+		long backoff = 100;
+		while (_running) {
+			try {
+				Connection conn = _pool.openUnpooled();
+				_connection = conn;
+				Statement stmt = conn.createStatement();
+				for (String channel : _subscribers.keySet())
+					stmt.execute("LISTEN " + channel);
+				stmt.close();
+				for (List<Subscriber> list : _subscribers.values())
+					for (Subscriber s : list) connected(s, conn);
+				backoff = 100;
+
+				PGConnection pg = conn.unwrap(PGConnection.class);
+				while (_running) {
+					PGNotification[] notifications = pg.getNotifications(POLL_MILLIS);
+					if (notifications == null) continue;
+					boolean failed = false;
+					for (PGNotification n : notifications) {
+						List<Subscriber> list = _subscribers.get(n.getName());
+						if (list != null)
+							for (Subscriber s : list) failed |= !received(s, n.getParameter());
+					}
+					if (failed) throw new SQLException("a subscriber failed on a notification, resubscribing");
+				}//end while
+			} catch (SQLException e) {
+				if (_running) System.err.println("WARNING: notification listener disconnected: " + e.getMessage());
+			} catch (RuntimeException e) {
+				System.err.println("WARNING: notification listener failed: " + e);
+			} finally {
+				close();
+				for (List<Subscriber> list : _subscribers.values())
+					for (Subscriber s : list) disconnected(s);
+			}//end try
+			if (!_running) break;
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				break;
+			}
+			backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+		}//end while
+	}//end run
+
+	//a subscriber that fails here is told it is disconnected, so it does not trust its state
+	private static void connected(Subscriber s, Connection conn) throws SQLException {
+		try {
+			s.connected(conn);
+		} catch (RuntimeException e) {
+			System.err.println("WARNING: notification subscriber " + s.getClass().getName() + " failed to connect: " + e);
+			disconnected(s);
+		}
+	}
+
+	//false when the subscriber failed
+	private static boolean received(Subscriber s, String payload) {
+		try {
+			s.received(payload);
+			return true;
+		} catch (RuntimeException e) {
+			System.err.println("WARNING: notification subscriber " + s.getClass().getName() + " failed on '" + payload + "': " + e);
+			return false;
+		}
+	}
+
+	private static void disconnected(Subscriber s) {
+		try {
+			s.disconnected();
+		} catch (RuntimeException e) {
+			System.err.println("WARNING: notification subscriber " + s.getClass().getName() + " failed to disconnect: " + e);
+		}
+	}
+}//end NotificationListener
@@ -0,0 +1,675 @@
+/*
+ * Menu operations
+ * ===============
+ *
+ * The eight operations of the main menu as plain method calls.  The
+ * interactive menu in DBproject gathers the inputs from stdin and calls
+ * these through AppointmentService; RequestServer calls them with the
+ * parameters of an HTTP request.
+ *
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class defines the non-interactive form of every menu operation.
+ * Invalid input is reported with an SQLException without an SQL state,
+ * the same way the menu has always reported it.
+ *
+ */
+
+public class Operations{
+	public static final String AVAILABLE = "AV";
+	public static final String ACTIVE = "AC";
+	public static final String WAITLISTED = "WL";
+	public static final String PAST = "PA";
+	//how long a booking waits for the doctor lookup running beside it
+	static final long LOOKUP_WAIT_MILLIS = Math.max(0, Long.getLong("dbproject.book.lookupWait", 200L));
+
+	private Operations() {
+	}
+
+	public static void checkLength(String value, int max, String field) throws SQLException {
+		if (value == null || value.length() > max) {
+			throw new SQLException(field + " exceeds CHAR limit");
+		}
+	}
+
+	public static void checkGender(String gender) throws SQLException {
+		if (!"M".equals(gender) && !"F".equals(gender)) {
+			throw new SQLException("Invalid gender");
+		}
+	}
+
+	public static void checkStatus(String status) throws SQLException {
+		if (!WAITLISTED.equals(status) && !AVAILABLE.equals(status) && !ACTIVE.equals(status) && !PAST.equals(status)) {
+			throw new SQLException("Invalid status");
+		}
+	}
+
+	/**
+	 * Method to check a time slot of the form HH:mm-HH:mm.
+	 *
+	 * @param timeSlot the time slot as entered
+	 * @throws java.sql.SQLException when the time slot is malformed
+	 */
+	public static void checkTimeSlot(String timeSlot) throws SQLException {
+		checkLength(timeSlot, 11, "Timeslot");
+		try {
+			new SimpleDateFormat("HH:mm-HH:mm").parse(timeSlot);
+		} catch (ParseException e) {
+			throw new SQLException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to add a doctor to an existing department (option 1).
+	 *
+	 * @return the ID of the new doctor
+	 * @throws java.sql.SQLException when the input is invalid or the insert failed
+	 */
+	public static int addDoctor(DBproject esql, String name, String specialty, int did) throws SQLException {
+		QueryMetrics.Scope scope = esql.getMetrics().begin("1.AddDoctor");
+		try {
+			checkLength(name, 128, "Name");
+			checkLength(specialty, 24, "Specialty");
+
+			//a department missing from the reference cache may just be new
+			if (!esql.getReferenceCache().hasDepartment(did)) {
+				List<List<String>> result = esql.executeQueryAndReturnResult("SELECT * FROM Department WHERE dept_ID = ?;", did);
+				if (result.isEmpty()) {
+					throw new SQLException("Invalid department");
+				}
+			}
+
+			int doctorID = esql.doctorIDs().next();
+			esql.executeUpdate("INSERT INTO Doctor VALUES (?,?,?,?);", doctorID, name, specialty, did);
+			esql.getNameIndex().addDoctor(doctorID, name, specialty, did);
+			return doctorID;
+		} catch (SQLException e) {
+			scope.fail();
+			throw e;
+		} finally {
+			scope.close();
+		}
+	}//end addDoctor
+
+	/**
+	 * Method to add a patient (option 2).
+	 *
+	 * @return the ID of the new patient
+	 * @throws java.sql.SQLException when the input is invalid or the insert failed
+	 */
+	public static int addPatient(DBproject esql, String name, String gender, int age, String address, int numAppts) throws SQLException {
+		QueryMetrics.Scope scope = esql.getMetrics().begin("2.AddPatient");
+		try {
+			checkLength(name, 128, "Name");
+			checkGender(gender);
+			checkLength(address, 256, "Address");
+
+			int patientID = esql.patientIDs().next();
+			try {
+				esql.executeUpdate("INSERT INTO Patient VALUES (?,?,?,?,?,?);", patientID, name, gender, age, address, numAppts);
+			} catch (SQLException e) {
+				//the identity key of sql/identity.sql is unique
+				if ("23505".equals(e.getSQLState()) && String.valueOf(e.getMessage()).contains("patient_identity_key_idx")) throw new SQLException("A patient with these details already exists", e.getSQLState(), e);
+				throw e;
+			}
+			return patientID;
+		} catch (SQLException e) {
+			scope.fail();
+			throw e;
+		} finally {
+			scope.close();
+		}
+	}//end addPatient
+
+	/**
+	 * Method to add an appointment slot (option 3).
+	 *
+	 * @return the ID of the new appointment
+	 * @throws java.sql.SQLException when the input is invalid or the insert failed
+	 */
+	public static int addAppointment(DBproject esql, LocalDate adate, String timeSlot, String status) throws SQLException {
+		QueryMetrics.Scope scope = esql.getMetrics().begin("3.AddAppointment");
+		try {
+			checkTimeSlot(timeSlot);
+			checkStatus(status);
+
+			int appointmentID = esql.appointmentIDs().next();
+			esql.executeUpdate("INSERT INTO Appointment VALUES (?,?,?,?);", appointmentID, java.sql.Date.valueOf(adate), timeSlot, status);
+			return appointmentID;
+		} catch (SQLException e) {
+			scope.fail();
+			throw e;
+		} finally {
+			scope.close();
+		}
+	}//end addAppointment
+
+	//resolves the doctor's hospital and moves the appointment one step along
+	//AV -> AC -> WL under a row lock; returns hid, appnt_ID, old and new status
+	private static final String BOOK_TRANSITION =
+		"WITH doc AS (SELECT DE.hid FROM Doctor D, Department DE WHERE D.did = DE.dept_ID AND D.doctor_ID = ?), " +
+		"old AS (SELECT A.appnt_ID, A.status FROM Appointment A WHERE A.appnt_ID = ? AND EXISTS (SELECT 1 FROM doc) FOR UPDATE), " +
+		"upd AS (UPDATE Appointment A SET status = CASE old.status WHEN 'AV' THEN 'AC' ELSE 'WL' END FROM old " +
+		"WHERE A.appnt_ID = old.appnt_ID AND old.status IN ('AV', 'AC') RETURNING A.status) " +
+		"SELECT (SELECT hid FROM doc), (SELECT appnt_ID FROM old), (SELECT status FROM old), (SELECT status FROM upd);";
+
+	//the same for a doctor whose hospital came from the reference cache: the appointment, then the hid
+	private static final String BOOK_TRANSITION_CACHED =
+		"WITH old AS (SELECT A.appnt_ID, A.status FROM Appointment A WHERE A.appnt_ID = ? FOR UPDATE), " +
+		"upd AS (UPDATE Appointment A SET status = CASE old.status WHEN 'AV' THEN 'AC' ELSE 'WL' END FROM old " +
+		"WHERE A.appnt_ID = old.appnt_ID AND old.status IN ('AV', 'AC') RETURNING A.status) " +
+		"SELECT ?::integer, (SELECT appnt_ID FROM old), (SELECT status FROM old), (SELECT status FROM upd);";
+
+	//records the booking: the search first, on its own, because the counter
+	//triggers of sql/counters.sql on searches and has_appointment would each
+	//see the other's row if both were inserted by one statement
+	private static final String BOOK_SEARCH =
+		"INSERT INTO searches VALUES (?,?,?) ON CONFLICT DO NOTHING;";
+
+	//then the doctor link, bumping the patient's counter in the same statement
+	//unless neither insert added a row (a repeated booking)
+	private static final String BOOK_RECORD =
+		"WITH h AS (INSERT INTO has_appointment VALUES (?,?) ON CONFLICT DO NOTHING RETURNING 1) " +
+		"UPDATE Patient SET number_of_appts = COALESCE(number_of_appts, 0) + 1 " +
+		"WHERE patient_ID = ? AND (?::boolean OR EXISTS (SELECT 1 FROM h));";
+
+	/**
+	 * Method to book an appointment for a patient with a doctor (option 4).
+	 * The patient is created when no patient with the same details exists,
+	 * ignoring case and extra whitespace (see PatientIdentity).  An available appointment becomes active and an active one
+	 * waitlisted; past appointments are not booked.
+	 *
+	 * Everything runs in one transaction of three to five statements: the
+	 * patient match unless it is cached (plus an insert for new patients),
+	 * the status transition together with the doctor check unless the
+	 * doctor is in the reference cache, the insert into searches, and the
+	 * insert into has_appointment together with the in-place
+	 * number_of_appts increment, skipped when the booking was already
+	 * recorded in both tables.  The appointment
+	 * row stays locked until commit, so concurrent bookings of the same slot
+	 * see each other's transitions.
+	 *
+	 * @return the status transition, e.g. "AV -> AC"
+	 * @throws java.sql.SQLException when the input is invalid or the booking failed
+	 */
+	public static String makeAppointment(final DBproject esql, final String pname, final String pgender, final int page, final String paddress, final int doct_id, final int aid) throws SQLException {
+		return makeAppointment(esql, pname, pgender, page, paddress, doct_id, aid, null);
+	}
+
+	/**
+	 * Method to book an appointment while the doctor is looked up by
+	 * another thread (see AppointmentService): the transaction matches the
+	 * patient and moves the appointment along, and only then takes the
+	 * doctor's hospital, waiting up to -Ddbproject.book.lookupWait ms
+	 * (default 200) for the lookup.  A lookup still running after that, e.g.
+	 * waiting for a pooled connection, is cancelled and the doctor checked
+	 * on the transaction's own connection, so a transaction never waits
+	 * long for a second pooled connection.
+	 *
+	 * @param hospital the doctor's hospital, -1 when there is no such
+	 *        doctor; null to check the doctor in the transaction
+	 * @return the status transition, e.g. "AV -> AC"
+	 * @throws java.sql.SQLException when the input is invalid or the booking failed
+	 */
+	public static String makeAppointment(final DBproject esql, final String pname, final String pgender, final int page, final String paddress, final int doct_id, final int aid, final Future<Integer> hospital) throws SQLException {
+		QueryMetrics.Scope scope = esql.getMetrics().begin("4.MakeAppointment");
+		try {
+			checkLength(pname, 128, "Name");
+			checkGender(pgender);
+			checkLength(paddress, 256, "Address");
+			//the doctor's hospital without a join when it is cached
+			final int cachedHid = hospital == null ? esql.getReferenceCache().hospitalOfDoctor(doct_id) : -1;
+			//the patient's ID is cached once the booking committed
+			final PatientIdentity.Lookups lookups = esql.getPatientIdentity().lookups();
+
+			String transition = esql.executeTransaction(new DBproject.Transaction<String>() {
+				public String run(ConnectionPool.PooledConnection pc) throws SQLException {
+					lookups.clear();
+					int pid = esql.getPatientIdentity().resolve(pc, lookups, pname, pgender, page, paddress);
+
+					PreparedStatement stmt;
+					if (cachedHid >= 0 || hospital != null) {
+						stmt = pc.statements().prepare(BOOK_TRANSITION_CACHED);
+						StatementCache.bind(stmt, aid, cachedHid);
+					}
+					else {
+						stmt = pc.statements().prepare(BOOK_TRANSITION);
+						StatementCache.bind(stmt, doct_id, aid);
+					}
+					ResultSet rs = stmt.executeQuery();
+					rs.next();
+					int hid = rs.getInt(1);
+					boolean validDoctor = !rs.wasNull();
+					rs.getInt(2);
+					boolean validAppointment = !rs.wasNull();
+					String oldStatus = rs.getString(3);
+					String newStatus = rs.getString(4);
+					rs.close();
+					if (hospital != null) {
+						Integer found = await(hospital, LOOKUP_WAIT_MILLIS);
+						hid = found != null ? found : hospitalOfDoctor(pc, doct_id);
+						validDoctor = hid >= 0;
+					}
+
+					if (!validDoctor) {
+						throw new SQLException("Invalid doctor");
+					}
+					if (!validAppointment) {
+						throw new SQLException("Invalid appointment");
+					}
+
+					if (!PAST.equals(oldStatus)) {
+						stmt = pc.statements().prepare(BOOK_SEARCH);
+						StatementCache.bind(stmt, hid, pid, aid);
+						boolean searched = stmt.executeUpdate() > 0;
+						stmt = pc.statements().prepare(BOOK_RECORD);
+						StatementCache.bind(stmt, aid, doct_id, pid, searched);
+						stmt.executeUpdate();
+					}
+					return newStatus == null ? oldStatus : oldStatus + " -> " + newStatus;
+				}
+			});
+			esql.getPatientIdentity().remember(lookups);
+			if (transition.startsWith(AVAILABLE)) esql.getAvailability().booked(aid);
+			return transition;
+		} catch (SQLException e) {
+			scope.fail();
+			throw e;
+		} finally {
+			scope.close();
+		}
+	}//end makeAppointment
+
+	//the hospital of a doctor's department; no row for an unknown doctor
+	static final String HOSPITAL_OF_DOCTOR =
+		"SELECT DE.hid FROM Doctor D, Department DE WHERE D.did = DE.dept_ID AND D.doctor_ID = ?;";
+
+	/**
+	 * Method to look up the hospital of a doctor, from the reference cache
+	 * when it is there.
+	 *
+	 * @return the hospital ID, or -1 when there is no such doctor
+	 * @throws java.sql.SQLException when the lookup failed
+	 */
+	public static int hospitalOfDoctor(DBproject esql, int doctor) throws SQLException {
+		int hid = esql.getReferenceCache().hospitalOfDoctor(doctor);
+		if (hid >= 0) return hid;
+		ColumnarResult result = esql.executeQueryAndReturnColumns(HOSPITAL_OF_DOCTOR, doctor);
+		return result.isEmpty() ? -1 : result.getInt(0, 0);
+	}
+
+	private static int hospitalOfDoctor(ConnectionPool.PooledConnection pc, int doctor) throws SQLException {
+		PreparedStatement stmt = pc.statements().prepare(HOSPITAL_OF_DOCTOR);
+		StatementCache.bind(stmt, doctor);
+		ResultSet rs = stmt.executeQuery();
+		int hid = rs.next() ? rs.getInt(1) : -1;
+		rs.close();
+		return hid;
+	}
+
+	//the lookup's result, or null when it did not finish in time and was cancelled
+	private static Integer await(Future<Integer> hospital, long millis) throws SQLException {
+		try {
+			return hospital.get(millis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			//it may have finished in the meantime
+			return hospital.cancel(false) ? null : await(hospital, 0);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while checking the doctor");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+			throw new SQLException(e.getCause());
+		}
+	}
+
+	/**
+	 * Method to print the earliest available appointment of a department,
+	 * or with a doctor of a specialty, in the days [from, from + days).  It
+	 * is answered from the AvailabilityIndex, without a query.
+	 *
+	 * @return the number of rows printed, 0 or 1
+	 * @throws java.sql.SQLException when the input is invalid or the index could not be loaded
+	 */
+	public static int findEarliestAvailable(DBproject esql, Writer out, String department, String specialty, LocalDate from, int days) throws SQLException {
+		QueryMetrics.Scope scope = esql.getMetrics().begin("EarliestAvailable");
+		try {
+			if ((department == null) == (specialty == null)) {
+				throw new SQLException("Give either a department or a specialty");
+			}
+			if (days < 1) {
+				throw new SQLException("Number of days must be at least 1");
+			}
+			AvailabilityIndex.Slot slot = department != null ? esql.getAvailability().earliestInDepartment(department, from, days)
+				: esql.getAvailability().earliestForSpecialty(specialty, from, days);
+			out.write("doctor_id\tappnt_id\tadate\tstart\t\n");
+			if (slot != null) out.write(slot + "\t\n");
+			out.flush();
+			return slot == null ? 0 : 1;
+		} catch (IOException e) {
+			scope.fail();
+			throw new SQLException("Failed to write result: " + e.getMessage(), e);
+		} catch (SQLException e) {
+			scope.fail();
+			throw e;
+		} finally {
+			scope.close();
+		}
+	}//end findEarliestAvailable
+
+	//report query of option 5, also explained by PlanHarness
+	static final String LIST_APPOINTMENTS_OF_DOCTOR =
+		"SELECT D.name, D.doctor_ID, A.appnt_ID, A.adate, A.time_slot, A.status FROM Appointment A, Doctor D, has_appointment HA WHERE HA.appt_id = A.appnt_ID AND (A.status = 'AC' OR A.status = 'AV') AND HA.doctor_id = D.doctor_ID AND D.doctor_ID = ? AND A.adate >= ? AND A.adate <= ?;";
+
+	/**
+	 * Method to list the active and available appointments of a doctor in
+	 * a date range (option 5).  Repeated calls are served from the report
+	 * cache until an affected appointment changes.
+	 *
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static int listAppointmentsOfDoctor(final DBproject esql, Writer out, final int dID, final LocalDate startDate, final LocalDate endDate) throws SQLException {
+		QueryMetrics.Scope scope = esql.getMetrics().begin("5.ListAppointmentsOfDoctor");
+		try {
+			return esql.getReportCache().print(ReportCache.doctor(dID, startDate, endDate), out, new ReportCache.Loader() {
+				public int load(Writer out) throws SQLException {
+					//cached results must come from the primary: a lagging replica could outlive the invalidation
+					if (!esql.getReportCache().isEnabled())
+						return esql.executeReportAndPrintResult(out, LIST_APPOINTMENTS_OF_DOCTOR, dID, java.sql.Date.valueOf(startDate), java.sql.Date.valueOf(endDate));
+					return esql.executeQueryAndPrintResult(out, LIST_APPOINTMENTS_OF_DOCTOR, dID, java.sql.Date.valueOf(startDate), java.sql.Date.valueOf(endDate));
+				}
+			});
+		} catch (SQLException e) {
+			scope.fail();
+			throw e;
+		} finally {
+			scope.close();
+		}
+	}
+
+	//one page of option 5 after the key (adate, appnt_ID) of the previous page's last row
+	static final String LIST_APPOINTMENTS_OF_DOCTOR_PAGE =
+		"SELECT D.name, D.doctor_ID, A.appnt_ID, A.adate, A.time_slot, A.status FROM Appointment A, Doctor D, has_appointment HA WHERE HA.appt_id = A.appnt_ID AND (A.status = 'AC' OR A.status = 'AV') AND HA.doctor_id = D.doctor_ID AND D.doctor_ID = ? AND A.adate >= ? AND A.adate <= ? AND (A.adate, A.appnt_ID) > (?, ?) ORDER BY A.adate, A.appnt_ID LIMIT ?;";
+
+	/**
+	 * Method to list one page of option 5, ordered by date and appointment
+	 * ID.  Each page starts after the key of the previous one instead of at
+	 * an offset, so later pages cost no more than the first.  The first page
+	 * is served from the report cache like the whole listing; later pages
+	 * are not cached.
+	 *
+	 * @param after the previous page, or null for the first
+	 * @param pageSize the maximum number of rows printed
+	 * @return the page, to ask for the next one
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static Page listAppointmentsOfDoctorPage(final DBproject esql, Writer out, final int dID, final LocalDate startDate, final LocalDate endDate, Page after, final int pageSize) throws SQLException {
+		QueryMetrics.Scope scope = esql.getMetrics().begin("5.ListAppointmentsOfDoctorPage");
+		try {
+			if (after == null) {
+				return esql.getReportCache().printPage(ReportCache.doctor(dID, startDate, endDate).firstPage(pageSize), out, new ReportCache.PageLoader() {
+					public Page load(Writer out) throws SQLException {
+						return printPage(esql, out, pageSize, !esql.getReportCache().isEnabled(), LIST_APPOINTMENTS_OF_DOCTOR_PAGE, dID,
+							java.sql.Date.valueOf(startDate), java.sql.Date.valueOf(endDate), java.sql.Date.valueOf(startDate), Integer.MIN_VALUE, pageSize + 1);
+					}
+				});
+			}
+			return printPage(esql, out, pageSize, true, LIST_APPOINTMENTS_OF_DOCTOR_PAGE, dID, java.sql.Date.valueOf(startDate), java.sql.Date.valueOf(endDate),
+				java.sql.Date.valueOf(after.lastDate), after.lastID, pageSize + 1);
+		} catch (SQLException e) {
+			scope.fail();
+			throw e;
+		} finally {
+			scope.close();
+		}
+	}
+
+	//report query of option 6, also explained by PlanHarness
+	static final String LIST_AVAILABLE_APPOINTMENTS_OF_DEPARTMENT =
+		"SELECT A.appnt_ID, A.adate, A.time_slot, A.status FROM Appointment A, Doctor D, has_appointment HA, Department DE  WHERE HA.appt_id = A.appnt_ID AND HA.doctor_id = D.doctor_ID AND D.did = DE.dept_ID AND A.status = 'AV' AND DE.name = ? AND A.adate = ?;";
+
+	/**
+	 * Method to list the available appointments of a department on a date
+	 * (option 6).  Repeated calls are served from the report cache until an
+	 * affected appointment changes.
+	 *
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static int listAvailableAppointmentsOfDepartment(final DBproject esql, Writer out, final String deptName, final LocalDate date) throws SQLException {
+		QueryMetrics.Scope scope = esql.getMetrics().begin("6.ListAvailableAppointmentsOfDepartment");
+		try {
+			return esql.getReportCache().print(ReportCache.department(deptName, date), out, new ReportCache.Loader() {
+				public int load(Writer out) throws SQLException {
+					if (!esql.getReportCache().isEnabled())
+						return esql.executeReportAndPrintResult(out, LIST_AVAILABLE_APPOINTMENTS_OF_DEPARTMENT, deptName, java.sql.Date.valueOf(date));
+					return esql.executeQueryAndPrintResult(out, LIST_AVAILABLE_APPOINTMENTS_OF_DEPARTMENT, deptName, java.sql.Date.valueOf(date));
+				}
+			});
+		} catch (SQLException e) {
+			scope.fail();
+			throw e;
+		} finally {
+			scope.close();
+		}
+	}
+
+	//one page of option 6; the date is fixed, so the key (adate, appnt_ID) advances by appnt_ID
+	static final String LIST_AVAILABLE_APPOINTMENTS_OF_DEPARTMENT_PAGE =
+		"SELECT A.appnt_ID, A.adate, A.time_slot, A.status FROM Appointment A, Doctor D, has_appointment HA, Department DE  WHERE HA.appt_id = A.appnt_ID AND HA.doctor_id = D.doctor_ID AND D.did = DE.dept_ID AND A.status = 'AV' AND DE.name = ? AND A.adate = ? AND (A.adate, A.appnt_ID) > (?, ?) ORDER BY A.adate, A.appnt_ID LIMIT ?;";
+
+	/**
+	 * Method to list one page of option 6, ordered by appointment ID,
+	 * starting after the previous page (see listAppointmentsOfDoctorPage).
+	 * The first page is served from the report cache.
+	 *
+	 * @param after the previous page, or null for the first
+	 * @param pageSize the maximum number of rows printed
+	 * @return the page, to ask for the next one
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static Page listAvailableAppointmentsOfDepartmentPage(final DBproject esql, Writer out, final String deptName, final LocalDate date, Page after, final int pageSize) throws SQLException {
+		QueryMetrics.Scope scope = esql.getMetrics().begin("6.ListAvailableAppointmentsOfDepartmentPage");
+		try {
+			if (after == null) {
+				return esql.getReportCache().printPage(ReportCache.department(deptName, date).firstPage(pageSize), out, new ReportCache.PageLoader() {
+					public Page load(Writer out) throws SQLException {
+						return printPage(esql, out, pageSize, !esql.getReportCache().isEnabled(), LIST_AVAILABLE_APPOINTMENTS_OF_DEPARTMENT_PAGE, deptName,
+							java.sql.Date.valueOf(date), java.sql.Date.valueOf(date), Integer.MIN_VALUE, pageSize + 1);
+					}
+				});
+			}
+			return printPage(esql, out, pageSize, true, LIST_AVAILABLE_APPOINTMENTS_OF_DEPARTMENT_PAGE, deptName, java.sql.Date.valueOf(date),
+				java.sql.Date.valueOf(after.lastDate), after.lastID, pageSize + 1);
+		} catch (SQLException e) {
+			scope.fail();
+			throw e;
+		} finally {
+			scope.close();
+		}
+	}
+
+	/**
+	 * Where a page of appointments ended: the (adate, appnt_ID) key of its
+	 * last row, and whether more rows follow.
+	 */
+	public static final class Page{
+		public final int rows;
+		public final boolean more;
+		final LocalDate lastDate;
+		final int lastID;
+
+		Page(int rows, boolean more, LocalDate lastDate, int lastID) {
+			this.rows = rows;
+			this.more = more;
+			this.lastDate = lastDate;
+			this.lastID = lastID;
+		}
+
+		/**
+		 * Method to read back the key of toString(), e.g. from a request
+		 * parameter.
+		 *
+		 * @param key the key as date,ID
+		 * @return a page that ended at the key
+		 * @throws java.sql.SQLException when the key is malformed
+		 */
+		public static Page parse(String key) throws SQLException {
+			String[] fields = key.split(",");
+			try {
+				return new Page(0, true, LocalDate.parse(fields[0].trim()), Integer.parseInt(fields[1].trim()));
+			} catch (RuntimeException e) {
+				throw new SQLException("Invalid page key " + key);
+			}
+		}
+
+		//the key of the last row as yyyy-mm-dd,appnt_ID
+		public String toString() {
+			return lastDate + "," + lastID;
+		}
+	}//end Page
+
+	/*
+	 * runs a page query for up to pageSize + 1 rows and prints the first
+	 * pageSize of them; the extra row only tells whether there are more.
+	 * Pages that go into the report cache are read from the primary
+	 * (report false), like the cached listings.
+	 */
+	private static Page printPage(DBproject esql, Writer out, int pageSize, boolean report, String query, Object... params) throws SQLException {
+		if (pageSize < 1) {
+			throw new SQLException("Invalid page size");
+		}
+		ColumnarResult result = new ColumnarResult();
+		if (report) esql.executeReportStreaming(query, result, params);
+		else esql.executeQueryStreaming(query, result, params);
+		int rows = Math.min(result.size(), pageSize);
+		if (rows == 0) return new Page(0, false, null, 0);
+		try {
+			for (int c = 0; c < result.columnCount(); ++c) {
+				out.write(result.getName(c));
+				out.write('\t');
+			}
+			out.write('\n');
+			for (int r = 0; r < rows; ++r) {
+				for (int c = 0; c < result.columnCount(); ++c) {
+					out.write(String.valueOf(result.getString(r, c)));
+					out.write('\t');
+				}
+				out.write('\n');
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw new SQLException("Failed to write result: " + e.getMessage(), e);
+		}
+		return new Page(rows, result.size() > pageSize, result.getDate(rows - 1, result.column("adate")), result.getInt(rows - 1, result.column("appnt_id")));
+	}//end printPage
+
+	//whether options 7 and 8 count the appointments moved to the archive (Archiver.java) by default
+	static final boolean INCLUDE_ARCHIVE = Boolean.getBoolean("dbproject.includeArchive");
+
+	//report query of option 7, also explained by PlanHarness; the counts are kept by sql/counters.sql
+	static final String LIST_STATUS_NUMBER_OF_APPOINTMENTS_PER_DOCTOR =
+		"SELECT D.doctor_ID, D.name, C.status, C.appointments FROM doctor_status_counts C, Doctor D WHERE C.doctor_id = D.doctor_ID AND C.appointments > 0 ORDER BY C.appointments DESC;";
+
+	//option 7 over the live counters and the archive
+	static final String LIST_STATUS_NUMBER_OF_APPOINTMENTS_PER_DOCTOR_WITH_ARCHIVE =
+		"SELECT D.doctor_ID, D.name, C.status, C.appointments FROM ("
+		+ "SELECT doctor_id, status, SUM(appointments) AS appointments FROM ("
+		+ "SELECT doctor_id, status, appointments FROM doctor_status_counts "
+		+ "UNION ALL SELECT HA.doctor_id, A.status, COUNT(*) FROM has_appointment_archive HA, appointment_archive A "
+		+ "WHERE A.appnt_ID = HA.appt_id GROUP BY HA.doctor_id, A.status) U GROUP BY doctor_id, status) C, Doctor D "
+		+ "WHERE C.doctor_id = D.doctor_ID AND C.appointments > 0 ORDER BY C.appointments DESC;";
+
+	/**
+	 * Method to count the appointments of every status per doctor, in
+	 * descending order (option 7).
+	 *
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static int listStatusNumberOfAppointmentsPerDoctor(DBproject esql, Writer out) throws SQLException {
+		return listStatusNumberOfAppointmentsPerDoctor(esql, out, INCLUDE_ARCHIVE);
+	}
+
+	/**
+	 * Method to count the appointments of every status per doctor, with or
+	 * without the appointments moved to the archive by Archiver.
+	 *
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static int listStatusNumberOfAppointmentsPerDoctor(DBproject esql, Writer out, boolean includeArchive) throws SQLException {
+		QueryMetrics.Scope scope = esql.getMetrics().begin("7.ListStatusNumberOfAppointmentsPerDoctor");
+		try {
+			return esql.executeReportAndPrintResult(out, includeArchive ? LIST_STATUS_NUMBER_OF_APPOINTMENTS_PER_DOCTOR_WITH_ARCHIVE
+				: LIST_STATUS_NUMBER_OF_APPOINTMENTS_PER_DOCTOR);
+		} catch (SQLException e) {
+			scope.fail();
+			throw e;
+		} finally {
+			scope.close();
+		}
+	}
+
+	//report query of option 8, also explained by PlanHarness
+	static final String FIND_PATIENTS_COUNT_WITH_STATUS =
+		"SELECT D.doctor_ID, D.name, C.patients FROM doctor_status_counts C, Doctor D WHERE C.doctor_id = D.doctor_ID AND C.status = ? AND C.patients > 0;";
+
+	//option 8 over the live counters and the archive; a patient counted in both is counted once
+	static final String FIND_PATIENTS_COUNT_WITH_STATUS_WITH_ARCHIVE =
+		"SELECT D.doctor_ID, D.name, COUNT(*) AS patients FROM ("
+		+ "SELECT doctor_id, patient_id FROM doctor_status_patients WHERE status = ? "
+		+ "UNION SELECT HA.doctor_id, S.pid FROM has_appointment_archive HA, searches_archive S, appointment_archive A "
+		+ "WHERE S.aid = HA.appt_id AND A.appnt_ID = HA.appt_id AND A.status = ?) P, Doctor D "
+		+ "WHERE P.doctor_id = D.doctor_ID GROUP BY D.doctor_ID, D.name;";
+
+	/**
+	 * Method to count the distinct patients per doctor with appointments of
+	 * a given status (option 8).
+	 *
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when the status is invalid or the query failed
+	 */
+	public static int findPatientsCountWithStatus(DBproject esql, Writer out, String status) throws SQLException {
+		return findPatientsCountWithStatus(esql, out, status, INCLUDE_ARCHIVE);
+	}
+
+	/**
+	 * Method to count the distinct patients per doctor with appointments of
+	 * a given status, with or without the archive.
+	 *
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when the status is invalid or the query failed
+	 */
+	public static int findPatientsCountWithStatus(DBproject esql, Writer out, String status, boolean includeArchive) throws SQLException {
+		QueryMetrics.Scope scope = esql.getMetrics().begin("8.FindPatientsCountWithStatus");
+		try {
+			checkStatus(status);
+			if (includeArchive) {
+				return esql.executeReportAndPrintResult(out, FIND_PATIENTS_COUNT_WITH_STATUS_WITH_ARCHIVE, status, status);
+			}
+			return esql.executeReportAndPrintResult(out, FIND_PATIENTS_COUNT_WITH_STATUS, status);
+		} catch (SQLException e) {
+			scope.fail();
+			throw e;
+		} finally {
+			scope.close();
+		}
+	}
+}//end Operations
@@ -0,0 +1,213 @@
+/*
+ * Patient identity
+ * ================
+ *
+ * Bookings name the patient by their details rather than an ID.  The
+ * details are matched on the identity key of sql/identity.sql (an md5 of the
+ * normalized name, gender, age and address, unique in Patient), so a lookup
+ * is one index probe and "insert when missing" is one INSERT ... ON CONFLICT
+ * that concurrent bookings of the same new patient cannot both win.
+ *
+ * Details map to patient IDs in a bounded LRU cache
+ * (-Ddbproject.identity.cache.size entries, default 10000, 0 disables).  The
+ * cache is keyed on the details exactly as given; only the key of
+ * sql/identity.sql normalizes them, so the two cannot disagree on which
+ * spellings are the same patient.  The IDs a transaction found or added
+ * are collected in its Lookups and only cached once it committed, so a
+ * patient inserted by a transaction that is later rolled back never is.
+ * A patient whose details change or who is deleted is notified on the
+ * dbproject_patients channel and dropped from the cache; without the
+ * trigger of sql/identity.sql the cache stays disabled.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class finds or creates the patient with given details.
+ *
+ */
+
+public class PatientIdentity implements NotificationListener.Subscriber{
+	public static final String CHANNEL = "dbproject_patients";
+	static final String FIND =
+		"SELECT patient_ID FROM Patient WHERE identity_key = patient_identity_key(?,?,?,?);";
+	static final String INSERT =
+		"INSERT INTO Patient VALUES (?,?,?,?,?,0) ON CONFLICT (identity_key) DO NOTHING;";
+
+	private final DBproject _esql;
+	private final LinkedHashMap<String, Integer> _cache;
+	private long _hits = 0, _misses = 0, _created = 0, _invalidations = 0;
+	private boolean _enabled = false;
+	//bumped by every invalidation, so a lookup that raced one is not remembered
+	private long _generation = 0;
+
+	public PatientIdentity(DBproject esql, final int maxEntries) {
+		this._esql = esql;
+		this._cache = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * The patient IDs one transaction found or added, for remember() once
+	 * it committed.
+	 */
+	public static final class Lookups{
+		final long generation;
+		final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+		Lookups(long generation) {
+			this.generation = generation;
+		}
+
+		void found(String key, int pid) {
+			ids.put(key, pid);
+		}
+
+		/**
+		 * Method to forget the IDs of an attempt that was rolled back.
+		 */
+		public void clear() {
+			ids.clear();
+		}
+	}//end Lookups
+
+	/**
+	 * Method to build the cache key of the details as given.  Text in
+	 * Postgres cannot hold NUL, so it separates the fields unambiguously.
+	 */
+	public static String key(String name, String gender, int age, String address) {
+		return name + '\0' + gender + '\0' + age + '\0' + address;
+	}
+
+	/**
+	 * Method to find the patient with the given details, or add one, on the
+	 * connection of the caller's transaction.
+	 *
+	 * @param pc the connection of the running transaction
+	 * @param lookups collects the ID for remember() once the transaction
+	 *        committed
+	 * @return the patient's ID
+	 * @throws java.sql.SQLException when the lookup or insert failed
+	 */
+	public int resolve(ConnectionPool.PooledConnection pc, Lookups lookups, String name, String gender, int age, String address) throws SQLException {
+		String key = key(name, gender, age, address);
+		Integer cached = cached(key);
+		if (cached != null) return cached;
+		//a concurrent insert of the same patient makes ours do nothing; the second lookup sees theirs
+		for (int attempt = 0; ; ++attempt) {
+			int pid = find(pc, name, gender, age, address);
+			if (pid >= 0) {
+				lookups.found(key, pid);
+				return pid;
+			}
+			if (attempt > 0) throw new SQLException("Patient could neither be found nor added");
+
+			pid = _esql.patientIDs().next(pc);
+			PreparedStatement stmt = pc.statements().prepare(INSERT);
+			StatementCache.bind(stmt, pid, name, gender, age, address);
+			if (stmt.executeUpdate() == 1) {
+				created(1);
+				lookups.found(key, pid);
+				return pid;
+			}
+		}//end for
+	}//end resolve
+
+	private int find(ConnectionPool.PooledConnection pc, String name, String gender, int age, String address) throws SQLException {
+		PreparedStatement stmt = pc.statements().prepare(FIND);
+		StatementCache.bind(stmt, name, gender, age, address);
+		ResultSet rs = stmt.executeQuery();
+		int pid = rs.next() ? rs.getInt(1) : -1;
+		rs.close();
+		return pid;
+	}
+
+	//cached ID of the details, null when not cached
+	synchronized Integer cached(String key) {
+		Integer pid = _enabled ? _cache.get(key) : null;
+		if (pid != null) ++_hits; else ++_misses;
+		return pid;
+	}
+
+	/**
+	 * Method to start collecting the IDs of a transaction, before its
+	 * first lookup.
+	 */
+	public synchronized Lookups lookups() {
+		return new Lookups(_generation);
+	}
+
+	/**
+	 * Method to cache the IDs of a committed transaction, unless a change
+	 * was notified since its lookups started.
+	 */
+	public synchronized void remember(Lookups lookups) {
+		if (_enabled && lookups.generation == _generation) _cache.putAll(lookups.ids);
+	}
+
+	synchronized void created(int count) {
+		_created += count;
+	}
+
+	public synchronized void clear() {
+		_cache.clear();
+		++_generation;
+	}
+
+	/**
+	 * Enables the cache when the notification trigger of sql/identity.sql
+	 * is installed.
+	 */
+	public void connected(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM pg_trigger WHERE tgname = 'patient_identity_notify';");
+		rs.next();
+		boolean installed = rs.getInt(1) >= 1;
+		stmt.close();
+		synchronized (this) {
+			clear();
+			_enabled = installed;
+		}
+		if (!installed)
+			System.err.println("WARNING: patient identity cache disabled, run sql/identity.sql to install its trigger");
+	}
+
+	public synchronized void disconnected() {
+		_enabled = false;
+		clear();
+	}
+
+	/**
+	 * Drops the entries of the changed patient, or all of them on '*'.
+	 */
+	public synchronized void received(String payload) {
+		++_invalidations;
+		int patient;
+		try {
+			patient = Integer.parseInt(payload);
+		} catch (NumberFormatException e) {
+			clear();
+			return;
+		}
+		for (Iterator<Integer> it = _cache.values().iterator(); it.hasNext(); )
+			if (it.next() == patient) it.remove();
+		++_generation;
+	}//end received
+
+	public synchronized String toString() {
+		return "Patient identity cache: " + (_enabled ? "enabled" : "disabled") + ", " + _cache.size() + " entries, "
+			+ _hits + " hits, " + _misses + " misses, " + _invalidations + " invalidations, " + _created + " patients added";
+	}
+}//end PatientIdentity
@@ -0,0 +1,322 @@
+/*
+ * Plan capture harness
+ * ====================
+ *
+ * Runs the four report queries of options 5-8 under
+ * EXPLAIN (ANALYZE, BUFFERS) at one or more data scales and stores every
+ * plan with its timings, so an index or schema change can be proven by
+ * comparing two runs.  Sequential scans, sorts that spill to disk and hash
+ * joins that split into batches are flagged, and index recommendations are
+ * derived from the filters of the flagged scans.
+ *
+ * With --scales the database is recreated and loaded with DataGenerator at
+ * each scale (sql/index.sql included); without it the current data is used.
+ *
+ *   java -cp lib/*:bin/ PlanHarness <dbname> <port> <user> [--scales 1,10,100] [--seed <n>]
+ *                                   [--runs <n>] [--sql <dir>] [--out <dir>]
+ *
+ * The plans go to <out>/<scale>/<report>.txt and the timings and flags to
+ * <out>/summary.csv (default out directory: plans).
+ *
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class captures and checks the execution plans of the report queries.
+ *
+ */
+
+public class PlanHarness{
+	private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)(?: (\\w+))?");
+	private static final Pattern FILTER = Pattern.compile("^\\s*Filter: (.*)$");
+	private static final Pattern REMOVED = Pattern.compile("Rows Removed by Filter: (\\d+)");
+	private static final Pattern ACTUAL_ROWS = Pattern.compile("actual time=[\\d.]+\\.\\.[\\d.]+ rows=(\\d+) loops=(\\d+)");
+	private static final Pattern SORT_SPILL = Pattern.compile("Sort Method: external \\w+\\s+Disk: (\\d+)kB");
+	private static final Pattern SORT_KEY = Pattern.compile("^\\s*Sort Key: (.*)$");
+	private static final Pattern HASH_BATCHES = Pattern.compile("Batches: (\\d+)");
+	private static final Pattern EXECUTION = Pattern.compile("Execution Time: ([\\d.]+) ms");
+	private static final Pattern PLANNING = Pattern.compile("Planning Time: ([\\d.]+) ms");
+	private static final Pattern BUFFERS = Pattern.compile("Buffers: shared(?: hit=(\\d+))?(?: read=(\\d+))?");
+	//a column compared in a filter, e.g. "(a.status)::text = 'AV'::text" or "adate >= '2021-01-01'::date"
+	private static final Pattern COMPARISON = Pattern.compile("\\(*(?:\\w+\\.)?(\\w+)\\)?(?:::[\\w ]+)?\\s*(=|<>|>=|<=|<|>|~~)\\s*('[^']*'|\\$\\d+|[\\w.]+)");
+
+	//scans touching fewer rows than this are not worth an index
+	private static final long SMALL_SCAN = 1000;
+
+	/**
+	 * One report query with the parameters it is explained with.
+	 */
+	public static class Report{
+		public final String name;
+		public final String sql;
+		public final Object[] params;
+
+		Report(String name, String sql, Object... params) {
+			this.name = name;
+			this.sql = sql;
+			this.params = params;
+		}
+	}
+
+	/**
+	 * What one explained run found.
+	 */
+	public static class Plan{
+		public String text;
+		public double planningMillis, executionMillis;
+		public long sharedHit, sharedRead;
+		public final List<String> flags = new ArrayList<String>();
+		public final Set<String> recommendations = new LinkedHashSet<String>();
+	}
+
+	private final DBproject _esql;
+
+	public PlanHarness(DBproject esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to pick representative parameters from the current data: the
+	 * busiest doctor over the last month of appointments, and the
+	 * department and date with the most available appointments.
+	 */
+	public List<Report> reports() throws SQLException {
+		ColumnarResult doctor = _esql.executeQueryAndReturnColumns(
+			"SELECT HA.doctor_id, MAX(A.adate) AS last FROM has_appointment HA, Appointment A WHERE HA.appt_id = A.appnt_ID GROUP BY HA.doctor_id ORDER BY COUNT(*) DESC LIMIT 1;");
+		ColumnarResult available = _esql.executeQueryAndReturnColumns(
+			"SELECT DE.name, A.adate FROM Appointment A, has_appointment HA, Doctor D, Department DE WHERE HA.appt_id = A.appnt_ID AND HA.doctor_id = D.doctor_ID AND D.did = DE.dept_ID AND A.status = 'AV' GROUP BY DE.name, A.adate ORDER BY COUNT(*) DESC LIMIT 1;");
+		if (doctor.isEmpty() || available.isEmpty())
+			throw new SQLException("The reports need appointments linked to doctors, some of them available");
+
+		java.sql.Date last = java.sql.Date.valueOf(doctor.getDate(0, 1));
+		java.sql.Date monthBefore = java.sql.Date.valueOf(doctor.getDate(0, 1).minusDays(30));
+		return Arrays.asList(
+			new Report("5.ListAppointmentsOfDoctor", Operations.LIST_APPOINTMENTS_OF_DOCTOR, doctor.getInt(0, 0), monthBefore, last),
+			new Report("6.ListAvailableAppointmentsOfDepartment", Operations.LIST_AVAILABLE_APPOINTMENTS_OF_DEPARTMENT,
+				available.getString(0, 0), java.sql.Date.valueOf(available.getDate(0, 1))),
+			new Report("5.ListAppointmentsOfDoctorPage", Operations.LIST_APPOINTMENTS_OF_DOCTOR_PAGE, doctor.getInt(0, 0), monthBefore, last,
+				monthBefore, Integer.MIN_VALUE, 21),
+			new Report("6.ListAvailableAppointmentsOfDepartmentPage", Operations.LIST_AVAILABLE_APPOINTMENTS_OF_DEPARTMENT_PAGE,
+				available.getString(0, 0), java.sql.Date.valueOf(available.getDate(0, 1)), java.sql.Date.valueOf(available.getDate(0, 1)), Integer.MIN_VALUE, 21),
+			new Report("7.ListStatusNumberOfAppointmentsPerDoctor", Operations.LIST_STATUS_NUMBER_OF_APPOINTMENTS_PER_DOCTOR),
+			new Report("8.FindPatientsCountWithStatus", Operations.FIND_PATIENTS_COUNT_WITH_STATUS, Operations.ACTIVE),
+			new Report("7.ListStatusNumberOfAppointmentsPerDoctorWithArchive", Operations.LIST_STATUS_NUMBER_OF_APPOINTMENTS_PER_DOCTOR_WITH_ARCHIVE),
+			new Report("8.FindPatientsCountWithStatusWithArchive", Operations.FIND_PATIENTS_COUNT_WITH_STATUS_WITH_ARCHIVE, Operations.PAST, Operations.PAST));
+	}//end reports
+
+	/**
+	 * Method to run a report under EXPLAIN (ANALYZE, BUFFERS).  The plan
+	 * uses the bound parameter values, as the report itself does.
+	 */
+	public Plan explain(Report report) throws SQLException {
+		ConnectionPool.PooledConnection pc = _esql.getPool().borrow();
+		try {
+			Connection conn = pc.connection();
+			PreparedStatement stmt = conn.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + report.sql);
+			try {
+				StatementCache.bind(stmt, report.params);
+				StringBuilder text = new StringBuilder();
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) text.append(rs.getString(1)).append('\n');
+				rs.close();
+				return analyze(report, text.toString());
+			} finally {
+				stmt.close();
+			}
+		} finally {
+			_esql.getPool().release(pc);
+		}
+	}//end explain
+
+	/**
+	 * Method to read the timings out of a text plan, flag the nodes that do
+	 * not scale and derive index recommendations from them.
+	 */
+	public static Plan analyze(Report report, String text) {
+		Plan plan = new Plan();
+		plan.text = text;
+		String[] lines = text.split("\n");
+		Matcher m;
+		for (int i = 0; i < lines.length; ++i) {
+			String line = lines[i];
+			if ((m = PLANNING.matcher(line)).find()) plan.planningMillis = Double.parseDouble(m.group(1));
+			if ((m = EXECUTION.matcher(line)).find()) plan.executionMillis = Double.parseDouble(m.group(1));
+			if (line.trim().startsWith("Buffers:") && plan.sharedHit == 0 && plan.sharedRead == 0 && (m = BUFFERS.matcher(line)).find()) {
+				//the first Buffers line belongs to the top node and includes its children
+				if (m.group(1) != null) plan.sharedHit = Long.parseLong(m.group(1));
+				if (m.group(2) != null) plan.sharedRead = Long.parseLong(m.group(2));
+			}
+			if ((m = SORT_SPILL.matcher(line)).find()) {
+				String key = "";
+				for (int j = i - 1; j >= 0 && key.isEmpty(); --j) {
+					Matcher k = SORT_KEY.matcher(lines[j]);
+					if (k.find()) key = k.group(1);
+				}
+				plan.flags.add("sort spilled " + m.group(1) + " kB to disk (Sort Key: " + key + ")");
+				plan.recommendations.add("raise work_mem above " + m.group(1) + " kB, or index the sort key " + key);
+			}
+			if ((m = HASH_BATCHES.matcher(line)).find() && Long.parseLong(m.group(1)) > 1) {
+				plan.flags.add("hash split into " + m.group(1) + " batches on disk");
+				plan.recommendations.add("raise work_mem so the hash fits in one batch");
+			}
+			if ((m = SEQ_SCAN.matcher(line)).find()) {
+				String table = m.group(1);
+				String alias = m.group(2) != null ? m.group(2) : table;
+				long rows = 0, removed = 0;
+				Matcher r = ACTUAL_ROWS.matcher(line);
+				if (r.find()) rows = Long.parseLong(r.group(1)) * Long.parseLong(r.group(2));
+				String filter = null;
+				//the node's own detail lines are indented deeper and come before the next node
+				for (int j = i + 1; j < lines.length && !lines[j].contains("->"); ++j) {
+					Matcher f = FILTER.matcher(lines[j]);
+					if (f.find()) filter = f.group(1);
+					Matcher x = REMOVED.matcher(lines[j]);
+					if (x.find()) removed = Long.parseLong(x.group(1));
+				}
+				plan.flags.add("sequential scan on " + table + " (" + rows + " rows kept, " + removed + " removed"
+					+ (filter != null ? ", Filter: " + filter : "") + ")");
+				if (rows + removed >= SMALL_SCAN)
+					plan.recommendations.add(recommend(report.sql, table, alias, filter));
+			}
+		}//end for
+		return plan;
+	}//end analyze
+
+	/**
+	 * Method to recommend an index for a flagged sequential scan: equality
+	 * columns first, then range columns.  An equality on a literal of the
+	 * report query (e.g. status = 'AV') becomes the predicate of a partial
+	 * index instead of a key column.
+	 */
+	static String recommend(String sql, String table, String alias, String filter) {
+		if (filter == null)
+			return "full scan of " + table + " feeds a join or aggregate over all rows; an index will not help, pre-aggregate instead";
+		List<String> equality = new ArrayList<String>();
+		List<String> range = new ArrayList<String>();
+		List<String> partial = new ArrayList<String>();
+		Matcher m = COMPARISON.matcher(filter);
+		while (m.find()) {
+			String column = m.group(1).toLowerCase(Locale.ROOT);
+			String value = m.group(3);
+			boolean literal = value.startsWith("'") && Pattern.compile("(?i)\\b" + Pattern.quote(alias) + "\\." + Pattern.quote(column)
+				+ "\\s*=\\s*" + Pattern.quote(value)).matcher(sql).find();
+			if (literal && m.group(2).equals("=")) {
+				partial.add(column + " = " + value);
+			}
+			else if (m.group(2).equals("=")) {
+				if (!equality.contains(column)) equality.add(column);
+			}
+			else if (!range.contains(column) && !equality.contains(column)) {
+				range.add(column);
+			}
+		}//end while
+		List<String> columns = new ArrayList<String>(equality);
+		columns.addAll(range);
+		if (columns.isEmpty()) {
+			if (partial.isEmpty()) return "no indexable condition in the filter of " + table + ": " + filter;
+			columns.add(partial.remove(0).split(" ")[0]);
+		}
+		StringBuilder sb = new StringBuilder("CREATE INDEX ON ").append(table).append(" (");
+		for (int i = 0; i < columns.size(); ++i) sb.append(i > 0 ? ", " : "").append(columns.get(i));
+		sb.append(')');
+		for (int i = 0; i < partial.size(); ++i) sb.append(i == 0 ? " WHERE " : " AND ").append(partial.get(i));
+		return sb.append(';').toString();
+	}//end recommend
+
+	public static void main (String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println ("Usage: java [-classpath <classpath>] PlanHarness <dbname> <port> <user> [--scales 1,10,100] [--seed <n>] [--runs <n>] [--sql <dir>] [--out <dir>]");
+			return;
+		}
+		String[] scales = null;
+		long seed = 42;
+		int runs = 3;
+		File sqlDir = new File("../sql");
+		File outDir = new File("plans");
+		for (int i = 3; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			if (args[i].equals("--scales")) scales = value.split(",");
+			else if (args[i].equals("--seed")) seed = Long.parseLong(value);
+			else if (args[i].equals("--runs")) runs = Math.max(1, Integer.parseInt(value));
+			else if (args[i].equals("--sql")) sqlDir = new File(value);
+			else if (args[i].equals("--out")) outDir = new File(value);
+			else throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		if (!outDir.isDirectory() && !outDir.mkdirs()) throw new IOException("Cannot create " + outDir);
+
+		Class.forName("org.postgresql.Driver");
+		System.setProperty("dbproject.pool.max", String.valueOf(Math.max(BulkLoader.TABLES.length, Integer.getInteger("dbproject.pool.max", 8))));
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		PrintWriter summary = new PrintWriter(new FileWriter(new File(outDir, "summary.csv")));
+		try {
+			summary.println("scale,report,planning_ms,execution_ms_median,execution_ms_min,shared_hit,shared_read,seq_scans,spills");
+			PlanHarness harness = new PlanHarness(esql);
+			for (String scale : scales != null ? scales : new String[]{ "current" }) {
+				if (scales != null) {
+					System.out.println("== loading scale " + scale);
+					DataGenerator generator = new DataGenerator(Double.parseDouble(scale), seed, Runtime.getRuntime().availableProcessors());
+					try {
+						BulkLoader loader = new BulkLoader(esql, sqlDir);
+						SqlScript.run(esql, new File(sqlDir, "create.sql"));
+						loader.loadAll(generator.source());
+						loader.finish();
+					} finally {
+						generator.shutdown();
+					}
+				}
+				esql.executeUpdate("ANALYZE");
+				File scaleDir = new File(outDir, scale);
+				if (!scaleDir.isDirectory() && !scaleDir.mkdirs()) throw new IOException("Cannot create " + scaleDir);
+
+				for (Report report : harness.reports()) {
+					double[] times = new double[runs];
+					Plan plan = null;
+					for (int r = 0; r < runs; ++r) {
+						plan = harness.explain(report);
+						times[r] = plan.executionMillis;
+					}
+					Arrays.sort(times);
+					PrintWriter out = new PrintWriter(new FileWriter(new File(scaleDir, report.name + ".txt")));
+					try {
+						out.println(report.sql);
+						out.println("-- parameters: " + Arrays.toString(report.params));
+						out.print(plan.text);
+					} finally {
+						out.close();
+					}
+
+					int seqScans = 0, spills = 0;
+					for (String flag : plan.flags) {
+						if (flag.startsWith("sequential")) ++seqScans; else ++spills;
+					}
+					summary.printf(Locale.ROOT, "%s,%s,%.3f,%.3f,%.3f,%d,%d,%d,%d%n", scale, report.name, plan.planningMillis,
+						times[runs / 2], times[0], plan.sharedHit, plan.sharedRead, seqScans, spills);
+					System.out.printf("%-8s %-42s %10.3f ms (min %.3f)  hit %d read %d%n", scale, report.name, times[runs / 2], times[0], plan.sharedHit, plan.sharedRead);
+					for (String flag : plan.flags) System.out.println("         FLAG " + flag);
+					for (String rec : plan.recommendations) System.out.println("         RECOMMEND " + rec);
+				}//end for
+			}//end for
+		} catch (SQLException e) {
+			System.err.println("ERROR: " + e.getMessage());
+		} finally {
+			summary.close();
+			esql.cleanup();
+		}
+	}//end main
+}//end PlanHarness
@@ -0,0 +1,372 @@
+/*
+ * Query metrics
+ * =============
+ *
+ * Latency histograms, row and error counts per query shape (the SQL text
+ * with ? placeholders), and calls, round trips, rows and pool wait time per
+ * menu operation.  DBproject records every data-access call here; the
+ * operations in Operations.java open a scope so the calls they make are
+ * attributed to them.
+ *
+ * The numbers are shown by the Statistics menu entry and the /stats
+ * endpoint, exported over JMX as DBproject:type=QueryMetrics, and appended
+ * to the file named by -Ddbproject.metrics.log every
+ * -Ddbproject.metrics.interval seconds (default 60) when that is set.
+ *
+ */
+
+import java.beans.ConstructorProperties;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * This class collects the latency and volume of the database calls of one
+ * DBproject.
+ *
+ */
+
+public class QueryMetrics{
+	/**
+	 * Management interface exported over JMX.
+	 */
+	public interface Stats{
+		long getQueryCalls();
+		long getQueryErrors();
+		long getRowsReturned();
+		long getPoolWaitMillis();
+		List<Summary> getQueryShapes();
+		List<Summary> getMenuOperations();
+		String getReport();
+		void reset();
+	}
+
+	/**
+	 * Snapshot of one query shape or menu operation.
+	 */
+	public static class Summary{
+		private final String name;
+		private final long calls, errors, rows, roundTrips;
+		private final double p50Millis, p99Millis, maxMillis, poolWaitMillis;
+
+		@ConstructorProperties({ "name", "calls", "errors", "rows", "roundTrips", "p50Millis", "p99Millis", "maxMillis", "poolWaitMillis" })
+		public Summary(String name, long calls, long errors, long rows, long roundTrips,
+			double p50Millis, double p99Millis, double maxMillis, double poolWaitMillis) {
+			this.name = name;
+			this.calls = calls;
+			this.errors = errors;
+			this.rows = rows;
+			this.roundTrips = roundTrips;
+			this.p50Millis = p50Millis;
+			this.p99Millis = p99Millis;
+			this.maxMillis = maxMillis;
+			this.poolWaitMillis = poolWaitMillis;
+		}
+
+		public String getName() { return name; }
+		public long getCalls() { return calls; }
+		public long getErrors() { return errors; }
+		public long getRows() { return rows; }
+		public long getRoundTrips() { return roundTrips; }
+		public double getP50Millis() { return p50Millis; }
+		public double getP99Millis() { return p99Millis; }
+		public double getMaxMillis() { return maxMillis; }
+		public double getPoolWaitMillis() { return poolWaitMillis; }
+	}//end Summary
+
+	//counters of one query shape or menu operation
+	private static class Counters{
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong rows = new AtomicLong();
+		final AtomicLong roundTrips = new AtomicLong();
+		final AtomicLong poolWaitNanos = new AtomicLong();
+		volatile String lastError;
+
+		Summary summary(String name) {
+			return new Summary(name, latency.getCount(), errors.get(), rows.get(), roundTrips.get(),
+				latency.getPercentile(50) / 1e6, latency.getPercentile(99) / 1e6, latency.getMax() / 1e6, poolWaitNanos.get() / 1e6);
+		}
+	}
+
+	/**
+	 * The calls of one menu operation on one thread.  Closing the scope
+	 * records the operation; scopes opened inside another are ignored.
+	 */
+	public final class Scope{
+		private final String _operation;
+		private final long _start = System.nanoTime();
+		private long _roundTrips, _rows, _poolWaitNanos;
+		private boolean _failed;
+
+		private Scope(String operation) {
+			this._operation = operation;
+		}
+
+		/**
+		 * Method to mark the operation as failed.
+		 */
+		public void fail() {
+			_failed = true;
+		}
+
+		public void close() {
+			if (_current.get() != this) return;
+			_current.remove();
+			Counters c = counters(_operations, _operation);
+			c.latency.record(System.nanoTime() - _start);
+			c.roundTrips.addAndGet(_roundTrips);
+			c.rows.addAndGet(_rows);
+			c.poolWaitNanos.addAndGet(_poolWaitNanos);
+			if (_failed) c.errors.incrementAndGet();
+		}
+	}//end Scope
+
+	private static final int SHAPE_WIDTH = 72;
+
+	private final ConcurrentHashMap<String, Counters> _shapes = new ConcurrentHashMap<String, Counters>();
+	private final ConcurrentHashMap<String, Counters> _operations = new ConcurrentHashMap<String, Counters>();
+	private final LatencyHistogram _poolWait = new LatencyHistogram();
+	private final ThreadLocal<Scope> _current = new ThreadLocal<Scope>();
+	private ObjectName _name = null;
+	private Timer _logTimer = null;
+
+	private static Counters counters(ConcurrentHashMap<String, Counters> map, String key) {
+		Counters c = map.get(key);
+		if (c == null) {
+			Counters created = new Counters();
+			c = map.putIfAbsent(key, created);
+			if (c == null) c = created;
+		}
+		return c;
+	}
+
+	/**
+	 * Method to open the scope of a menu operation on the calling thread.
+	 *
+	 * @param operation the operation name, e.g. "4.MakeAppointment"
+	 * @return the scope, to be closed in a finally block
+	 */
+	public Scope begin(String operation) {
+		Scope scope = new Scope(operation);
+		if (_current.get() == null) _current.set(scope);
+		return scope;
+	}
+
+	/**
+	 * Method to record one data-access call.
+	 *
+	 * @param sql the query shape
+	 * @param nanos the duration of the call
+	 * @param rows rows returned (or affected)
+	 * @param roundTrips messages exchanged with the server
+	 * @param error the error of a failed call, null on success
+	 */
+	public void record(String sql, long nanos, long rows, long roundTrips, Exception error) {
+		Counters c = counters(_shapes, sql);
+		c.latency.record(nanos);
+		c.rows.addAndGet(rows);
+		c.roundTrips.addAndGet(roundTrips);
+		if (error != null) {
+			c.errors.incrementAndGet();
+			c.lastError = error.getMessage();
+		}
+		Scope scope = _current.get();
+		if (scope != null) {
+			scope._rows += rows;
+			scope._roundTrips += roundTrips;
+			if (error != null) scope._failed = true;
+		}
+	}//end record
+
+	/**
+	 * Method to record the time spent waiting for a pooled connection.
+	 */
+	public void recordPoolWait(long nanos) {
+		_poolWait.record(nanos);
+		Scope scope = _current.get();
+		if (scope != null) scope._poolWaitNanos += nanos;
+	}
+
+	private static List<Summary> summaries(Map<String, Counters> map, boolean shapes) {
+		List<Summary> list = new ArrayList<Summary>();
+		for (Map.Entry<String, Counters> e : map.entrySet())
+			list.add(e.getValue().summary(shapes ? shape(e.getKey()) : e.getKey()));
+		return list;
+	}
+
+	//collapses the whitespace of a query and cuts it to the report width
+	private static String shape(String sql) {
+		String s = sql.replaceAll("\\s+", " ").trim();
+		return s.length() <= SHAPE_WIDTH ? s : s.substring(0, SHAPE_WIDTH - 3) + "...";
+	}
+
+	public List<Summary> getQueryShapes() {
+		List<Summary> list = summaries(_shapes, true);
+		Collections.sort(list, new Comparator<Summary>() {
+			public int compare(Summary a, Summary b) {
+				return Double.compare(b.getP99Millis() * b.getCalls(), a.getP99Millis() * a.getCalls());
+			}
+		});
+		return list;
+	}
+
+	public List<Summary> getMenuOperations() {
+		List<Summary> list = summaries(_operations, false);
+		Collections.sort(list, new Comparator<Summary>() {
+			public int compare(Summary a, Summary b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return list;
+	}
+
+	public long getQueryCalls() {
+		long calls = 0;
+		for (Counters c : _shapes.values()) calls += c.latency.getCount();
+		return calls;
+	}
+
+	public long getQueryErrors() {
+		long errors = 0;
+		for (Counters c : _shapes.values()) errors += c.errors.get();
+		return errors;
+	}
+
+	public long getRowsReturned() {
+		long rows = 0;
+		for (Counters c : _shapes.values()) rows += c.rows.get();
+		return rows;
+	}
+
+	/**
+	 * Returns the operation of the scope open on the calling thread, or null.
+	 */
+	public String currentOperation() {
+		Scope scope = _current.get();
+		return scope == null ? null : scope._operation;
+	}
+
+	public LatencyHistogram getPoolWait() {
+		return _poolWait;
+	}
+
+	public void reset() {
+		_shapes.clear();
+		_operations.clear();
+		_poolWait.reset();
+	}
+
+	/**
+	 * Method to write a report of all operations and query shapes, the
+	 * shapes ordered by their total tail latency.
+	 */
+	public void report(Writer out) throws IOException {
+		out.write(String.format("%-42s %8s %6s %9s %7s %9s %9s %9s %9s%n", "OPERATION", "calls", "errors", "rows", "trips", "p50 ms", "p99 ms", "max ms", "wait ms"));
+		for (Summary s : getMenuOperations())
+			out.write(String.format("%-42s %8d %6d %9d %7.1f %9.2f %9.2f %9.2f %9.2f%n", s.getName(), s.getCalls(), s.getErrors(), s.getRows(),
+				s.getCalls() == 0 ? 0.0 : (double) s.getRoundTrips() / s.getCalls(), s.getP50Millis(), s.getP99Millis(), s.getMaxMillis(), s.getPoolWaitMillis()));
+		out.write(String.format("%n%-" + SHAPE_WIDTH + "s %8s %6s %9s %9s %9s %9s%n", "QUERY SHAPE", "calls", "errors", "rows", "p50 ms", "p99 ms", "max ms"));
+		for (Summary s : getQueryShapes())
+			out.write(String.format("%-" + SHAPE_WIDTH + "s %8d %6d %9d %9.2f %9.2f %9.2f%n", s.getName(), s.getCalls(), s.getErrors(), s.getRows(),
+				s.getP50Millis(), s.getP99Millis(), s.getMaxMillis()));
+		for (Map.Entry<String, Counters> e : _shapes.entrySet())
+			if (e.getValue().lastError != null)
+				out.write("last error of " + shape(e.getKey()) + ": " + e.getValue().lastError + "\n");
+		out.write(String.format("%npool wait: %s%n", _poolWait));
+		out.flush();
+	}//end report
+
+	/**
+	 * Returns the report as a string.
+	 */
+	public String getReport() {
+		java.io.StringWriter out = new java.io.StringWriter();
+		try {
+			report(out);
+		} catch (IOException e) {
+			// cannot happen with a StringWriter
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Method to export the metrics over JMX and start the periodic log dump
+	 * when -Ddbproject.metrics.log is set.  Failures only disable the
+	 * respective surface.
+	 */
+	public void start() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("DBproject:type=QueryMetrics");
+			if (server.isRegistered(name))
+				name = new ObjectName("DBproject:type=QueryMetrics,id=" + Integer.toHexString(System.identityHashCode(this)));
+			final QueryMetrics self = this;
+			server.registerMBean(new StandardMBean(new Stats() {
+				public long getQueryCalls() { return self.getQueryCalls(); }
+				public long getQueryErrors() { return self.getQueryErrors(); }
+				public long getRowsReturned() { return self.getRowsReturned(); }
+				public long getPoolWaitMillis() { return self._poolWait.getTotal() / 1000000L; }
+				public List<Summary> getQueryShapes() { return self.getQueryShapes(); }
+				public List<Summary> getMenuOperations() { return self.getMenuOperations(); }
+				public String getReport() { return self.getReport(); }
+				public void reset() { self.reset(); }
+			}, Stats.class, true), name);
+			_name = name;
+		} catch (JMException e) {
+			System.err.println("WARNING: query metrics not exported over JMX: " + e.getMessage());
+		}
+
+		final String log = System.getProperty("dbproject.metrics.log");
+		if (log != null) {
+			long period = Math.max(1, Long.getLong("dbproject.metrics.interval", 60L)) * 1000L;
+			_logTimer = new Timer("query-metrics-log", true);
+			_logTimer.schedule(new TimerTask() {
+				public void run() {
+					try {
+						Writer out = new FileWriter(log, true);
+						try {
+							out.write("==== " + LocalDateTime.now() + "\n");
+							report(out);
+							out.write("\n");
+						} finally {
+							out.close();
+						}
+					} catch (IOException e) {
+						System.err.println("WARNING: cannot write query metrics to " + log + ": " + e.getMessage());
+					}
+				}
+			}, period, period);
+		}
+	}//end start
+
+	/**
+	 * Method to unregister the JMX bean and stop the log dump.
+	 */
+	public void stop() {
+		if (_logTimer != null) _logTimer.cancel();
+		if (_name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(_name);
+			} catch (JMException e) {
+				// already gone.
+			}
+			_name = null;
+		}
+	}
+}//end QueryMetrics
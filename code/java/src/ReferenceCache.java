@@ -0,0 +1,272 @@
+/*
+ * Reference data cache
+ * ====================
+ *
+ * Hospital, Department and Doctor change rarely but are consulted on every
+ * booking and every new doctor.  This cache holds them as int-keyed maps
+ * (doctor -> department, department -> hospital) in an immutable snapshot
+ * that is replaced as a whole, loaded at startup.  The snapshot is reloaded
+ * when the triggers of sql/notify.sql announce a change on the
+ * dbproject_reference channel, and in any case every
+ * -Ddbproject.reference.ttl ms (default 60000).  Reloads run on the
+ * listener and timer threads, so lookups never wait for the database.
+ *
+ * A lookup that misses may concern a row added since the last load, so
+ * callers treat a miss as "ask the database", never as "does not exist".
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class caches the hospital of every department and doctor.
+ *
+ */
+
+public class ReferenceCache implements NotificationListener.Subscriber{
+	public static final String CHANNEL = "dbproject_reference";
+
+	/*
+	 * open addressing map of non-negative int keys to int values.
+	 */
+	static final class IntIntMap{
+		private static final int FREE = -1;
+		private final int[] _keys;
+		private final int[] _values;
+		private final int _mask;
+		private int _size = 0;
+
+		IntIntMap(int expected) {
+			int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+			_keys = new int[capacity];
+			_values = new int[capacity];
+			_mask = capacity - 1;
+			Arrays.fill(_keys, FREE);
+		}
+
+		private int slot(int key) {
+			int i = (key * 0x9E3779B9) >>> 7 & _mask;
+			while (_keys[i] != FREE && _keys[i] != key) i = (i + 1) & _mask;
+			return i;
+		}
+
+		void put(int key, int value) {
+			int i = slot(key);
+			if (_keys[i] == FREE) ++_size;
+			_keys[i] = key;
+			_values[i] = value;
+		}
+
+		//the value of key, or -1 when absent
+		int get(int key) {
+			if (key < 0) return -1;
+			int i = slot(key);
+			return _keys[i] == FREE ? -1 : _values[i];
+		}
+
+		int size() {
+			return _size;
+		}
+	}//end IntIntMap
+
+	/*
+	 * one consistent load of the three tables, read in one REPEATABLE READ
+	 * transaction.
+	 */
+	private static final class Snapshot{
+		final IntIntMap hospitals;
+		final IntIntMap departments;
+		final IntIntMap doctors;
+
+		Snapshot(IntIntMap hospitals, IntIntMap departments, IntIntMap doctors) {
+			this.hospitals = hospitals;
+			this.departments = departments;
+			this.doctors = doctors;
+		}
+	}//end Snapshot
+
+	private final DBproject _esql;
+	private final long _ttlMillis;
+	private volatile Snapshot _snapshot = new Snapshot(new IntIntMap(0), new IntIntMap(0), new IntIntMap(0));
+	private final Object _loadLock = new Object();
+	//reloads asked for by notifications run here, off the listener thread
+	private final ExecutorService _worker = NotificationListener.worker("reference-cache-worker");
+	private final AtomicBoolean _reloadQueued = new AtomicBoolean();
+	private Timer _reloadTimer = null;
+	private long _loads = 0;
+	//bumped on every lookup, so kept off the object's lock
+	private final LongAdder _hits = new LongAdder(), _misses = new LongAdder();
+
+	public ReferenceCache(DBproject esql, long ttlMillis) {
+		this._esql = esql;
+		this._ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Method to load the tables and start reloading them every TTL.  When
+	 * the first load fails, lookups miss until a reload succeeds.
+	 */
+	public synchronized void start() {
+		if (_reloadTimer != null) return;
+		reload();
+		_reloadTimer = new Timer("reference-cache-reload", true);
+		_reloadTimer.schedule(new TimerTask() {
+			public void run() {
+				reload();
+			}
+		}, Math.max(1000, _ttlMillis), Math.max(1000, _ttlMillis));
+	}
+
+	public synchronized void stop() {
+		if (_reloadTimer != null) _reloadTimer.cancel();
+		_reloadTimer = null;
+	}
+
+	/**
+	 * Method to reload the three tables on a pooled connection.
+	 *
+	 * @throws java.sql.SQLException when the tables could not be read
+	 */
+	public void load() throws SQLException {
+		ConnectionPool.PooledConnection pc = _esql.getPool().borrow();
+		try {
+			load(pc.connection());
+		} finally {
+			_esql.getPool().release(pc);
+		}
+	}
+
+	private void load(Connection conn) throws SQLException {
+		//loads are serialized, so the one started after the last notification is stored last
+		synchronized (_loadLock) {
+			boolean autoCommit = conn.getAutoCommit();
+			conn.setAutoCommit(false);
+			Statement stmt = conn.createStatement();
+			try {
+				//the three reads see one snapshot of the database
+				stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY;");
+				IntIntMap hospitals = read(stmt, "SELECT hospital_ID, hospital_ID FROM Hospital;");
+				IntIntMap departments = read(stmt, "SELECT dept_ID, hid FROM Department;");
+				IntIntMap doctors = read(stmt, "SELECT doctor_ID, did FROM Doctor;");
+				conn.commit();
+				_snapshot = new Snapshot(hospitals, departments, doctors);
+			} catch (SQLException e) {
+				try {
+					conn.rollback();
+				} catch (SQLException ignored) {
+					// the connection is broken; the caller gets the first error.
+				}
+				throw e;
+			} finally {
+				stmt.close();
+				conn.setAutoCommit(autoCommit);
+			}
+			synchronized (this) {
+				++_loads;
+			}
+		}
+	}//end load
+
+	private static IntIntMap read(Statement stmt, String query) throws SQLException {
+		ResultSet rs = stmt.executeQuery(query);
+		int[] keys = new int[64], values = new int[64];
+		int n = 0;
+		while (rs.next()) {
+			if (n == keys.length) {
+				keys = Arrays.copyOf(keys, n * 2);
+				values = Arrays.copyOf(values, n * 2);
+			}
+			keys[n] = rs.getInt(1);
+			values[n++] = rs.getInt(2);
+		}
+		rs.close();
+		IntIntMap map = new IntIntMap(n);
+		for (int i = 0; i < n; ++i)
+			map.put(keys[i], values[i]);
+		return map;
+	}
+
+	//a failed reload keeps the previous snapshot
+	private void reload() {
+		try {
+			load();
+		} catch (SQLException e) {
+			System.err.println("WARNING: reference cache reload failed: " + e.getMessage());
+		}
+	}
+
+	private int count(int value) {
+		if (value < 0) _misses.increment(); else _hits.increment();
+		return value;
+	}
+
+	/**
+	 * Method to look up the hospital of a doctor's department.
+	 *
+	 * @return the hospital ID, or -1 when the doctor is not cached
+	 */
+	public int hospitalOfDoctor(int doctor) {
+		Snapshot s = _snapshot;
+		int department = s.doctors.get(doctor);
+		return count(department < 0 ? -1 : s.departments.get(department));
+	}
+
+	/**
+	 * Method to look up the hospital of a department.
+	 *
+	 * @return the hospital ID, or -1 when the department is not cached
+	 */
+	public int hospitalOfDepartment(int department) {
+		return count(_snapshot.departments.get(department));
+	}
+
+	public boolean hasDepartment(int department) {
+		return hospitalOfDepartment(department) >= 0;
+	}
+
+	public boolean hasHospital(int hospital) {
+		return count(_snapshot.hospitals.get(hospital)) >= 0;
+	}
+
+	//queues a reload unless one is queued already: a burst of changes needs one
+	private void reloadLater() {
+		if (!_reloadQueued.compareAndSet(false, true)) return;
+		_worker.execute(new Runnable() {
+			public void run() {
+				//changes notified from here on are read by a later reload
+				_reloadQueued.set(false);
+				reload();
+			}
+		});
+	}
+
+	/**
+	 * Reloads on connect, as changes may have been missed.
+	 */
+	public void connected(Connection conn) throws SQLException {
+		reloadLater();
+	}
+
+	public void disconnected() {
+		// the TTL keeps the snapshot from getting too old.
+	}
+
+	public void received(String payload) {
+		reloadLater();
+	}
+
+	public synchronized String toString() {
+		Snapshot s = _snapshot;
+		return "Reference cache: " + s.hospitals.size() + " hospitals, " + s.departments.size() + " departments, " + s.doctors.size()
+			+ " doctors, loaded " + _loads + " times, " + _hits.sum() + " hits, " + _misses.sum() + " misses";
+	}
+}//end ReferenceCache
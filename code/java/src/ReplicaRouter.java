@@ -0,0 +1,131 @@
+/*
+ * Read replica routing
+ * ====================
+ *
+ * Report queries can run on a second, read-only database (a streaming
+ * replica, or any other Postgres holding the same data) so that long
+ * aggregates do not hold connections and locks the bookings need.  The
+ * replica is checked every -Ddbproject.replica.checkInterval ms (default
+ * 1000); while it is unreachable or its replay lags the primary by more than
+ * -Ddbproject.replica.maxLag ms (default 5000), reports run on the primary.
+ * A server that is not in recovery counts as having no lag.
+ *
+ */
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class decides per report query whether the replica may serve it.
+ *
+ */
+
+public class ReplicaRouter{
+	//replay lag in ms; nothing to replay means no lag even when the primary has been idle for long
+	private static final String LAG_QUERY =
+		"SELECT CASE WHEN NOT pg_is_in_recovery() THEN 0 "
+		+ "WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 "
+		+ "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END;";
+
+	private final ConnectionPool _pool;
+	private final long _maxLagMillis;
+	private final Timer _checkTimer;
+	private volatile boolean _usable = false;
+	private volatile long _lagMillis = -1;
+	private volatile String _problem = "not checked yet";
+	private final AtomicLong _routed = new AtomicLong();
+	private final AtomicLong _fallbacks = new AtomicLong();
+
+	public ReplicaRouter(ConnectionPool pool, long maxLagMillis, long checkMillis) {
+		this._pool = pool;
+		this._maxLagMillis = maxLagMillis;
+		check();
+		_checkTimer = new Timer("replica-lag-check", true);
+		_checkTimer.schedule(new TimerTask() {
+			public void run() {
+				check();
+			}
+		}, checkMillis, checkMillis);
+	}
+
+	/**
+	 * Method to pick the pool a report query runs on.
+	 *
+	 * @return the replica pool, or null when the query should run on the primary
+	 */
+	public ConnectionPool route() {
+		if (_usable) {
+			_routed.incrementAndGet();
+			return _pool;
+		}
+		_fallbacks.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Method to stop routing to the replica after a query on it failed
+	 * because of the connection; the next check decides whether it is back.
+	 */
+	public void failed(SQLException e) {
+		_usable = false;
+		_problem = e.getMessage();
+		_fallbacks.incrementAndGet();
+	}
+
+	/*
+	 * measures the replay lag on a pooled replica connection.
+	 */
+	void check() {
+		boolean wasUsable = _usable;
+		try {
+			ConnectionPool.PooledConnection pc = _pool.borrow();
+			try {
+				Statement stmt = pc.connection().createStatement();
+				try {
+					ResultSet rs = stmt.executeQuery(LAG_QUERY);
+					rs.next();
+					_lagMillis = (long) rs.getDouble(1);
+				} finally {
+					stmt.close();
+				}
+			} finally {
+				_pool.release(pc);
+			}
+			_usable = _lagMillis <= _maxLagMillis;
+			_problem = _usable ? null : "lagging " + _lagMillis + " ms";
+		} catch (SQLException e) {
+			_usable = false;
+			_lagMillis = -1;
+			_problem = e.getMessage();
+		}
+		if (wasUsable && !_usable)
+			System.err.println("WARNING: reports moved to the primary, replica " + _problem);
+	}//end check
+
+	public boolean isUsable() {
+		return _usable;
+	}
+
+	public long getLagMillis() {
+		return _lagMillis;
+	}
+
+	public ConnectionPool getPool() {
+		return _pool;
+	}
+
+	public void close() {
+		_checkTimer.cancel();
+		_pool.close();
+	}
+
+	public String toString() {
+		return "Replica: " + (_usable ? "in use" : "not used (" + _problem + ")") + ", lag " + _lagMillis + " ms (max " + _maxLagMillis + "), "
+			+ _routed.get() + " reports routed, " + _fallbacks.get() + " on the primary\n"
+			+ "Replica " + _pool;
+	}
+}//end ReplicaRouter
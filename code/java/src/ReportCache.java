@@ -0,0 +1,291 @@
+/*
+ * Report cache
+ * ============
+ *
+ * Keeps the printed output of option 5 (a doctor's active and available
+ * appointments in a date range) and option 6 (a department's available
+ * appointments on a date), or of the first page of their paged listings,
+ * in a size-bounded LRU map.  The triggers of
+ * sql/notify.sql send "<date>|<doctor>|<department>" on the
+ * dbproject_appointments channel for every appointment whose status, date or
+ * doctor link changes, and "*" for changes that may affect anything; each
+ * notification drops exactly the entries that could contain that
+ * appointment, in every process listening.
+ *
+ * The cache is bypassed while the listener is disconnected or the triggers
+ * are not installed, since changes would go unnoticed.  A result loaded
+ * while an invalidation arrived is not stored, so a stale result is never
+ * cached.  Size: -Ddbproject.cache.size entries (default 1024, 0 disables).
+ *
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class caches report output and drops it on change notifications.
+ *
+ */
+
+public class ReportCache implements NotificationListener.Subscriber{
+	public static final String CHANNEL = "dbproject_appointments";
+	//results longer than this are printed but not kept
+	private static final int MAX_ENTRY_CHARS = 1 << 16;
+
+	/**
+	 * Runs the report query, printing to the given writer.
+	 */
+	public interface Loader{
+		int load(Writer out) throws SQLException;
+	}
+
+	/**
+	 * Runs the query of one page, printing to the given writer.
+	 */
+	public interface PageLoader{
+		Operations.Page load(Writer out) throws SQLException;
+	}
+
+	//either loader, returning what print or printPage returns
+	private interface Load{
+		Object load(Writer out) throws SQLException;
+	}
+
+	/**
+	 * Cache key: a department and a day, or a doctor and a day range, and
+	 * the page size for the first page of a paged listing.
+	 */
+	public static final class Key{
+		private final String _department;
+		private final int _doctor;
+		private final long _from;
+		private final long _to;
+		//0 for the whole report
+		private final int _pageSize;
+
+		private Key(String department, int doctor, long from, long to, int pageSize) {
+			this._department = department;
+			this._doctor = doctor;
+			this._from = from;
+			this._to = to;
+			this._pageSize = pageSize;
+		}
+
+		/**
+		 * Method to key the first page of pageSize rows of this report.
+		 */
+		public Key firstPage(int pageSize) {
+			return new Key(_department, _doctor, _from, _to, pageSize);
+		}
+
+		//whether a change to an appointment on this day, of this doctor in this department, can alter the entry
+		boolean affectedBy(long day, int doctor, String department) {
+			if (_department != null) return day == _from && _department.equals(department);
+			return doctor == _doctor && _from <= day && day <= _to;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return _doctor == k._doctor && _from == k._from && _to == k._to && _pageSize == k._pageSize
+				&& (_department == null ? k._department == null : _department.equals(k._department));
+		}
+
+		public int hashCode() {
+			return 31 * (31 * (31 * (31 * _doctor + (int) _from) + (int) _to) + _pageSize) + (_department == null ? 0 : _department.hashCode());
+		}
+	}//end Key
+
+	public static Key department(String name, LocalDate date) {
+		return new Key(name, -1, date.toEpochDay(), date.toEpochDay(), 0);
+	}
+
+	public static Key doctor(int doctor, LocalDate from, LocalDate to) {
+		return new Key(null, doctor, from.toEpochDay(), to.toEpochDay(), 0);
+	}
+
+	private static final class Result{
+		final String text;
+		//the row count, or the Page, the loader returned
+		final Object value;
+
+		Result(String text, Object value) {
+			this.text = text;
+			this.value = value;
+		}
+	}
+
+	private final LinkedHashMap<Key, Result> _entries;
+	private boolean _enabled = false;
+	private long _generation = 0;
+	private long _hits = 0, _misses = 0, _invalidations = 0;
+
+	public ReportCache(final int maxEntries) {
+		this._entries = new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Method to print a report from the cache, or run it and keep its output.
+	 *
+	 * @param key the report and its parameters
+	 * @param out where the report is printed
+	 * @param loader runs the report query when the entry is missing
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public int print(Key key, Writer out, final Loader loader) throws SQLException {
+		return (Integer) cached(key, out, new Load() {
+			public Object load(Writer out) throws SQLException {
+				return loader.load(out);
+			}
+		});
+	}
+
+	/**
+	 * Method to print the first page of a listing from the cache, or run it
+	 * and keep its output.
+	 *
+	 * @param key the report and its parameters, see Key.firstPage
+	 * @param out where the page is printed
+	 * @param loader runs the page query when the entry is missing
+	 * @return where the page ended
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public Operations.Page printPage(Key key, Writer out, final PageLoader loader) throws SQLException {
+		return (Operations.Page) cached(key, out, new Load() {
+			public Object load(Writer out) throws SQLException {
+				return loader.load(out);
+			}
+		});
+	}
+
+	private Object cached(Key key, Writer out, Load loader) throws SQLException {
+		Result entry;
+		long generation;
+		synchronized (this) {
+			entry = _enabled ? _entries.get(key) : null;
+			if (entry != null) ++_hits; else ++_misses;
+			generation = _generation;
+		}
+		try {
+			if (entry != null) {
+				out.write(entry.text);
+				out.flush();
+				return entry.value;
+			}
+			//the result streams through to the writer and is kept if it is small enough
+			Capture capture = new Capture(out);
+			Object value = loader.load(capture);
+			synchronized (this) {
+				//drop results that an invalidation may have overtaken
+				if (_enabled && generation == _generation && capture._text != null)
+					_entries.put(key, new Result(capture._text.toString(), value));
+			}
+			return value;
+		} catch (IOException e) {
+			throw new SQLException("Failed to write result: " + e.getMessage(), e);
+		}
+	}//end cached
+
+	/*
+	 * writer passing everything on while keeping a copy of up to
+	 * MAX_ENTRY_CHARS characters.
+	 */
+	private static final class Capture extends Writer{
+		private final Writer _out;
+		private StringBuilder _text = new StringBuilder();
+
+		Capture(Writer out) {
+			this._out = out;
+		}
+
+		public void write(char[] buf, int off, int len) throws IOException {
+			_out.write(buf, off, len);
+			if (_text != null) {
+				if (_text.length() + len > MAX_ENTRY_CHARS) _text = null;
+				else _text.append(buf, off, len);
+			}
+		}
+
+		public void flush() throws IOException {
+			_out.flush();
+		}
+
+		public void close() throws IOException {
+			_out.close();
+		}
+	}//end Capture
+
+	//whether results are kept; a result loaded while disabled is never stored
+	public synchronized boolean isEnabled() {
+		return _enabled;
+	}
+
+	public synchronized void clear() {
+		_entries.clear();
+		++_generation;
+	}
+
+	/**
+	 * Enables the cache when the triggers of sql/notify.sql are installed.
+	 */
+	public void connected(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM pg_trigger WHERE tgname IN ('appointment_notify', 'has_appointment_notify');");
+		rs.next();
+		boolean installed = rs.getInt(1) >= 2;
+		stmt.close();
+		synchronized (this) {
+			clear();
+			_enabled = installed;
+		}
+		if (!installed)
+			System.err.println("WARNING: report cache disabled, run sql/notify.sql to install its triggers");
+	}
+
+	public synchronized void disconnected() {
+		_enabled = false;
+		clear();
+	}
+
+	/**
+	 * Drops the entries a change notification may affect.
+	 */
+	public synchronized void received(String payload) {
+		++_invalidations;
+		String[] fields = payload.split("\\|", 3);
+		if (fields.length < 3) {
+			clear();
+			return;
+		}
+		long day;
+		int doctor;
+		try {
+			day = LocalDate.parse(fields[0]).toEpochDay();
+			doctor = Integer.parseInt(fields[1]);
+		} catch (RuntimeException e) {
+			clear();
+			return;
+		}
+		for (Iterator<Key> it = _entries.keySet().iterator(); it.hasNext(); )
+			if (it.next().affectedBy(day, doctor, fields[2])) it.remove();
+		++_generation;
+	}//end notify
+
+	public synchronized String toString() {
+		return "Report cache: " + (_enabled ? "enabled" : "disabled") + ", " + _entries.size() + " entries, "
+			+ _hits + " hits, " + _misses + " misses, " + _invalidations + " invalidations";
+	}
+}//end ReportCache
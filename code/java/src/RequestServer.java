@@ -0,0 +1,408 @@
+/*
+ * Headless request server
+ * =======================
+ *
+ * Serves the eight menu operations over HTTP on the loopback interface so
+ * that several front desks can share one back-end process.  Every request
+ * runs on its own (virtual, when the JVM supports it) thread and borrows a
+ * pooled connection only while it talks to the database.
+ *
+ *   POST /doctor                      name, specialty, did
+ *   POST /patient                     name, gender, age, address, appointments
+ *   POST /appointment                 date (MM/DD/YYYY), timeslot, status
+ *   POST /book                        name, gender, age, address, doctor, appointment, [wait]
+ *   GET  /reports/doctor-appointments doctor, start, end
+ *   GET  /reports/available           department, date
+ *   GET  /reports/status-counts       [archive]
+ *   GET  /reports/patients-per-doctor status, [archive]
+ *   GET  /reports/earliest-available  department or specialty, [from], [days]
+ *   GET  /reports/capacity            [from], [to], [level] (see CapacityReport.java)
+ *   GET  /search                      q, [kind] (doctor or department), [limit]
+ *   GET  /stats                       query metrics (see QueryMetrics.java)
+ *
+ * The two listings also take pageSize, and then return one page followed by
+ * "next<TAB><key>" when more rows follow; pass after=<key> for that page.
+ * archive=1 counts the appointments moved to the archive (see Archiver.java).
+ * With a booking journal (see BookingPipeline.java), wait=0 answers a booking
+ * as soon as it is journaled, with its sequence number instead of its status.
+ *
+ * Parameters may be sent in the query string or as a form-encoded body.
+ * The operations that change data only take POST, so a link prefetch or a
+ * crawler cannot add or book anything; other methods get a 405.
+ * Results are returned as tab separated text, the same as on the console,
+ * and are streamed to the client as the rows arrive from the database.
+ *
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class defines the HTTP front end of DBproject.  Start it with
+ * "java DBproject <dbname> <port> <user> --serve <http port>".
+ *
+ */
+
+public class RequestServer{
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("MM/dd/yyyy");
+
+	private final DBproject _esql;
+	private final HttpServer _server;
+	private final ExecutorService _executor;
+	private final CountDownLatch _stopped = new CountDownLatch(1);
+
+	/*
+	 * one menu operation; prints its result to out and returns normally or
+	 * throws for bad input / failed queries.
+	 */
+	private interface Endpoint{
+		void handle(Map<String, String> params, Writer out) throws Exception;
+	}
+
+	public RequestServer(final DBproject esql, int port) throws IOException {
+		this._esql = esql;
+		this._executor = newRequestExecutor();
+		String host = System.getProperty("dbproject.server.host");
+		InetAddress address = host == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host);
+		this._server = HttpServer.create(new InetSocketAddress(address, port), Integer.getInteger("dbproject.server.backlog", 1024));
+		this._server.setExecutor(_executor);
+
+		route("/doctor", "POST", new Endpoint() {
+			public void handle(Map<String, String> p, Writer out) throws Exception {
+				println(out, "doctor_id");
+				println(out, Operations.addDoctor(esql, required(p, "name"), required(p, "specialty"), intParam(p, "did")));
+			}
+		});
+		route("/patient", "POST", new Endpoint() {
+			public void handle(Map<String, String> p, Writer out) throws Exception {
+				println(out, "patient_id");
+				println(out, Operations.addPatient(esql, required(p, "name"), required(p, "gender").toUpperCase(),
+					intParam(p, "age"), required(p, "address"), intParam(p, "appointments")));
+			}
+		});
+		route("/appointment", "POST", new Endpoint() {
+			public void handle(Map<String, String> p, Writer out) throws Exception {
+				println(out, "appnt_id");
+				println(out, Operations.addAppointment(esql, dateParam(p, "date"), required(p, "timeslot"), required(p, "status").toUpperCase()));
+			}
+		});
+		route("/book", "POST", new Endpoint() {
+			public void handle(Map<String, String> p, Writer out) throws Exception {
+				BookingPipeline pipeline = esql.getBookingPipeline();
+				if (pipeline == null) {
+					println(out, "status");
+					println(out, Operations.makeAppointment(esql, required(p, "name"), required(p, "gender").toUpperCase(),
+						intParam(p, "age"), required(p, "address"), intParam(p, "doctor"), intParam(p, "appointment")));
+					return;
+				}
+				BookingPipeline.Receipt receipt = pipeline.submit(intParam(p, "doctor"), intParam(p, "appointment"), required(p, "name"),
+					required(p, "gender").toUpperCase(), intParam(p, "age"), required(p, "address"));
+				if ("0".equals(p.get("wait"))) {
+					println(out, "accepted");
+					println(out, receipt.seq);
+				}
+				else {
+					println(out, "status");
+					println(out, AppointmentService.join(receipt.outcome));
+				}
+			}
+		});
+		route("/reports/doctor-appointments", "GET, POST", new Endpoint() {
+			public void handle(Map<String, String> p, Writer out) throws Exception {
+				LocalDate start = dateParam(p, "start");
+				LocalDate end = dateParam(p, "end");
+				if (end.compareTo(start) < 0) {
+					throw new IllegalArgumentException("Ending date can't be less than starting date");
+				}
+				if (p.containsKey("pageSize")) {
+					printPage(out, Operations.listAppointmentsOfDoctorPage(esql, out, intParam(p, "doctor"), start, end, after(p), intParam(p, "pageSize")));
+				}
+				else {
+					Operations.listAppointmentsOfDoctor(esql, out, intParam(p, "doctor"), start, end);
+				}
+			}
+		});
+		route("/reports/available", "GET, POST", new Endpoint() {
+			public void handle(Map<String, String> p, Writer out) throws Exception {
+				if (p.containsKey("pageSize")) {
+					printPage(out, Operations.listAvailableAppointmentsOfDepartmentPage(esql, out, required(p, "department"), dateParam(p, "date"), after(p), intParam(p, "pageSize")));
+				}
+				else {
+					Operations.listAvailableAppointmentsOfDepartment(esql, out, required(p, "department"), dateParam(p, "date"));
+				}
+			}
+		});
+		route("/reports/status-counts", "GET, POST", new Endpoint() {
+			public void handle(Map<String, String> p, Writer out) throws Exception {
+				Operations.listStatusNumberOfAppointmentsPerDoctor(esql, out, archive(p));
+			}
+		});
+		route("/reports/patients-per-doctor", "GET, POST", new Endpoint() {
+			public void handle(Map<String, String> p, Writer out) throws Exception {
+				Operations.findPatientsCountWithStatus(esql, out, required(p, "status").toUpperCase(), archive(p));
+			}
+		});
+		route("/reports/earliest-available", "GET, POST", new Endpoint() {
+			public void handle(Map<String, String> p, Writer out) throws Exception {
+				LocalDate from = p.containsKey("from") ? dateParam(p, "from") : LocalDate.now();
+				int days = p.containsKey("days") ? intParam(p, "days") : 30;
+				Operations.findEarliestAvailable(esql, out, p.get("department"), p.get("specialty"), from, days);
+			}
+		});
+		route("/reports/capacity", "GET, POST", new Endpoint() {
+			public void handle(Map<String, String> p, Writer out) throws Exception {
+				LocalDate from = p.containsKey("from") ? dateParam(p, "from") : LocalDate.of(1, 1, 1);
+				LocalDate to = p.containsKey("to") ? dateParam(p, "to") : LocalDate.of(9999, 12, 31);
+				String level = p.containsKey("level") ? p.get("level").toLowerCase() : "department";
+				new CapacityReport(esql).print(out, from, to, level);
+			}
+		});
+		route("/search", "GET, POST", new Endpoint() {
+			public void handle(Map<String, String> p, Writer out) throws Exception {
+				String kind = p.containsKey("kind") ? p.get("kind").toLowerCase() : "doctor";
+				int limit = p.containsKey("limit") ? intParam(p, "limit") : DBproject.MATCHES;
+				List<NameIndex.Match> matches;
+				if (kind.equals("doctor")) matches = esql.getNameIndex().searchDoctors(required(p, "q"), limit);
+				else if (kind.equals("department")) matches = esql.getNameIndex().searchDepartments(required(p, "q"), limit);
+				else throw new SQLException("Kind must be doctor or department");
+				println(out, "id\tname\tdetail\ttypos\t");
+				for (NameIndex.Match m : matches)
+					println(out, m.id + "\t" + m.name + "\t" + m.detail + "\t" + m.distance + "\t");
+			}
+		});
+		route("/stats", "GET, POST", new Endpoint() {
+			public void handle(Map<String, String> p, Writer out) throws Exception {
+				esql.getMetrics().report(out);
+				println(out, esql.getPool());
+				println(out, esql.getReportCache());
+				println(out, esql.getPatientIdentity());
+				println(out, esql.getReferenceCache());
+				println(out, esql.getAvailability());
+				println(out, esql.getNameIndex());
+				if (esql.getReplica() != null) println(out, esql.getReplica());
+				if (esql.getBookingPipeline() != null) println(out, esql.getBookingPipeline());
+			}
+		});
+	}
+
+	/**
+	 * Method to create the executor requests run on: one virtual thread per
+	 * request on JVMs that have them (Java 21+), otherwise a cached pool of
+	 * platform threads.
+	 *
+	 * @return the executor for request handling
+	 */
+	static ExecutorService newRequestExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	/**
+	 * Method to start serving requests and block until stop() is called.
+	 */
+	public void serve() throws InterruptedException {
+		_server.start();
+		System.out.println("Serving requests on http://" + _server.getAddress().getHostString() + ":" + _server.getAddress().getPort() + "/");
+		_stopped.await();
+	}
+
+	/**
+	 * Method to stop accepting requests and let requests in flight finish.
+	 */
+	public void stop() {
+		_server.stop(1);
+		_executor.shutdown();
+		_stopped.countDown();
+	}
+
+	/*
+	 * serves path with the endpoint for the given methods, e.g. "GET, POST"
+	 * as sent in the Allow header of a 405.
+	 */
+	private void route(String path, final String methods, final Endpoint endpoint) {
+		final List<String> allowed = Arrays.asList(methods.split(", "));
+		_server.createContext(path, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				ResponseStream body = new ResponseStream(exchange);
+				if (!allowed.contains(exchange.getRequestMethod())) {
+					exchange.getResponseHeaders().set("Allow", methods);
+					body.sendError(405, "ERROR: " + exchange.getRequestMethod() + " not allowed, use " + methods);
+					return;
+				}
+				Writer out = new BufferedWriter(new OutputStreamWriter(body, "UTF-8"), 1 << 16);
+				int code = 200;
+				String error = null;
+				try {
+					endpoint.handle(params(exchange), out);
+				} catch (NumberFormatException e) {
+					code = 400;
+					error = "ERROR: Input must be INTEGER";
+				} catch (DateTimeParseException e) {
+					code = 400;
+					error = "ERROR: Invalid date " + e.getParsedString() + ", expected MM/DD/YYYY";
+				} catch (IllegalArgumentException e) {
+					code = 400;
+					error = "ERROR: " + e.getMessage();
+				} catch (SQLException e) {
+					//input validation errors carry no SQL state
+					code = e.getSQLState() == null ? 400 : 500;
+					error = "ERROR: " + e.getMessage();
+				} catch (Exception e) {
+					code = 500;
+					error = "ERROR: " + e;
+				}
+				if (error != null && !body.started()) {
+					//nothing sent yet: drop the partial output and answer with the error
+					body.sendError(code, error);
+					return;
+				}
+				if (error != null) {
+					println(out, error);
+				}
+				out.close();
+			}
+		});
+	}//end route
+
+	private static void println(Writer out, Object value) throws IOException {
+		out.write(String.valueOf(value));
+		out.write('\n');
+	}
+
+	/*
+	 * response body that sends a 200 with chunked encoding on the first write,
+	 * so large results stream to the client instead of being buffered whole.
+	 */
+	private static class ResponseStream extends OutputStream{
+		private static final String CONTENT_TYPE = "text/tab-separated-values; charset=utf-8";
+		private final HttpExchange _exchange;
+		private OutputStream _body = null;
+
+		ResponseStream(HttpExchange exchange) {
+			this._exchange = exchange;
+		}
+
+		boolean started() {
+			return _body != null;
+		}
+
+		private OutputStream body() throws IOException {
+			if (_body == null) {
+				_exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+				_exchange.sendResponseHeaders(200, 0);
+				_body = _exchange.getResponseBody();
+			}
+			return _body;
+		}
+
+		public void write(int b) throws IOException {
+			body().write(b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			body().write(b, off, len);
+		}
+
+		public void flush() throws IOException {
+			if (_body != null) _body.flush();
+		}
+
+		public void close() throws IOException {
+			body().close();
+		}
+
+		void sendError(int code, String message) throws IOException {
+			byte[] bytes = (message + "\n").getBytes("UTF-8");
+			_exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			_exchange.sendResponseHeaders(code, bytes.length);
+			_body = _exchange.getResponseBody();
+			_body.write(bytes);
+			_body.close();
+		}
+	}//end ResponseStream
+
+	/*
+	 * collects the parameters of the query string and of a form-encoded body.
+	 */
+	private static Map<String, String> params(HttpExchange exchange) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		parseInto(params, exchange.getRequestURI().getRawQuery());
+		InputStream in = exchange.getRequestBody();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = in.read(buf)) > 0)
+			body.write(buf, 0, n);
+		in.close();
+		parseInto(params, body.toString("UTF-8"));
+		return params;
+	}
+
+	private static void parseInto(Map<String, String> params, String encoded) throws UnsupportedEncodingException {
+		if (encoded == null || encoded.isEmpty()) return;
+		for (String pair : encoded.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq < 0) continue;
+			params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+	}
+
+	private static String required(Map<String, String> params, String name) {
+		String value = params.get(name);
+		if (value == null) {
+			throw new IllegalArgumentException("Missing parameter " + name);
+		}
+		return value;
+	}
+
+	private static int intParam(Map<String, String> params, String name) {
+		return Integer.parseInt(required(params, name).trim());
+	}
+
+	//the page a paged listing continues after, from the after=<date>,<id> parameter
+	private static Operations.Page after(Map<String, String> params) throws SQLException {
+		String key = params.get("after");
+		return key == null ? null : Operations.Page.parse(key);
+	}
+
+	//ends a page with the after= value of the next one, when there is one
+	private static void printPage(Writer out, Operations.Page page) throws IOException {
+		if (page.more) println(out, "next\t" + page);
+	}
+
+	//archive=1 adds the archived appointments to options 7 and 8; the default is -Ddbproject.includeArchive
+	private static boolean archive(Map<String, String> params) {
+		String value = params.get("archive");
+		return value == null ? Operations.INCLUDE_ARCHIVE : value.equals("1") || value.equalsIgnoreCase("true");
+	}
+
+	private static LocalDate dateParam(Map<String, String> params, String name) {
+		return LocalDate.parse(required(params, name).trim(), DATE_FORMAT);
+	}
+}//end RequestServer
@@ -0,0 +1,136 @@
+/*
+ * SQL script runner
+ * =================
+ *
+ * Runs the files in code/sql/ over a JDBC connection, one statement at a
+ * time, so Java tools can apply them without psql.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class splits a SQL script into statements and executes them.  The
+ * splitter understands -- comments, quoted strings and $tag$ dollar quoting
+ * (used by function bodies), which is all the scripts in this project need.
+ *
+ */
+
+public class SqlScript{
+	private static final Pattern INDEX_NAME = Pattern.compile("(?i)CREATE\\s+(?:UNIQUE\\s+)?INDEX\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?(\\w+)");
+
+	private SqlScript() {
+	}
+
+	/**
+	 * Method to execute every statement of a script file in order.
+	 *
+	 * @param esql the database to run the script against
+	 * @param script the SQL file
+	 * @throws java.sql.SQLException when a statement failed
+	 * @throws java.io.IOException when the file could not be read
+	 */
+	public static void run(DBproject esql, File script) throws SQLException, IOException {
+		List<String> statements = split(read(script));
+		//execute() rather than executeUpdate(): scripts also SELECT, e.g. setval() in sequences.sql
+		ConnectionPool.PooledConnection pc = esql.getPool().borrow();
+		try {
+			Statement stmt = pc.connection().createStatement();
+			try {
+				for (String sql : statements)
+					stmt.execute(sql);
+			} finally {
+				stmt.close();
+			}
+		} finally {
+			esql.getPool().release(pc);
+		}
+	}
+
+	public static String read(File script) throws IOException {
+		return new String(Files.readAllBytes(script.toPath()), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Method to return the names of the indexes a script creates.
+	 */
+	public static List<String> indexNames(String script) {
+		List<String> names = new ArrayList<String>();
+		for (String sql : split(script)) {
+			Matcher m = INDEX_NAME.matcher(sql);
+			if (m.lookingAt()) names.add(m.group(1));
+		}
+		return names;
+	}
+
+	/**
+	 * Method to split a script into statements without their trailing
+	 * semicolons.  Comment-only and empty statements are dropped.
+	 *
+	 * @param script the text of the script
+	 * @return the statements in order
+	 */
+	public static List<String> split(String script) {
+		List<String> statements = new ArrayList<String>();
+		StringBuilder current = new StringBuilder();
+		boolean hasCode = false;
+		int i = 0;
+		int n = script.length();
+		while (i < n) {
+			char c = script.charAt(i);
+			if (c == '-' && i + 1 < n && script.charAt(i + 1) == '-') {
+				//comment to end of line
+				while (i < n && script.charAt(i) != '\n')
+					i++;
+				continue;
+			}
+			if (c == '\'' || c == '"') {
+				int end = i + 1;
+				while (end < n) {
+					if (script.charAt(end) == c) {
+						if (end + 1 < n && script.charAt(end + 1) == c) end += 2;
+						else break;
+					}
+					else end++;
+				}
+				current.append(script, i, Math.min(n, end + 1));
+				hasCode = true;
+				i = end + 1;
+				continue;
+			}
+			if (c == '$') {
+				int tagEnd = script.indexOf('$', i + 1);
+				if (tagEnd > 0 && script.substring(i + 1, tagEnd).matches("\\w*")) {
+					String tag = script.substring(i, tagEnd + 1);
+					int close = script.indexOf(tag, tagEnd + 1);
+					int end = close < 0 ? n : close + tag.length();
+					current.append(script, i, end);
+					hasCode = true;
+					i = end;
+					continue;
+				}
+			}
+			if (c == ';') {
+				if (hasCode) statements.add(current.toString().trim());
+				current.setLength(0);
+				hasCode = false;
+				i++;
+				continue;
+			}
+			current.append(c);
+			if (!Character.isWhitespace(c)) hasCode = true;
+			i++;
+		}//end while
+		if (hasCode) statements.add(current.toString().trim());
+		return statements;
+	}//end split
+}//end SqlScript
@@ -0,0 +1,118 @@
+/*
+ * Per-connection PreparedStatement cache
+ * ======================================
+ *
+ * Every query shape issued by the menu operations is prepared once per
+ * connection and reused with fresh parameters, so the server parses and
+ * plans it only once.  At most -Ddbproject.statements.max statements
+ * (default 256) are kept per connection; the least recently used one is
+ * closed to make room, so SQL built on the fly cannot pile up prepared
+ * statements on the server for as long as a pooled connection lives.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.postgresql.PGStatement;
+
+/**
+ * This class keeps the prepared statements of one physical connection keyed
+ * by their SQL text.  Statements are switched to server-side prepare on the
+ * first execution (the driver default is the fifth), so a cache hit also
+ * reuses the server's plan.
+ *
+ */
+
+public class StatementCache{
+	static final int MAX_STATEMENTS = Math.max(1, Integer.getInteger("dbproject.statements.max", 256));
+
+	private final Connection _connection;
+	//in access order, so the eldest entry is the least recently used
+	private final Map<String, PreparedStatement> _statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+			if (size() <= MAX_STATEMENTS) return false;
+			_evictions++;
+			try{
+				eldest.getValue().close();
+			}catch (SQLException e){
+				// ignored.
+			}//end try
+			return true;
+		}
+	};
+	private long _hits = 0;
+	private long _misses = 0;
+	private long _evictions = 0;
+
+	public StatementCache(Connection connection) {
+		this._connection = connection;
+	}
+
+	/**
+	 * Method to return the prepared statement for a query shape, preparing
+	 * it on the first request.
+	 *
+	 * @param sql the query string with ? placeholders
+	 * @return the prepared statement, owned by this cache (do not close it;
+	 *         it stays open until MAX_STATEMENTS other shapes were prepared)
+	 * @throws java.sql.SQLException when the statement could not be prepared
+	 */
+	public synchronized PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = _statements.get(sql);
+		if (stmt != null && !stmt.isClosed()){
+			_hits++;
+			return stmt;
+		}//end if
+		_misses++;
+		stmt = _connection.prepareStatement(sql);
+		stmt.unwrap(PGStatement.class).setPrepareThreshold(1);
+		_statements.put(sql, stmt);
+		return stmt;
+	}//end prepare
+
+	/**
+	 * Method to bind parameters to a statement in order.  Integers, strings
+	 * and java.sql.Date values are sent with their matching SQL types.
+	 *
+	 * @param stmt the statement to bind
+	 * @param params the parameter values, one per placeholder
+	 * @throws java.sql.SQLException when a value could not be bound
+	 */
+	public static void bind(PreparedStatement stmt, Object... params) throws SQLException {
+		for (int i = 0; i < params.length; ++i)
+			stmt.setObject(i + 1, params[i]);
+	}//end bind
+
+	public synchronized long getHits() {
+		return _hits;
+	}
+
+	public synchronized long getMisses() {
+		return _misses;
+	}
+
+	public synchronized int size() {
+		return _statements.size();
+	}
+
+	/**
+	 * Method to close every cached statement.
+	 */
+	public synchronized void close() {
+		for (PreparedStatement stmt : _statements.values()){
+			try{
+				stmt.close();
+			}catch (SQLException e){
+				// ignored.
+			}//end try
+		}//end for
+		_statements.clear();
+	}//end close
+
+	public synchronized String toString() {
+		return "Statement cache: " + _statements.size() + " statements, " + _hits + " hits, " + _misses + " misses, " + _evictions + " evicted";
+	}
+}//end StatementCache
@@ -9,4 +9,28 @@ cp ../data/*.csv /tmp/$USER/myDB/data/.
 
 echo "Initializing tables .. "
 sleep 1
-psql -h localhost -p $PGPORT $USER"_DB" < ../sql/create.sql
\ No newline at end of file
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/create.sql
+
+echo "Loading data .. "
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/load.sql
+
+echo "Creating indexes .. "
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/index.sql
+
+echo "Seeding ID sequences .. "
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/sequences.sql
+
+echo "Keying patient identities .. "
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/identity.sql
+
+echo "Installing change notifications .. "
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/notify.sql
+
+echo "Installing report counters .. "
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/counters.sql
+
+echo "Creating appointment archive .. "
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/archive.sql
+
+echo "Creating booking journal checkpoints .. "
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/journal.sql
@@ -0,0 +1,94 @@
+-- Archive of past appointments. archive_appointments() moves PA appointments
+-- dated before a cutoff, with their has_appointment, searches and schedules
+-- rows, out of the live tables into the *_archive tables, one batch per call
+-- (Archiver.java calls it until nothing is left). appointment_archive is
+-- range partitioned by adate, one partition per year, created on demand.
+-- The live tables, and with them every report, then only hold the recent
+-- history; options 7 and 8 can add the archive back (Operations.java).
+-- Appointment itself is not partitioned: has_appointment, searches and
+-- schedules reference appnt_ID alone, which a table partitioned by adate
+-- cannot keep unique.
+
+CREATE TABLE IF NOT EXISTS appointment_archive
+(
+	appnt_ID INTEGER NOT NULL,
+	adate DATE NOT NULL,
+	time_slot VARCHAR(11),
+	status VARCHAR(2)
+) PARTITION BY RANGE (adate);
+
+CREATE TABLE IF NOT EXISTS has_appointment_archive
+(
+	appt_id INTEGER NOT NULL,
+	doctor_id INTEGER NOT NULL,
+	PRIMARY KEY (appt_id, doctor_id)
+);
+
+CREATE TABLE IF NOT EXISTS searches_archive
+(
+	hid INTEGER NOT NULL,
+	pid INTEGER NOT NULL,
+	aid INTEGER NOT NULL,
+	PRIMARY KEY (hid, pid, aid)
+);
+
+CREATE TABLE IF NOT EXISTS schedules_archive
+(
+	appt_id INTEGER NOT NULL,
+	staff_id INTEGER NOT NULL,
+	PRIMARY KEY (appt_id, staff_id)
+);
+
+CREATE INDEX IF NOT EXISTS has_appointment_archive_doctor_idx
+ON has_appointment_archive (doctor_id, appt_id);
+
+CREATE INDEX IF NOT EXISTS searches_archive_aid_idx
+ON searches_archive (aid, pid);
+
+-- the partition of one year, with its own index on appnt_ID
+CREATE OR REPLACE FUNCTION ensure_appointment_archive(y INTEGER) RETURNS void AS $$
+DECLARE
+	part TEXT := 'appointment_archive_' || y;
+BEGIN
+	IF to_regclass(part) IS NULL THEN
+		EXECUTE format('CREATE TABLE %I PARTITION OF appointment_archive FOR VALUES FROM (%L) TO (%L)',
+			part, make_date(y, 1, 1), make_date(y + 1, 1, 1));
+		EXECUTE format('CREATE UNIQUE INDEX %I ON %I (appnt_ID)', part || '_id_idx', part);
+	END IF;
+END;
+$$ LANGUAGE plpgsql;
+
+-- moves up to batch past appointments dated before cutoff; returns how many
+CREATE OR REPLACE FUNCTION archive_appointments(cutoff DATE, batch INTEGER) RETURNS INTEGER AS $$
+DECLARE
+	ids INTEGER[];
+	y INTEGER;
+	n INTEGER;
+BEGIN
+	-- one archiver at a time creates partitions
+	PERFORM pg_advisory_xact_lock(hashtext('appointment_archive'));
+	SELECT array_agg(appnt_ID) INTO ids FROM (
+		SELECT appnt_ID FROM Appointment WHERE status = 'PA' AND adate < cutoff
+		ORDER BY appnt_ID LIMIT batch FOR UPDATE SKIP LOCKED) s;
+	IF ids IS NULL THEN
+		RETURN 0;
+	END IF;
+	FOR y IN SELECT DISTINCT extract(year FROM adate)::INTEGER FROM Appointment WHERE appnt_ID = ANY(ids) LOOP
+		PERFORM ensure_appointment_archive(y);
+	END LOOP;
+
+	INSERT INTO has_appointment_archive SELECT appt_id, doctor_id FROM has_appointment WHERE appt_id = ANY(ids) ON CONFLICT DO NOTHING;
+	INSERT INTO searches_archive SELECT hid, pid, aid FROM searches WHERE aid = ANY(ids) ON CONFLICT DO NOTHING;
+	INSERT INTO schedules_archive SELECT appt_id, staff_id FROM schedules WHERE appt_id = ANY(ids) ON CONFLICT DO NOTHING;
+	INSERT INTO appointment_archive SELECT appnt_ID, adate, time_slot, status FROM Appointment WHERE appnt_ID = ANY(ids);
+
+	-- has_appointment before searches, so the triggers of counters.sql
+	-- still see the patients of the links they take out of the counts
+	DELETE FROM has_appointment WHERE appt_id = ANY(ids);
+	DELETE FROM searches WHERE aid = ANY(ids);
+	DELETE FROM schedules WHERE appt_id = ANY(ids);
+	DELETE FROM Appointment WHERE appnt_ID = ANY(ids);
+	GET DIAGNOSTICS n = ROW_COUNT;
+	RETURN n;
+END;
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,194 @@
+-- Per-doctor status counters behind options 7 and 8, kept current by triggers.
+--   doctor_status_counts:   appointments and distinct patients per (doctor, status)
+--   doctor_status_patients: how many (appointment, search) pairs tie a patient to
+--                           a (doctor, status); a patient counts while this is > 0
+-- An appointment counts for every doctor it is linked to in has_appointment, and
+-- a patient for every appointment of that doctor they have a searches row for.
+-- Sessions that set dbproject.bulk = on (BulkLoader.java) skip the triggers;
+-- rebuild_doctor_status_counts() recomputes everything, as this script does at
+-- its end, and doctor_status_counts_drift() lists where the counters differ
+-- from such a recount.
+
+CREATE TABLE IF NOT EXISTS doctor_status_counts
+(
+	doctor_id INTEGER NOT NULL,
+	status VARCHAR(2) NOT NULL,
+	appointments INTEGER NOT NULL DEFAULT 0,
+	patients INTEGER NOT NULL DEFAULT 0,
+	PRIMARY KEY (doctor_id, status)
+);
+
+CREATE TABLE IF NOT EXISTS doctor_status_patients
+(
+	doctor_id INTEGER NOT NULL,
+	status VARCHAR(2) NOT NULL,
+	patient_id INTEGER NOT NULL,
+	refs INTEGER NOT NULL,
+	PRIMARY KEY (doctor_id, status, patient_id)
+);
+
+-- option 8 reads one status for all doctors
+CREATE INDEX IF NOT EXISTS doctor_status_counts_status_idx
+ON doctor_status_counts (status);
+
+CREATE OR REPLACE FUNCTION bump_doctor_status(doc INTEGER, st VARCHAR, delta INTEGER) RETURNS void AS $$
+BEGIN
+	INSERT INTO doctor_status_counts (doctor_id, status, appointments) VALUES (doc, st, delta)
+	ON CONFLICT (doctor_id, status) DO UPDATE SET appointments = doctor_status_counts.appointments + delta;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION bump_doctor_status_patient(doc INTEGER, st VARCHAR, pat INTEGER, delta INTEGER) RETURNS void AS $$
+DECLARE
+	n INTEGER;
+BEGIN
+	INSERT INTO doctor_status_patients VALUES (doc, st, pat, delta)
+	ON CONFLICT (doctor_id, status, patient_id) DO UPDATE SET refs = doctor_status_patients.refs + delta
+	RETURNING refs INTO n;
+	IF n = delta AND delta > 0 THEN
+		-- first reference: a new distinct patient
+		INSERT INTO doctor_status_counts (doctor_id, status, patients) VALUES (doc, st, 1)
+		ON CONFLICT (doctor_id, status) DO UPDATE SET patients = doctor_status_counts.patients + 1;
+	ELSIF n <= 0 THEN
+		DELETE FROM doctor_status_patients WHERE doctor_id = doc AND status = st AND patient_id = pat;
+		UPDATE doctor_status_counts SET patients = patients - 1 WHERE doctor_id = doc AND status = st;
+	END IF;
+END;
+$$ LANGUAGE plpgsql;
+
+-- adds (delta = 1) or removes (delta = -1) one appointment-doctor link in a status
+CREATE OR REPLACE FUNCTION bump_doctor_status_link(aid INTEGER, doc INTEGER, st VARCHAR, delta INTEGER) RETURNS void AS $$
+DECLARE
+	s RECORD;
+BEGIN
+	IF st IS NULL THEN
+		RETURN;
+	END IF;
+	PERFORM bump_doctor_status(doc, st, delta);
+	FOR s IN SELECT pid FROM searches WHERE searches.aid = bump_doctor_status_link.aid LOOP
+		PERFORM bump_doctor_status_patient(doc, st, s.pid, delta);
+	END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION has_appointment_counters() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('dbproject.bulk', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		PERFORM bump_doctor_status_link(OLD.appt_id, OLD.doctor_id, (SELECT status FROM Appointment WHERE appnt_ID = OLD.appt_id), -1);
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		PERFORM bump_doctor_status_link(NEW.appt_id, NEW.doctor_id, (SELECT status FROM Appointment WHERE appnt_ID = NEW.appt_id), 1);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION appointment_counters() RETURNS trigger AS $$
+DECLARE
+	h RECORD;
+BEGIN
+	IF current_setting('dbproject.bulk', true) = 'on' OR NEW.status IS NOT DISTINCT FROM OLD.status THEN
+		RETURN NULL;
+	END IF;
+	FOR h IN SELECT doctor_id FROM has_appointment WHERE appt_id = NEW.appnt_ID LOOP
+		PERFORM bump_doctor_status_link(NEW.appnt_ID, h.doctor_id, OLD.status, -1);
+		PERFORM bump_doctor_status_link(NEW.appnt_ID, h.doctor_id, NEW.status, 1);
+	END LOOP;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION searches_counters() RETURNS trigger AS $$
+DECLARE
+	r RECORD;
+BEGIN
+	IF current_setting('dbproject.bulk', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		FOR r IN SELECT HA.doctor_id, A.status FROM has_appointment HA, Appointment A
+			WHERE HA.appt_id = OLD.aid AND A.appnt_ID = OLD.aid AND A.status IS NOT NULL LOOP
+			PERFORM bump_doctor_status_patient(r.doctor_id, r.status, OLD.pid, -1);
+		END LOOP;
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		FOR r IN SELECT HA.doctor_id, A.status FROM has_appointment HA, Appointment A
+			WHERE HA.appt_id = NEW.aid AND A.appnt_ID = NEW.aid AND A.status IS NOT NULL LOOP
+			PERFORM bump_doctor_status_patient(r.doctor_id, r.status, NEW.pid, 1);
+		END LOOP;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION rebuild_doctor_status_counts() RETURNS void AS $$
+BEGIN
+	-- keep writers out while recounting
+	LOCK TABLE Appointment, has_appointment, searches IN SHARE MODE;
+	TRUNCATE doctor_status_counts, doctor_status_patients;
+	INSERT INTO doctor_status_counts (doctor_id, status, appointments)
+	SELECT HA.doctor_id, A.status, COUNT(*)
+	FROM has_appointment HA, Appointment A
+	WHERE HA.appt_id = A.appnt_ID AND A.status IS NOT NULL
+	GROUP BY HA.doctor_id, A.status;
+	INSERT INTO doctor_status_patients (doctor_id, status, patient_id, refs)
+	SELECT HA.doctor_id, A.status, S.pid, COUNT(*)
+	FROM has_appointment HA, Appointment A, searches S
+	WHERE HA.appt_id = A.appnt_ID AND S.aid = A.appnt_ID AND A.status IS NOT NULL
+	GROUP BY HA.doctor_id, A.status, S.pid;
+	UPDATE doctor_status_counts C SET patients = P.n
+	FROM (SELECT doctor_id, status, COUNT(*) AS n FROM doctor_status_patients GROUP BY doctor_id, status) P
+	WHERE C.doctor_id = P.doctor_id AND C.status = P.status;
+END;
+$$ LANGUAGE plpgsql;
+
+-- the (doctor, status) rows, and with a patient the (doctor, status, patient)
+-- rows, whose kept value differs from a recount; empty while the triggers are
+-- correct.  Counters left at zero count as absent.
+CREATE OR REPLACE FUNCTION doctor_status_counts_drift()
+RETURNS TABLE (doc INTEGER, st VARCHAR, pat INTEGER, kept TEXT, recounted TEXT) AS $$
+	WITH refs AS (
+		SELECT HA.doctor_id, A.status, S.pid, COUNT(*) AS refs
+		FROM has_appointment HA, Appointment A, searches S
+		WHERE HA.appt_id = A.appnt_ID AND S.aid = A.appnt_ID AND A.status IS NOT NULL
+		GROUP BY HA.doctor_id, A.status, S.pid),
+	counts AS (
+		SELECT L.doctor_id, L.status, L.appointments, COALESCE(P.patients, 0) AS patients
+		FROM (SELECT HA.doctor_id, A.status, COUNT(*) AS appointments
+			FROM has_appointment HA, Appointment A
+			WHERE HA.appt_id = A.appnt_ID AND A.status IS NOT NULL
+			GROUP BY HA.doctor_id, A.status) L
+		LEFT OUTER JOIN (SELECT doctor_id, status, COUNT(*) AS patients FROM refs GROUP BY doctor_id, status) P
+		ON L.doctor_id = P.doctor_id AND L.status = P.status)
+	SELECT COALESCE(K.doctor_id, C.doctor_id), COALESCE(K.status, C.status), NULL::INTEGER,
+		COALESCE(K.appointments, 0) || ' appointments, ' || COALESCE(K.patients, 0) || ' patients',
+		COALESCE(C.appointments, 0) || ' appointments, ' || COALESCE(C.patients, 0) || ' patients'
+	FROM doctor_status_counts K FULL OUTER JOIN counts C ON K.doctor_id = C.doctor_id AND K.status = C.status
+	WHERE COALESCE(K.appointments, 0) <> COALESCE(C.appointments, 0) OR COALESCE(K.patients, 0) <> COALESCE(C.patients, 0)
+	UNION ALL
+	SELECT COALESCE(K.doctor_id, R.doctor_id), COALESCE(K.status, R.status), COALESCE(K.patient_id, R.pid),
+		COALESCE(K.refs, 0) || ' refs', COALESCE(R.refs, 0) || ' refs'
+	FROM doctor_status_patients K FULL OUTER JOIN refs R
+	ON K.doctor_id = R.doctor_id AND K.status = R.status AND K.patient_id = R.pid
+	WHERE COALESCE(K.refs, 0) <> COALESCE(R.refs, 0);
+$$ LANGUAGE sql STABLE;
+
+DROP TRIGGER IF EXISTS has_appointment_counters ON has_appointment;
+CREATE TRIGGER has_appointment_counters
+AFTER INSERT OR UPDATE OR DELETE ON has_appointment
+FOR EACH ROW EXECUTE PROCEDURE has_appointment_counters();
+
+DROP TRIGGER IF EXISTS appointment_counters ON Appointment;
+CREATE TRIGGER appointment_counters
+AFTER UPDATE OF status ON Appointment
+FOR EACH ROW EXECUTE PROCEDURE appointment_counters();
+
+DROP TRIGGER IF EXISTS searches_counters ON searches;
+CREATE TRIGGER searches_counters
+AFTER INSERT OR UPDATE OR DELETE ON searches
+FOR EACH ROW EXECUTE PROCEDURE searches_counters();
+
+DO $$ BEGIN PERFORM rebuild_doctor_status_counts(); END $$;
@@ -8,11 +8,21 @@ DROP TABLE IF EXISTS has_appointment CASCADE;--OK
 DROP TABLE IF EXISTS request_maintenance CASCADE;--OK
 DROP TABLE IF EXISTS searches CASCADE;--OK
 DROP TABLE IF EXISTS schedules CASCADE;--OK
+DROP TABLE IF EXISTS appointment_archive CASCADE;
+DROP TABLE IF EXISTS has_appointment_archive CASCADE;
+DROP TABLE IF EXISTS searches_archive CASCADE;
+DROP TABLE IF EXISTS schedules_archive CASCADE;
+DROP TABLE IF EXISTS doctor_status_counts CASCADE;
+DROP TABLE IF EXISTS doctor_status_patients CASCADE;
 
 
 -------------
 ---DOMAINS---
 -------------
+DROP DOMAIN IF EXISTS _GENDER CASCADE;
+DROP DOMAIN IF EXISTS _PINTEGER CASCADE;
+DROP DOMAIN IF EXISTS _PZEROINTEGER CASCADE;
+DROP DOMAIN IF EXISTS _STATUS CASCADE;
 CREATE DOMAIN _GENDER VARCHAR(1) CHECK (VALUE IN ( 'F' , 'M' ) );
 CREATE DOMAIN _PINTEGER AS int4 CHECK(VALUE > 0);
 CREATE DOMAIN _PZEROINTEGER AS int4 CHECK(VALUE >= 0);
@@ -123,101 +133,3 @@ CREATE TABLE has_appointment
 	FOREIGN KEY (appt_id) REFERENCES Appointment(appnt_ID),
 	FOREIGN KEY (doctor_id) REFERENCES Doctor(doctor_ID)
 );
-
-----------------------------
--- INSERT DATA STATEMENTS --
-----------------------------
-
-COPY Patient (
-	patient_ID ,
-	name ,	
-	gtype ,
-	age ,
-	address ,
-	number_of_appts
-)
-FROM 'patient.csv'
-WITH DELIMITER ',';
-
-
-COPY Hospital (
-	hospital_ID,
-	name
-)
-FROM 'hospital.csv'
-WITH DELIMITER ',';
-
-
-COPY Department (
-	dept_ID,
-	name,
-	hid
-)
-FROM 'department.csv'
-WITH DELIMITER ',';
-
-
-COPY Staff (
-	staff_ID,
-	name,
-	hid
-)
-FROM 'staff.csv'
-WITH DELIMITER ',';
-
-
-COPY Doctor (
-	doctor_ID,
-	name,
-	specialty,
-	did
-)
-FROM 'doctor.csv'
-WITH DELIMITER ',';
-
-
-COPY Appointment (
-	appnt_ID,
-	adate,
-	time_slot,
-	status
-)
-FROM 'appointment.csv'
-WITH DELIMITER ',';
-
-
-COPY request_maintenance (
-	patient_per_hour,
-	dept_name,
-	time_slot,
-	did,
-	sid
-)
-FROM 'request_maintenance.csv'
-WITH DELIMITER ',';
-
-
-COPY searches (
-	hid,
-	pid,
-	aid
-)
-FROM 'searches.csv'
-WITH DELIMITER ',';
-
-
-COPY schedules (
-	appt_id,
-	staff_id
-)
-FROM 'schedules.csv'
-WITH DELIMITER ',';
-
-
-COPY has_appointment (
-	appt_id,
-	doctor_id
-)
-FROM 'has_appointment.csv'
-WITH DELIMITER ',';
-
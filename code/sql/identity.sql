@@ -0,0 +1,73 @@
+-- Patient identity: a hashed key of the normalized name, gender, age and
+-- address with a unique index, so finding a patient by their details and
+-- adding them when missing are single indexed operations (see
+-- PatientIdentity.java). Names and addresses are compared case-insensitively
+-- with runs of whitespace folded to one space and no leading or trailing
+-- spaces. This is the only definition of the normalization: PatientIdentity
+-- caches IDs by the details exactly as given. Changes to a patient's details
+-- and deletes are sent on the dbproject_patients channel as the patient_ID
+-- ('*' for a truncate) so that cache drops them.
+-- Sessions that set dbproject.bulk = on (BulkLoader.java) leave the key NULL;
+-- this script fills it in at its end. Of patients that already share a key,
+-- only the one with the lowest ID gets it.
+
+ALTER TABLE Patient ADD COLUMN IF NOT EXISTS identity_key CHAR(32);
+
+CREATE OR REPLACE FUNCTION normalize_identity(value VARCHAR) RETURNS TEXT AS $$
+	SELECT lower(btrim(regexp_replace(COALESCE(value, ''), '\s+', ' ', 'g'), ' '));
+$$ LANGUAGE sql IMMUTABLE;
+
+CREATE OR REPLACE FUNCTION patient_identity_key(name VARCHAR, gtype VARCHAR, age INTEGER, address VARCHAR) RETURNS CHAR(32) AS $$
+	SELECT md5(normalize_identity(name) || '|' || upper(btrim(gtype)) || '|' || age || '|' || normalize_identity(address))::CHAR(32);
+$$ LANGUAGE sql IMMUTABLE;
+
+CREATE OR REPLACE FUNCTION patient_identity() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('dbproject.bulk', true) = 'on' THEN
+		RETURN NEW;
+	END IF;
+	NEW.identity_key := patient_identity_key(NEW.name, NEW.gtype, NEW.age, NEW.address);
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS patient_identity ON Patient;
+CREATE TRIGGER patient_identity
+BEFORE INSERT OR UPDATE OF name, gtype, age, address ON Patient
+FOR EACH ROW EXECUTE PROCEDURE patient_identity();
+
+UPDATE Patient P SET identity_key = K.key
+FROM (SELECT patient_ID, patient_identity_key(name, gtype, age, address) AS key,
+		row_number() OVER (PARTITION BY patient_identity_key(name, gtype, age, address) ORDER BY patient_ID) AS n
+	FROM Patient WHERE identity_key IS NULL) K
+WHERE P.patient_ID = K.patient_ID AND K.n = 1
+AND NOT EXISTS (SELECT 1 FROM Patient Q WHERE Q.identity_key = K.key);
+
+CREATE OR REPLACE FUNCTION patient_identity_notify() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('dbproject.bulk', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP = 'TRUNCATE' THEN
+		PERFORM pg_notify('dbproject_patients', '*');
+	ELSE
+		PERFORM pg_notify('dbproject_patients', OLD.patient_ID::TEXT);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS patient_identity_notify ON Patient;
+CREATE TRIGGER patient_identity_notify
+AFTER UPDATE OF name, gtype, age, address OR DELETE ON Patient
+FOR EACH ROW EXECUTE PROCEDURE patient_identity_notify();
+
+DROP TRIGGER IF EXISTS patient_identity_truncate_notify ON Patient;
+CREATE TRIGGER patient_identity_truncate_notify
+AFTER TRUNCATE ON Patient
+FOR EACH STATEMENT EXECUTE PROCEDURE patient_identity_notify();
+
+CREATE UNIQUE INDEX IF NOT EXISTS patient_identity_key_idx
+ON Patient (identity_key);
+
+NOTIFY dbproject_patients, '*';
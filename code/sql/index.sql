@@ -1,17 +1,31 @@
-CREATE INDEX doctor_did_idx
+-- Indexes of the lookups and reports, chosen from the plans of PlanHarness.java.
+-- Primary keys already index Doctor (doctor_ID), Appointment (appnt_ID) and
+-- has_appointment (appt_id, doctor_id), so the single-column copies of them
+-- are dropped. doctor_ID_idx and doctor_id_idx were also the same name once
+-- folded to lower case, so the has_appointment (doctor_id) index never existed.
+DROP INDEX IF EXISTS doctor_ID_idx;
+DROP INDEX IF EXISTS appnt_ID_idx;
+DROP INDEX IF EXISTS appt_id_idx;
+
+CREATE INDEX IF NOT EXISTS doctor_did_idx
 ON Doctor (did);
 
-CREATE INDEX department_hid_idx
+CREATE INDEX IF NOT EXISTS department_hid_idx
 ON Department (hid);
 
-CREATE INDEX doctor_ID_idx
-ON Doctor (doctor_ID);
+-- option 6 starts from the department name
+CREATE INDEX IF NOT EXISTS department_name_idx
+ON Department (name);
 
-CREATE INDEX appnt_ID_idx
-ON Appointment (appnt_ID);
+-- options 5-8 go from a doctor to its appointments; covers the join
+CREATE INDEX IF NOT EXISTS has_appointment_doctor_idx
+ON has_appointment (doctor_id, appt_id);
 
-CREATE INDEX appt_id_idx
-ON has_appointment (appt_id);
+-- options 5 and 6 filter appointments on status and date; their pages go
+-- on from the last (adate, appnt_ID) in index order
+CREATE INDEX IF NOT EXISTS appointment_status_adate_idx
+ON Appointment (status, adate, appnt_ID);
 
-CREATE INDEX doctor_id_idx
-ON has_appointment (doctor_id);
+-- option 8 joins searches on the appointment; the primary key leads with hid
+CREATE INDEX IF NOT EXISTS searches_aid_idx
+ON searches (aid, pid);
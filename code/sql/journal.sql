@@ -0,0 +1,10 @@
+-- Last journal record each booking journal (BookingJournal.java) has written
+-- to the database. BookingPipeline updates it in the transaction that books
+-- the records, so records replayed after a crash are booked exactly once.
+
+CREATE TABLE IF NOT EXISTS booking_journal
+(
+	journal TEXT NOT NULL,
+	seq BIGINT NOT NULL,
+	PRIMARY KEY (journal)
+);
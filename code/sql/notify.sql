@@ -0,0 +1,127 @@
+-- Change notifications for the report cache of the Java client (ReportCache.java).
+-- Every change to an appointment that options 5 and 6 can show is sent on the
+-- dbproject_appointments channel as '<date>|<doctor_ID>|<department name>';
+-- changes that may affect any entry send '*'. Notifications are delivered on
+-- commit. Sessions that set dbproject.bulk = on (BulkLoader.java) skip them and
+-- send '*' when done, as this script does at its end.
+-- Changes to Hospital, Department and Doctor are also sent on the
+-- dbproject_reference channel, for the reference cache (ReferenceCache.java).
+
+CREATE OR REPLACE FUNCTION notify_appointment_link(aid INTEGER, doc INTEGER) RETURNS void AS $$
+BEGIN
+	PERFORM pg_notify('dbproject_appointments', to_char(A.adate, 'YYYY-MM-DD') || '|' || D.doctor_ID || '|' || DE.name)
+	FROM Appointment A, Doctor D, Department DE
+	WHERE A.appnt_ID = aid AND D.doctor_ID = doc AND D.did = DE.dept_ID;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION notify_appointment_row(aid INTEGER, adate DATE) RETURNS void AS $$
+BEGIN
+	PERFORM pg_notify('dbproject_appointments', to_char(adate, 'YYYY-MM-DD') || '|' || D.doctor_ID || '|' || DE.name)
+	FROM has_appointment HA, Doctor D, Department DE
+	WHERE HA.appt_id = aid AND HA.doctor_id = D.doctor_ID AND D.did = DE.dept_ID;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION appointment_notify() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('dbproject.bulk', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP = 'UPDATE' AND NEW.adate = OLD.adate AND NEW.status IS NOT DISTINCT FROM OLD.status
+		AND NEW.time_slot IS NOT DISTINCT FROM OLD.time_slot THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		PERFORM notify_appointment_row(OLD.appnt_ID, OLD.adate);
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') AND (TG_OP = 'INSERT' OR NEW.adate <> OLD.adate) THEN
+		PERFORM notify_appointment_row(NEW.appnt_ID, NEW.adate);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION has_appointment_notify() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('dbproject.bulk', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		PERFORM notify_appointment_link(OLD.appt_id, OLD.doctor_id);
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		PERFORM notify_appointment_link(NEW.appt_id, NEW.doctor_id);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION notify_all() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('dbproject.bulk', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	PERFORM pg_notify('dbproject_appointments', '*');
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION notify_reference() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('dbproject.bulk', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	PERFORM pg_notify('dbproject_reference', TG_TABLE_NAME);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS appointment_notify ON Appointment;
+CREATE TRIGGER appointment_notify
+AFTER INSERT OR UPDATE OR DELETE ON Appointment
+FOR EACH ROW EXECUTE PROCEDURE appointment_notify();
+
+DROP TRIGGER IF EXISTS has_appointment_notify ON has_appointment;
+CREATE TRIGGER has_appointment_notify
+AFTER INSERT OR UPDATE OR DELETE ON has_appointment
+FOR EACH ROW EXECUTE PROCEDURE has_appointment_notify();
+
+-- doctor names and departments appear in the reports too
+DROP TRIGGER IF EXISTS doctor_notify ON Doctor;
+CREATE TRIGGER doctor_notify
+AFTER UPDATE OR DELETE OR TRUNCATE ON Doctor
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_all();
+
+DROP TRIGGER IF EXISTS department_notify ON Department;
+CREATE TRIGGER department_notify
+AFTER UPDATE OR DELETE OR TRUNCATE ON Department
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_all();
+
+DROP TRIGGER IF EXISTS appointment_truncate_notify ON Appointment;
+CREATE TRIGGER appointment_truncate_notify
+AFTER TRUNCATE ON Appointment
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_all();
+
+DROP TRIGGER IF EXISTS has_appointment_truncate_notify ON has_appointment;
+CREATE TRIGGER has_appointment_truncate_notify
+AFTER TRUNCATE ON has_appointment
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_all();
+
+DROP TRIGGER IF EXISTS hospital_reference_notify ON Hospital;
+CREATE TRIGGER hospital_reference_notify
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Hospital
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_reference();
+
+DROP TRIGGER IF EXISTS department_reference_notify ON Department;
+CREATE TRIGGER department_reference_notify
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Department
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_reference();
+
+DROP TRIGGER IF EXISTS doctor_reference_notify ON Doctor;
+CREATE TRIGGER doctor_reference_notify
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Doctor
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_reference();
+
+NOTIFY dbproject_appointments, '*';
+NOTIFY dbproject_reference, '*';
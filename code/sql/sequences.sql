@@ -0,0 +1,15 @@
+-------------------------------------
+-- ID SEQUENCES (block allocation) --
+-------------------------------------
+-- One-time migration: run after the tables are loaded and before any client
+-- connects. Every nextval() reserves a block of IDs for one client, so
+-- INCREMENT BY must match IdAllocator.BLOCK_SIZE in java/src/IdAllocator.java.
+
+CREATE SEQUENCE IF NOT EXISTS patient_id_seq MINVALUE 0 START 0 INCREMENT BY 50;
+CREATE SEQUENCE IF NOT EXISTS doctor_id_seq MINVALUE 0 START 0 INCREMENT BY 50;
+CREATE SEQUENCE IF NOT EXISTS appointment_id_seq MINVALUE 0 START 0 INCREMENT BY 50;
+
+-- seed each sequence so the first block starts right after the current max ID
+SELECT setval('patient_id_seq', (SELECT COALESCE(MAX(patient_ID) + 1, 0) FROM Patient), false);
+SELECT setval('doctor_id_seq', (SELECT COALESCE(MAX(doctor_ID) + 1, 0) FROM Doctor), false);
+SELECT setval('appointment_id_seq', (SELECT COALESCE(MAX(appnt_ID) + 1, 0) FROM Appointment), false);